@@ -29,6 +29,8 @@ public class Block implements Serializable
     private String hash;
     private int length;
     private int indegree;
+    // Not a part of the hash, built again when it is missing
+    private BlockFilter filter;
 
     // header information
     private String prevHash;
@@ -70,6 +72,21 @@ public class Block implements Serializable
 
         data = new MerkleTree(stringTransactions);
         merkleRoot = data.getRoot();
+        filter = BlockFilter.of(this.transactions);
+    }
+
+    // Block restored from its binary form, merkle tree is rebuilt when it is needed
+    Block(String prevHash, long timestamp, String hash, String merkleRoot, int length, int indegree,
+          BlockFilter filter, ArrayList<Transaction> transactions)
+    {
+        this.filter = filter;
+        this.prevHash = prevHash;
+        this.timestamp = timestamp;
+        this.hash = hash;
+        this.merkleRoot = merkleRoot;
+        this.length = length;
+        this.indegree = indegree;
+        this.transactions = transactions;
     }
 
     public int getLength()
@@ -123,9 +140,30 @@ public class Block implements Serializable
 
     public MerkleTree getData()
     {
+        if (data == null && transactions != null && !transactions.isEmpty())
+        {
+            ArrayList<String> stringTransactions = new ArrayList<String>();
+            for (int i = 0; i < transactions.size(); i++)
+                stringTransactions.add(transactions.get(i).getStringFormat());
+            data = new MerkleTree(stringTransactions);
+        }
         return data;
     }
 
+    // Blocks of older versions have no filter, it is built at the first use
+    public BlockFilter getFilter()
+    {
+        if (filter == null)
+            filter = BlockFilter.of(transactions);
+        return filter;
+    }
+
+    // A filter which came with the block is not trusted, it is not covered by the hash
+    public void rebuildFilter()
+    {
+        filter = BlockFilter.of(transactions);
+    }
+
     public void setPreviousHash(String prevHash)
     {
         this.prevHash = prevHash;
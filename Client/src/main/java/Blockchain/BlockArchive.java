@@ -0,0 +1,361 @@
+package Blockchain;
+
+import Util.Config;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of the main chain blocks up to a checkpoint, from the genesis in the
+ * order of their lengths, so the block at position n has length n. These blocks do not
+ * change anymore, a snapshot only appends the ones which became old since the previous
+ * snapshot and a restart does not read them. They are read by their hashes when they are
+ * needed, the positions are found with one pass over the records at the first lookup.
+ *
+ * The file is [magic][version][flags][dictionary] followed by [hash][length][block][crc32]
+ * records. Blocks are compressed with the dictionary of the file if it has one, which is
+ * trained on the first blocks when the file is created.
+ */
+class BlockArchive
+{
+    private static Logger log = BlockchainManager.log;
+
+    private static final int MAGIC = 0x43444241;
+    private static final int VERSION = 1;
+    private static final byte FLAG_COMPRESSED = 1;
+
+    private final File file;
+    private BlockCompressor compressor;
+    private long size;
+    private int count;
+    private long lastPosition;
+    private String lastHash;
+    // Positions of the records by the block hashes, null until the first lookup
+    private HashMap<String, Long> positions;
+
+    BlockArchive(String path)
+    {
+        file = new File(path);
+    }
+
+    /**
+     * Takes the records which a snapshot saw, a record written after it is dropped. Returns
+     * false if the file does not have them, the archive is empty then.
+     */
+    synchronized boolean open(int count, long size, long lastPosition, String lastHash)
+    {
+        reset();
+        if (count == 0)
+            return true;
+        if (!file.exists()) {
+            log.warn("Block archive of the snapshot is missing.");
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < size)
+                throw new IOException("Block archive is shorter than its snapshot.");
+            BlockCompressor header = readHeader(raf);
+            raf.seek(lastPosition);
+            if (!lastHash.equals(BlockCodec.readString(raf)))
+                throw new IOException("Block archive does not end with the block of its snapshot.");
+            if (raf.length() > size)
+                raf.setLength(size);
+
+            this.compressor = header;
+            this.size = size;
+            this.count = count;
+            this.lastPosition = lastPosition;
+            this.lastHash = lastHash;
+            return true;
+        } catch (IOException e) {
+            log.warn("Block archive cannot be opened.");
+            log.warn(e);
+            reset();
+            return false;
+        }
+    }
+
+    // The file is written again from the first block at the next append
+    synchronized void reset()
+    {
+        compressor = null;
+        size = 0;
+        count = 0;
+        lastPosition = 0;
+        lastHash = null;
+        positions = null;
+    }
+
+    synchronized int getCount()
+    {
+        return count;
+    }
+
+    synchronized long getSize()
+    {
+        return size;
+    }
+
+    synchronized long getLastPosition()
+    {
+        return lastPosition;
+    }
+
+    synchronized String getLastHash()
+    {
+        return lastHash;
+    }
+
+    /**
+     * Adds the blocks which follow the last one, the file is created again if the archive is
+     * empty. The archive takes the records only after they are on the disk, so a write which
+     * fails leaves it as it was and the next snapshot writes them again.
+     */
+    synchronized void append(List<Block> blocks) throws IOException
+    {
+        if (blocks.isEmpty())
+            return;
+        if (blocks.get(0).getLength() != count)
+            throw new IOException("Block " + blocks.get(0).getLength() + " does not follow the archive of "
+                    + count + " blocks.");
+
+        if (count == 0) {
+            write(blocks);
+            return;
+        }
+
+        long position = size;
+        HashMap<String, Long> written = new HashMap<>();
+        try (FileOutputStream fileOut = new FileOutputStream(file, true)) {
+            // Bytes of an append which failed are after the size, they are written over
+            fileOut.getChannel().truncate(size);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            for (Block block : blocks) {
+                written.put(block.getHash(), position);
+                position += writeRecord(out, block, compressor);
+            }
+            out.flush();
+            fileOut.getChannel().force(true);
+        }
+        commit(blocks, written, position);
+    }
+
+    // Writes the archive again with the blocks from the genesis, an empty list leaves it empty
+    synchronized void rewrite(List<Block> blocks) throws IOException
+    {
+        if (blocks.isEmpty()) {
+            reset();
+            return;
+        }
+        if (blocks.get(0).getLength() != 0)
+            throw new IOException("Block archive cannot start with block " + blocks.get(0).getLength() + ".");
+        write(blocks);
+    }
+
+    // The file is replaced only when the new one is on the disk
+    private void write(List<Block> blocks) throws IOException
+    {
+        BlockCompressor trained = null;
+        if (Config.BLOCK_COMPRESSION) {
+            List<byte[]> samples = new ArrayList<>();
+            for (int i = 0; i < blocks.size() && samples.size() < Config.COMPRESSION_TRAINING_BLOCKS; i++)
+                samples.add(BlockCodec.encode(blocks.get(i)));
+            trained = BlockCompressor.train(samples);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        long position;
+        HashMap<String, Long> written = new HashMap<>();
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeByte(trained == null ? 0 : FLAG_COMPRESSED);
+            if (trained != null)
+                BlockCodec.writeBytes(out, trained.getDictionary());
+            position = out.size();
+            for (Block block : blocks) {
+                written.put(block.getHash(), position);
+                position += writeRecord(out, block, trained);
+            }
+            out.flush();
+            fileOut.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        reset();
+        compressor = trained;
+        positions = new HashMap<>(written.size() * 2);
+        commit(blocks, written, position);
+        log.info("Block archive is written with " + count + " blocks.");
+    }
+
+    // Takes the records which are on the disk
+    private void commit(List<Block> blocks, HashMap<String, Long> written, long end)
+    {
+        Block last = blocks.get(blocks.size() - 1);
+        if (positions != null)
+            positions.putAll(written);
+        lastPosition = written.get(last.getHash());
+        lastHash = last.getHash();
+        count += blocks.size();
+        size = end;
+    }
+
+    // Returns the length of the record
+    private static long writeRecord(DataOutputStream out, Block block, BlockCompressor compressor) throws IOException
+    {
+        byte[] encoded = BlockCodec.encode(block);
+        byte[] data = compressor == null ? encoded : compressor.compress(encoded);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + 128);
+        DataOutputStream record = new DataOutputStream(bytes);
+        BlockCodec.writeString(record, block.getHash());
+        BlockCodec.writeBytes(record, data);
+        record.flush();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+
+        bytes.writeTo(out);
+        out.writeInt((int) crc.getValue());
+        return bytes.size() + 4;
+    }
+
+    synchronized boolean contains(String hash)
+    {
+        return count > 0 && positions().containsKey(hash);
+    }
+
+    synchronized Set<String> getHashes()
+    {
+        return new HashSet<>(positions().keySet());
+    }
+
+    // Block of the hash read from the file, null if the archive does not have it
+    synchronized Block get(String hash)
+    {
+        if (count == 0)
+            return null;
+        Long position = positions().get(hash);
+        if (position == null)
+            return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(position);
+            BlockCodec.readString(raf);
+            return decode(BlockCodec.readBytes(raf));
+        } catch (IOException e) {
+            log.warn("Block " + hash + " cannot be read from the block archive.");
+            log.warn(e);
+            return null;
+        }
+    }
+
+    // Blocks up to the length in one pass over the file
+    synchronized List<Block> read(int maxLength) throws IOException
+    {
+        int wanted = maxLength >= count - 1 ? count : maxLength + 1;
+        List<Block> blocks = new ArrayList<>(Math.max(wanted, 0));
+        if (wanted <= 0)
+            return blocks;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            skipHeader(in);
+            while (blocks.size() < wanted) {
+                BlockCodec.readString(in);
+                blocks.add(decode(BlockCodec.readBytes(in)));
+                in.readInt();
+            }
+        }
+        return blocks;
+    }
+
+    private Block decode(byte[] data) throws IOException
+    {
+        return BlockCodec.decode(compressor == null ? data : compressor.decompress(data));
+    }
+
+    private HashMap<String, Long> positions()
+    {
+        if (positions != null)
+            return positions;
+
+        long start = System.currentTimeMillis();
+        HashMap<String, Long> found = new HashMap<>(count * 2);
+        if (count > 0) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                long position = skipHeader(in);
+                while (found.size() < count) {
+                    String hash = BlockCodec.readString(in);
+                    int length = in.readInt();
+                    found.put(hash, position);
+                    position += 4 + hash.getBytes(StandardCharsets.UTF_8).length + 4 + length + 4;
+                    skip(in, length + 4);
+                }
+            } catch (EOFException e) {
+                log.warn("Block archive has " + found.size() + " of its " + count + " blocks.");
+            } catch (IOException e) {
+                log.warn("Block archive cannot be read.");
+                log.warn(e);
+            }
+        }
+        positions = found;
+        log.debug("Positions of " + found.size() + " archived blocks are read in "
+                + (System.currentTimeMillis() - start) + " ms.");
+        return positions;
+    }
+
+    private static BlockCompressor readHeader(RandomAccessFile raf) throws IOException
+    {
+        raf.seek(0);
+        if (raf.readInt() != MAGIC)
+            throw new IOException("Unknown block archive format.");
+        int version = raf.readInt();
+        if (version != VERSION)
+            throw new IOException("Unknown block archive version: " + version);
+        return (raf.readByte() & FLAG_COMPRESSED) != 0 ? new BlockCompressor(BlockCodec.readBytes(raf)) : null;
+    }
+
+    // Returns the position of the first record
+    private long skipHeader(DataInputStream in) throws IOException
+    {
+        in.readInt();
+        in.readInt();
+        long position = 9;
+        if ((in.readByte() & FLAG_COMPRESSED) != 0) {
+            int length = in.readInt();
+            skip(in, length);
+            position += 4 + length;
+        }
+        return position;
+    }
+
+    private static void skip(DataInputStream in, int length) throws IOException
+    {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                in.readByte();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
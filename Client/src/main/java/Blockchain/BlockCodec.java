@@ -0,0 +1,166 @@
+package Blockchain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Binary form of blocks and transactions. Strings are written as length prefixed
+ * UTF-8 so that there is no 64KB limit as in writeUTF, -1 length means null.
+ * The filter of a block is written before its transactions, so that a reader can
+ * check it without reading them.
+ */
+public class BlockCodec
+{
+    public static byte[] encode(Block block) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeBlock(out, block);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static Block decode(byte[] data) throws IOException
+    {
+        return decode(data, true);
+    }
+
+    // Blocks of the first snapshot versions have no filter
+    static Block decode(byte[] data, boolean filter) throws IOException
+    {
+        return readBlock(new DataInputStream(new ByteArrayInputStream(data)), filter);
+    }
+
+    public static void writeBlock(DataOutput out, Block block) throws IOException
+    {
+        writeString(out, block.getHash());
+        writeString(out, block.getPreviousHash());
+        writeString(out, block.getMerkleRoot());
+        out.writeLong(block.getTimestamp());
+        out.writeInt(block.getLength());
+        out.writeInt(block.getIndegree());
+        writeFilter(out, block.getFilter());
+
+        ArrayList<Transaction> transactions = block.getTransactions();
+        out.writeInt(transactions == null ? 0 : transactions.size());
+        if (transactions != null)
+            for (Transaction t : transactions)
+                writeTransaction(out, t);
+    }
+
+    public static Block readBlock(DataInput in) throws IOException
+    {
+        return readBlock(in, true);
+    }
+
+    static Block readBlock(DataInput in, boolean hasFilter) throws IOException
+    {
+        String hash = readString(in);
+        String prevHash = readString(in);
+        String merkleRoot = readString(in);
+        long timestamp = in.readLong();
+        int length = in.readInt();
+        int indegree = in.readInt();
+        BlockFilter filter = hasFilter ? readFilter(in) : null;
+
+        int size = in.readInt();
+        if (size < 0)
+            throw new IOException("Invalid transaction count: " + size);
+        ArrayList<Transaction> transactions = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            transactions.add(readTransaction(in));
+
+        return new Block(prevHash, timestamp, hash, merkleRoot, length, indegree, filter, transactions);
+    }
+
+    public static void writeFilter(DataOutput out, BlockFilter filter) throws IOException
+    {
+        long[] bits = filter.getBits();
+        out.writeByte(filter.getHashes());
+        out.writeInt(bits.length);
+        for (long word : bits)
+            out.writeLong(word);
+    }
+
+    public static BlockFilter readFilter(DataInput in) throws IOException
+    {
+        int hashes = in.readByte();
+        int length = in.readInt();
+        if (hashes <= 0 || length <= 0)
+            throw new IOException("Invalid block filter.");
+        long[] bits = new long[length];
+        for (int i = 0; i < length; i++)
+            bits[i] = in.readLong();
+        return new BlockFilter(bits, hashes);
+    }
+
+    public static void writeTransaction(DataOutput out, Transaction t) throws IOException
+    {
+        writeString(out, t.getFilePath());
+        writeString(out, t.getFileName());
+        writeString(out, t.getDataSummary());
+        out.writeLong(t.getDataSize());
+        writeString(out, t.getUrl() == null ? null : t.getUrl().toString());
+        writeBytes(out, t.getSignatureBytes());
+        out.writeInt(t.getVersion());
+        out.writeBoolean(t.getTimeStamp() != null);
+        if (t.getTimeStamp() != null)
+            out.writeLong(t.getTimeStamp());
+    }
+
+    public static Transaction readTransaction(DataInput in) throws IOException
+    {
+        String filePath = readString(in);
+        String fileName = readString(in);
+        String dataSummary = readString(in);
+        long dataSize = in.readLong();
+        String url = readString(in);
+        byte[] signature = readBytes(in);
+        int version = in.readInt();
+        Long timeStamp = in.readBoolean() ? in.readLong() : null;
+
+        return new Transaction(filePath, fileName, dataSummary, dataSize, url == null ? null : new URL(url),
+                signature, version, timeStamp);
+    }
+
+    static void writeString(DataOutput out, String str) throws IOException
+    {
+        writeBytes(out, str == null ? null : str.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String readString(DataInput in) throws IOException
+    {
+        byte[] data = readBytes(in);
+        return data == null ? null : new String(data, StandardCharsets.UTF_8);
+    }
+
+    static void writeBytes(DataOutput out, byte[] data) throws IOException
+    {
+        if (data == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    static byte[] readBytes(DataInput in) throws IOException
+    {
+        int length = in.readInt();
+        if (length == -1)
+            return null;
+        if (length < 0)
+            throw new IOException("Invalid length: " + length);
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+}
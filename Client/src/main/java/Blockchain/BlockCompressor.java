@@ -0,0 +1,215 @@
+package Blockchain;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of encoded blocks with a preset dictionary which is trained
+ * on our own blocks. Blocks repeat the S3 host, bucket and url structure in every
+ * transaction, so a dictionary of the common segments makes even small blocks compress well.
+ *
+ * Training picks the segments whose 8 byte substrings occur in the most samples,
+ * a segment which is picked makes its substrings worthless for the next segments.
+ * The best segment is put at the end of the dictionary since deflate reaches it cheapest.
+ */
+public class BlockCompressor
+{
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte STORED = 0;
+    private static final byte DEFLATED = 1;
+
+    private static final int KMER = 8;
+    private static final int SEGMENT = 48;
+
+    private final byte[] dictionary;
+    private final int dictionaryId;
+
+    public BlockCompressor(byte[] dictionary)
+    {
+        this.dictionary = dictionary == null ? new byte[0] : dictionary;
+        Adler32 adler = new Adler32();
+        adler.update(this.dictionary);
+        dictionaryId = (int) adler.getValue();
+    }
+
+    public byte[] getDictionary()
+    {
+        return dictionary;
+    }
+
+    public byte[] compress(byte[] data)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            if (dictionary.length > 0)
+                deflater.setDictionary(dictionary);
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+
+            // Tiny blocks can grow, they are kept as they are then
+            if (out.size() + 9 >= data.length + 1)
+                return ByteBuffer.allocate(data.length + 1).put(STORED).put(data).array();
+
+            byte[] compressed = out.toByteArray();
+            return ByteBuffer.allocate(compressed.length + 9).put(DEFLATED).putInt(dictionaryId)
+                    .putInt(data.length).put(compressed).array();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public byte[] decompress(byte[] data) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        byte method = buffer.get();
+        if (method == STORED) {
+            byte[] result = new byte[data.length - 1];
+            buffer.get(result);
+            return result;
+        }
+        if (method != DEFLATED)
+            throw new IOException("Unknown compression method: " + method);
+
+        int id = buffer.getInt();
+        if (id != dictionaryId)
+            throw new IOException("Block is compressed with another dictionary.");
+        int length = buffer.getInt();
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, 9, data.length - 9);
+            byte[] result = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int n = inflater.inflate(result, offset, length - offset);
+                if (n == 0) {
+                    if (inflater.needsDictionary())
+                        inflater.setDictionary(dictionary);
+                    else if (inflater.finished() || inflater.needsInput())
+                        throw new IOException("Compressed block is truncated.");
+                }
+                offset += n;
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public static BlockCompressor train(List<byte[]> samples)
+    {
+        return new BlockCompressor(trainDictionary(samples, MAX_DICTIONARY_SIZE));
+    }
+
+    public static byte[] trainDictionary(List<byte[]> samples, int maxSize)
+    {
+        // In how many samples each kmer occurs
+        HashMap<Long, Integer> frequencies = new HashMap<>();
+        for (byte[] sample : samples) {
+            HashSet<Long> seen = new HashSet<>();
+            for (int i = 0; i + KMER <= sample.length; i++)
+                seen.add(kmer(sample, i));
+            for (Long kmer : seen)
+                frequencies.merge(kmer, 1, Integer::sum);
+        }
+
+        PriorityQueue<Segment> queue = new PriorityQueue<>();
+        for (byte[] sample : samples)
+            for (int i = 0; i < sample.length; i += SEGMENT / 2) {
+                Segment segment = new Segment(sample, i, Math.min(SEGMENT, sample.length - i));
+                segment.score = segment.score(frequencies);
+                if (segment.score > 0)
+                    queue.add(segment);
+            }
+
+        List<Segment> picked = new ArrayList<>();
+        int size = 0;
+        while (!queue.isEmpty() && size < maxSize) {
+            Segment best = queue.poll();
+            int score = best.score(frequencies);
+            // Score can only decrease, so it is picked if it is still ahead of the others
+            if (!queue.isEmpty() && score < queue.peek().score) {
+                best.score = score;
+                if (score > 0)
+                    queue.add(best);
+                continue;
+            }
+            // Segments which mostly occur in a single sample do not help the other blocks
+            if (score < 2 * (best.length - KMER + 1))
+                break;
+
+            picked.add(best);
+            size += best.length;
+            for (int i = best.offset; i + KMER <= best.offset + best.length; i++)
+                frequencies.put(kmer(best.sample, i), 0);
+        }
+
+        Collections.reverse(picked);
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for (Segment segment : picked)
+            dictionary.write(segment.sample, segment.offset, segment.length);
+
+        byte[] result = dictionary.toByteArray();
+        if (result.length > maxSize)
+            result = Arrays.copyOfRange(result, result.length - maxSize, result.length);
+        return result;
+    }
+
+    private static long kmer(byte[] data, int offset)
+    {
+        long value = 0;
+        for (int i = 0; i < KMER; i++)
+            value = (value << 8) | (data[offset + i] & 0xff);
+        return value;
+    }
+
+    private static class Segment implements Comparable<Segment>
+    {
+        byte[] sample;
+        int offset;
+        int length;
+        int score;
+
+        Segment(byte[] sample, int offset, int length)
+        {
+            this.sample = sample;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int score(HashMap<Long, Integer> frequencies)
+        {
+            int total = 0;
+            for (int i = offset; i + KMER <= offset + length; i++)
+                total += frequencies.getOrDefault(kmer(sample, i), 0);
+            return total;
+        }
+
+        public int compareTo(Segment s)
+        {
+            return Integer.compare(s.score, score);
+        }
+    }
+}
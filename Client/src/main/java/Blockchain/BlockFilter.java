@@ -0,0 +1,128 @@
+package Blockchain;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Bloom filter over the words of a block: the tokens of the data summaries, file
+ * names and uploaders, and the whole file names and uploaders as "file:name" and
+ * "user:name". The prefixes of every value are put as well, since the queries match
+ * words by their prefixes. A block whose filter does not contain a term surely has
+ * no transaction with it, so a scan skips the block without reading its transactions.
+ */
+public class BlockFilter implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    // Prefixes longer than this are not put, a longer prefix is checked by its beginning
+    public static final int MAX_PREFIX = 12;
+
+    // About 1% false positives
+    private static final int BITS_PER_ENTRY = 10;
+    private static final int HASHES = 7;
+
+    private final long[] bits;
+    private final int hashes;
+
+    BlockFilter(long[] bits, int hashes)
+    {
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+
+    public static BlockFilter of(ArrayList<Transaction> transactions)
+    {
+        Set<String> entries = new HashSet<>();
+        if (transactions != null) {
+            for (Transaction t : transactions) {
+                for (String token : TransactionIndex.tokenize(t.getDataSummary()))
+                    addPrefixes(entries, "", token);
+                for (String token : TransactionIndex.tokenize(t.getFileName()))
+                    addPrefixes(entries, "", token);
+                if (t.getFileName() != null)
+                    addPrefixes(entries, TransactionIndex.FILE_PREFIX, t.getFileName().toLowerCase(Locale.ROOT));
+
+                String uploader = t.getSignature();
+                for (String token : TransactionIndex.tokenize(uploader))
+                    addPrefixes(entries, "", token);
+                if (!uploader.isEmpty())
+                    addPrefixes(entries, TransactionIndex.USER_PREFIX, uploader.toLowerCase(Locale.ROOT));
+            }
+        }
+
+        int words = Math.max(1, (entries.size() * BITS_PER_ENTRY + 63) / 64);
+        BlockFilter filter = new BlockFilter(new long[words], HASHES);
+        for (String entry : entries)
+            filter.put(entry);
+        return filter;
+    }
+
+    private static void addPrefixes(Set<String> entries, String qualifier, String value)
+    {
+        for (int i = 1; i <= Math.min(value.length(), MAX_PREFIX); i++)
+            entries.add(qualifier + value.substring(0, i));
+        entries.add(qualifier + value);
+    }
+
+    // False if no value of the block is the token
+    public boolean mightContain(String token)
+    {
+        long hash = hash(token.toLowerCase(Locale.ROOT));
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long size = bits.length * 64L;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & 0x7fffffffL) % size;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    // False if no value of the block starts with the prefix, the qualifier is not a part of the prefix
+    public boolean mightContainPrefix(String qualifier, String prefix)
+    {
+        if (prefix.length() > MAX_PREFIX)
+            prefix = prefix.substring(0, MAX_PREFIX);
+        return prefix.isEmpty() || mightContain(qualifier + prefix);
+    }
+
+    long[] getBits()
+    {
+        return bits;
+    }
+
+    int getHashes()
+    {
+        return hashes;
+    }
+
+    private void put(String entry)
+    {
+        long hash = hash(entry);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long size = bits.length * 64L;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & 0x7fffffffL) % size;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    // 64 bit FNV-1a with a final mix, its two halves give the bit positions
+    private static long hash(String value)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
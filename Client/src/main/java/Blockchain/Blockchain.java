@@ -2,11 +2,15 @@ package Blockchain;
 
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -17,6 +21,15 @@ public class Blockchain implements Serializable
     private ConcurrentHashMap<String, Block> blockMap;
     private ArrayList<String> sinkBlocks;
     private Block validBlock;
+    // Indexes of the main chain, they are not saved and are built again when the blockchain is loaded
+    private transient ArrayList<BlockchainIndex> indexes;
+    private transient TransactionIndex transactionIndex;
+    private transient FileVersionIndex fileVersionIndex;
+    private transient TimeIndex timeIndex;
+    private transient UploadStatistics uploadStatistics;
+    private transient int indexedTransactions;
+    // Old blocks of the main chain which are not loaded after a restart, read when they are needed
+    private transient BlockArchive archive;
 
     public Blockchain(Block genesis)
     {
@@ -27,6 +40,20 @@ public class Blockchain implements Serializable
         sinkBlocks.add(genesis.getHash());
     }
 
+    /**
+     * Blockchain restored from a snapshot, blocks are put as they are without consensus work.
+     * The blocks of the main chain up to the checkpoint of the snapshot stay in the archive.
+     */
+    Blockchain(Collection<Block> blocks, Collection<String> sinks, String validHash, BlockArchive archive)
+    {
+        blockMap = new ConcurrentHashMap<String, Block>();
+        for (Block block : blocks)
+            blockMap.put(block.getHash(), block);
+        sinkBlocks = new ArrayList<String>(sinks);
+        validBlock = blockMap.get(validHash);
+        this.archive = archive;
+    }
+
     private void updateConsensus()
     {
         int longest = 0;
@@ -45,6 +72,7 @@ public class Blockchain implements Serializable
 
     public void removeInvalidBlocks(ArrayList<String> keySet)
     {
+        int size = blockMap.size();
         for(String key : blockMap.keySet())
         {
             if (!keySet.contains(key) && !key.equals("0x0"))
@@ -80,8 +108,11 @@ public class Blockchain implements Serializable
                 }
             }
         }
+        if (blockMap.size() != size)
+            rebuildIndexes();
     }
 
+    // Only branches which are not the main chain are removed, so the indexes do not change
     private void removeOldBlocks()
     {
         for (int i = 0; i < sinkBlocks.size(); i++)
@@ -109,7 +140,10 @@ public class Blockchain implements Serializable
 
     public Block getBlock(String hash)
     {
-        return blockMap.get(hash);
+        Block block = blockMap.get(hash);
+        if (block == null && archive != null && hash != null)
+            block = archive.get(hash);
+        return block;
     }
 
     public boolean addBlock(Block block)
@@ -129,7 +163,9 @@ public class Blockchain implements Serializable
                 sinkBlocks.remove(tmpBlock);
                 sinkBlocks.add(block.getHash());
                 tmpBlock.incrementIndegree();
+                Block previousTip = validBlock;
                 updateConsensus();
+                updateIndexes(previousTip);
                 removeOldBlocks();
                 return true;
             }
@@ -162,7 +198,7 @@ public class Blockchain implements Serializable
         while (iterator.hasNext())
         {
             String key = iterator.next();
-            if (!blockMap.containsKey(key)) {
+            if (!blockMap.containsKey(key) && (archive == null || !archive.contains(key))) {
                 neededBlocks.add(key);
                 log.debug(key + " is added!!!!!!!!!!!!!!!!!");
             }
@@ -170,7 +206,181 @@ public class Blockchain implements Serializable
         return neededBlocks;
     }
 
+    // Blocks of the valid chain from the genesis to the last block
+    public List<Block> getMainChain()
+    {
+        ArrayList<Block> chain = new ArrayList<>(validBlock.getLength() + 1);
+        Block block = validBlock;
+        String prevHash = null;
+        while (block != null) {
+            chain.add(block);
+            prevHash = block.getPreviousHash();
+            block = prevHash == null || prevHash.isEmpty() ? null : blockMap.get(prevHash);
+        }
+        Collections.reverse(chain);
+
+        // The rest of the chain is in the archive, which is read in one pass
+        if (archive != null && prevHash != null && !prevHash.isEmpty() && !chain.isEmpty()) {
+            try {
+                List<Block> archived = archive.read(chain.get(0).getLength() - 1);
+                archived.addAll(chain);
+                return archived;
+            } catch (IOException e) {
+                log.warn("Archived blocks cannot be read.");
+                log.warn(e);
+            }
+        }
+        return chain;
+    }
+
     public Set<String> getKeySet() {
-        return new HashSet<String>(blockMap.keySet());
+        HashSet<String> keys = new HashSet<String>(blockMap.keySet());
+        if (archive != null)
+            keys.addAll(archive.getHashes());
+        return keys;
+    }
+
+    public TransactionIndex getTransactionIndex()
+    {
+        initIndexes();
+        return transactionIndex;
+    }
+
+    public FileVersionIndex getFileVersionIndex()
+    {
+        initIndexes();
+        return fileVersionIndex;
+    }
+
+    public TimeIndex getTimeIndex()
+    {
+        initIndexes();
+        return timeIndex;
+    }
+
+    public UploadStatistics getUploadStatistics()
+    {
+        initIndexes();
+        return uploadStatistics;
+    }
+
+    private synchronized void initIndexes()
+    {
+        if (indexes != null)
+            return;
+        timeIndex = new TimeIndex();
+        transactionIndex = new TransactionIndex(timeIndex);
+        fileVersionIndex = new FileVersionIndex();
+        uploadStatistics = new UploadStatistics(Transaction::getSignature);
+        indexes = new ArrayList<>();
+        indexes.add(transactionIndex);
+        indexes.add(fileVersionIndex);
+        indexes.add(timeIndex);
+        indexes.add(uploadStatistics);
+        rebuildIndexes();
+    }
+
+    /**
+     * Indexes follow the main chain. A block which extends the last one is added to them.
+     * If the last block moves to another branch, the blocks of the old branch are removed
+     * down to the block which both branches share and the blocks of the new one are added.
+     * A block of a branch which is not the main chain is not indexed.
+     */
+    private synchronized void updateIndexes(Block previousTip)
+    {
+        // Blocks are indexed with the others when the indexes are first used
+        if (indexes == null || validBlock == previousTip)
+            return;
+        if (validBlock.getPreviousHash().equals(previousTip.getHash())) {
+            indexBlock(validBlock);
+            return;
+        }
+
+        ArrayList<Block> removed = new ArrayList<>();
+        ArrayList<Block> added = new ArrayList<>();
+        Block old = previousTip;
+        Block current = validBlock;
+        while (old != null && current != null && !old.getHash().equals(current.getHash())) {
+            if (old.getLength() >= current.getLength()) {
+                removed.add(old);
+                old = getBlock(old.getPreviousHash());
+            }
+            else {
+                added.add(current);
+                current = getBlock(current.getPreviousHash());
+            }
+        }
+        if (old == null || current == null) {
+            rebuildIndexes();
+            return;
+        }
+
+        for (Block block : removed)
+            unindexBlock(block);
+        for (int i = added.size() - 1; i >= 0; i--)
+            indexBlock(added.get(i));
+        log.debug("Main chain moved from " + previousTip.getHash() + " to " + validBlock.getHash() + ", "
+                + removed.size() + " blocks are removed from the indexes and " + added.size() + " are added.");
+    }
+
+    private void indexBlock(Block block)
+    {
+        for (BlockchainIndex index : indexes)
+            index.add(block, indexedTransactions);
+        indexedTransactions += block.getTransactions() == null ? 0 : block.getTransactions().size();
+    }
+
+    // Only the block which was indexed last can be removed
+    private void unindexBlock(Block block)
+    {
+        indexedTransactions -= block.getTransactions() == null ? 0 : block.getTransactions().size();
+        for (BlockchainIndex index : indexes)
+            index.remove(block, indexedTransactions);
+    }
+
+    // Indexes are built from the blocks of the main chain
+    private synchronized void rebuildIndexes()
+    {
+        if (indexes == null)
+            return;
+        long start = System.currentTimeMillis();
+        for (BlockchainIndex index : indexes)
+            index.clear();
+        indexedTransactions = 0;
+        for (Block block : getMainChain())
+            indexBlock(block);
+        log.debug("Indexes are built for " + indexedTransactions + " transactions in "
+                + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    List<String> getSinkBlocks()
+    {
+        return new ArrayList<String>(sinkBlocks);
+    }
+
+    // Every block including the archived ones, which are read from the archive
+    Collection<Block> getBlocks()
+    {
+        ArrayList<Block> blocks = new ArrayList<Block>(blockMap.values());
+        if (archive != null) {
+            try {
+                for (Block block : archive.read(Integer.MAX_VALUE))
+                    if (!blockMap.containsKey(block.getHash()))
+                        blocks.add(block);
+            } catch (IOException e) {
+                log.warn("Archived blocks cannot be read.");
+                log.warn(e);
+            }
+        }
+        return blocks;
+    }
+
+    // Copy which has the archived blocks in its map, so that it is saved as a whole. This
+    // blockchain keeps reading them from the archive, the copy is dropped after it is saved.
+    public Blockchain withArchivedBlocks()
+    {
+        if (archive == null)
+            return this;
+        return new Blockchain(getBlocks(), getSinkBlocks(), validBlock.getHash(), null);
     }
 }
@@ -0,0 +1,18 @@
+package Blockchain;
+
+/**
+ * An index of the main chain which is kept up to date by the blockchain. Transactions
+ * of the blocks are numbered in the order they are indexed, a block with n transactions
+ * takes the ids firstDocId to firstDocId + n - 1. Blocks of the other branches are not
+ * indexed. When the main chain moves to another branch, the blocks of the old branch are
+ * removed newest first and the blocks of the new one are added.
+ */
+public interface BlockchainIndex
+{
+    void add(Block block, int firstDocId);
+
+    // Removes the block which was added last, with the same firstDocId
+    void remove(Block block, int firstDocId);
+
+    void clear();
+}
@@ -5,6 +5,7 @@ import UploadUnit.ServerAccessor;
 import Util.Config;
 import Util.CrypDist;
 import Util.Decryption;
+import Util.ExecutorRegistry;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import org.apache.commons.net.ntp.NTPUDPClient;
@@ -23,7 +24,8 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
@@ -32,9 +34,10 @@ import java.util.TimerTask;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by Kaan on 18-Feb-17.
@@ -52,6 +55,10 @@ public class BlockchainManager
     private ConcurrentHashMap<String, Transaction> transactionPendingBucket;
     private PriorityBlockingQueue<Transaction> transactionBucket;
     private ArrayList<Transaction> transactionBucket_solid;
+    private TransactionLog transactionLog;
+    private BlockchainSnapshot snapshot;
+    private int blocksSinceSnapshot;
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
     private final String TIME_SERVER = "nist1-macon.macon.ga.us";
     private Long serverTime;
     private Long systemTime;
@@ -69,7 +76,10 @@ public class BlockchainManager
         transactionPendingBucket = new ConcurrentHashMap<>();
         transactionBucket = new PriorityBlockingQueue<>();
         transactionBucket_solid = new ArrayList<>(BLOCK_SIZE);
-        buildBlockchain();
+        snapshot = new BlockchainSnapshot(Config.SNAPSHOT_FILE_PATH);
+        restoreBlockchain();
+        transactionLog = new TransactionLog(Config.WAL_FILE_PATH);
+        restoreTransactions();
         hashes = new ConcurrentHashMap<>();
         numOfPairs = 0;
         serverTime = getServerTime();
@@ -79,6 +89,18 @@ public class BlockchainManager
         timer.schedule(new BlockchainBatch(),0, Config.BLOCKCHAIN_BATCH_PERIOD);
     }
 
+    // Blockchain of the latest snapshot, or of the db if there is no snapshot
+    private void restoreBlockchain()
+    {
+        Blockchain blockchainSnapshot = snapshot.load();
+        blocksSinceSnapshot = 0;
+        if (blockchainSnapshot != null)
+            blockchain = blockchainSnapshot;
+        else
+            buildBlockchain();
+    }
+
+    // Blockchain saved in the db, the snapshot is written again from it at the next checkpoint
     public void buildBlockchain()
     {
         Gson gson = new Gson();
@@ -94,7 +116,45 @@ public class BlockchainManager
     public void saveBlockchain()
     {
         Gson gson = new Gson();
-        dbManager.saveBlockchain(gson.toJson(blockchain, Blockchain.class));
+        dbManager.saveBlockchain(gson.toJson(blockchain.withArchivedBlocks(), Blockchain.class));
+        saveSnapshot();
+    }
+
+    /**
+     * Captures a snapshot and writes it on the storage executor. Only one snapshot is
+     * written at a time, a checkpoint which comes while one is written is taken at the
+     * next block instead.
+     */
+    public void saveSnapshot()
+    {
+        if (!snapshotting.compareAndSet(false, true))
+            return;
+        BlockchainSnapshot.Checkpoint checkpoint;
+        try {
+            checkpoint = snapshot.capture(blockchain);
+            blocksSinceSnapshot = 0;
+        } catch (RuntimeException e) {
+            snapshotting.set(false);
+            log.warn("Snapshot cannot be captured.");
+            log.warn(e);
+            return;
+        }
+
+        try {
+            ExecutorRegistry.executor(ExecutorRegistry.STORAGE).execute(() -> {
+                try {
+                    snapshot.save(checkpoint);
+                } catch (IOException e) {
+                    log.warn("Snapshot cannot be saved.");
+                    log.warn(e);
+                } finally {
+                    snapshotting.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            snapshotting.set(false);
+            log.warn("Snapshot is not saved, the storage executor is full.");
+        }
     }
 
     public Blockchain getBlockchain()
@@ -121,6 +181,7 @@ public class BlockchainManager
 
             log.trace(gson.toJson(upload));
             transactionPendingBucket.put(gson.toJson(upload), upload);
+            transactionLog.logPending(upload.getId(), gson.toJson(upload));
             log.debug("Transaction added, being broadcasted.");
             broadcast(gson.toJson(upload), Config.FLAG_BROADCAST_TRANSACTION, null);
 
@@ -131,6 +192,7 @@ public class BlockchainManager
 
     }
 
+    // The new version follows the latest one in the blockchain, not the one which is chosen
     public void updateFile(Transaction transaction, String filePath, String dataSummary) throws Exception
     {
         if(!crypDist.isAuthenticated())
@@ -144,12 +206,15 @@ public class BlockchainManager
         if(fileName.equals("merhaba") || (file.exists() && !file.isDirectory())) {
             long dataSize = file.length();
             URL url = serverAccessor.getURL(fileName);
+            FileVersionIndex.FileVersion latest = getLatestVersion(transaction.getFileName());
+            int version = Math.max(transaction.getVersion(), latest == null ? 0 : latest.getVersion()) + 1;
             Transaction upload = new Transaction(filePath, fileName, dataSummary, dataSize, url,crypDist.getSessionKey(),
-                                    transaction.getVersion() + 1);
+                                    version);
             Gson gson = new Gson();
 
             log.trace(gson.toJson(upload));
             transactionPendingBucket.put(gson.toJson(upload), upload);
+            transactionLog.logPending(upload.getId(), gson.toJson(upload));
             log.info("Transaction added, being broadcasted.");
             broadcast(gson.toJson(upload), Config.FLAG_BROADCAST_TRANSACTION, null);
 
@@ -159,6 +224,53 @@ public class BlockchainManager
             throw new Exception("No such file!");
     }
 
+    // Uploads of every user per Config.STATISTICS_BUCKET in the range
+    public Map<String, List<UploadStatistics.Bucket>> getUploadStatistics(long from, long to)
+    {
+        return blockchain.getUploadStatistics().getBuckets(from, to);
+    }
+
+    public List<UploadStatistics.Bucket> getUploadStatistics(String uploader, long from, long to)
+    {
+        return blockchain.getUploadStatistics().getBuckets(uploader, from, to);
+    }
+
+    public FileVersionIndex.FileVersion getLatestVersion(String fileName)
+    {
+        return blockchain.getFileVersionIndex().getLatest(fileName);
+    }
+
+    public List<FileVersionIndex.FileVersion> getFileHistory(String fileName)
+    {
+        return blockchain.getFileVersionIndex().getHistory(fileName);
+    }
+
+    // Versions of the file for the peers, empty if the file is unknown
+    public String getFileVersions(String fileName)
+    {
+        List<FileVersionIndex.FileVersion> history = getFileHistory(fileName);
+        if (history.isEmpty())
+            return "";
+
+        Gson gson = new Gson();
+        return gson.toJson(history);
+    }
+
+    /**
+     * Stored name of a version, the latest version is taken if it is not given. A file
+     * which is not in the index is stored under its name. Null if the version is not
+     * in the main chain.
+     */
+    public String resolveFileName(String fileName, Integer version)
+    {
+        FileVersionIndex index = blockchain.getFileVersionIndex();
+        if (!index.contains(fileName))
+            return version == null ? fileName : null;
+        FileVersionIndex.FileVersion found = version == null ? index.getLatest(fileName)
+                : index.getVersion(fileName, version);
+        return found == null ? null : fileName + found.getVersion();
+    }
+
     public void downloadFile(String fileName, String path)
     {
         try {
@@ -174,6 +286,7 @@ public class BlockchainManager
         Transaction transaction = gson.fromJson(data, Transaction.class);
 
         transactionBucket.add(transaction);
+        transactionLog.logQueued(transaction.getId(), data);
         log.info("My bucket size is:" + transactionBucket.size());
 
     }
@@ -181,8 +294,11 @@ public class BlockchainManager
     private boolean addBlockToBlockchain(Block block) throws Exception {
         boolean b = blockchain.addBlock(block);
 
-        if(b)
+        if(b) {
             log.error("A block is successfully added to blockchain.");
+            if (++blocksSinceSnapshot >= Config.SNAPSHOT_INTERVAL)
+                saveSnapshot();
+        }
 
         return b;
     }
@@ -226,13 +342,33 @@ public class BlockchainManager
             }
         } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
             log.debug(e);
+            return;
         }
 
-    try {
-            addBlockToBlockchain(block);
+        boolean added = false;
+        try {
+            added = addBlockToBlockchain(block);
         } catch (Exception e) {
             log.debug(e);
         }
+
+        // The transactions are committed only when the block is in the chain, otherwise they wait for the next block
+        if (added) {
+            for (Transaction t : block.getTransactions())
+                transactionLog.logCommitted(t.getId());
+        }
+        else {
+            // Another block may have taken some of them already, those are committed instead
+            LinkedHashMap<String, Transaction> rejected = new LinkedHashMap<>();
+            for (Transaction t : block.getTransactions())
+                rejected.put(t.getId(), t);
+            for (String id : findInChain(rejected)) {
+                rejected.remove(id);
+                transactionLog.logCommitted(id);
+            }
+            log.warn("Block is rejected, " + rejected.size() + " of its transactions are put back into the bucket.");
+            transactionBucket.addAll(rejected.values());
+        }
     }
 
     private String generateBlockId(ArrayList<Transaction> transactionBucket_solid) {
@@ -272,7 +408,7 @@ public class BlockchainManager
 
     public String mineBlock(String blockId, String prevHash, long timestamp, long maxNonce)
     {
-        ExecutorService executor = Executors.newCachedThreadPool();
+        ExecutorService executor = ExecutorRegistry.executor(ExecutorRegistry.MINING);
 
         Callable<String> task =  new BlockMiner(blockId, prevHash, timestamp, maxNonce, transactionBucket_solid);
         Future<String> future = executor.submit(task);
@@ -325,6 +461,7 @@ public class BlockchainManager
                 Transaction tr = transactionPendingBucket.get(transaction);
                 transactionBucket.add(tr);
                 transactionPendingBucket.remove(transaction);
+                transactionLog.logQueued(tr.getId(), transaction);
                 if (!tr.getFileName().equals("merhaba"))
                     tr.execute(serverAccessor);
                 log.error("Transaction is validated.");
@@ -559,48 +696,101 @@ public class BlockchainManager
         return resultingList;
     }
 
-    public void addNewBlocks(HashMap<String, String> blocks)
+    /**
+     * Adds a block which is received from the peers and follows the previous one which is
+     * received, starting from the last block. Its filter is built when it is received.
+     */
+    public void addReceivedBlock(Block block)
     {
-        Gson gson = new Gson();
+        try {
+            boolean added = addBlockToBlockchain(block);
+            if (added) {
+                for (Transaction t : block.getTransactions())
+                    transactionLog.logCommitted(t.getId());
+            }
+        } catch (Exception e) {
+            log.debug(e);
+        }
+    }
 
-        String lastHash = blockchain.getLastBlock();
+    // The buckets are filled again from the transaction log after the received blocks are added
+    public void finishReceivingBlocks()
+    {
+        log.info("New blockchain size is: " + blockchain.getLength());
+        log.info("New blockchain lasthash: " + blockchain.getLastBlock());
+        transactionPendingBucket.clear();
+        transactionBucket.clear();
+        transactionBucket_solid.clear();
+        // The transactions which are not in the new blocks are still in the log
+        restoreTransactions();
+    }
 
-        log.debug("Size of adding: " + blocks.size());
-        log.debug("1.Blockchain size is: " + blockchain.getLength());
-        log.debug("1.Blockchain lasthash: " + blockchain.getLastBlock());
-        while (blocks.size() > 0) {
+    /**
+     * Fills the buckets with the transactions in the transaction log. Transactions which
+     * are already in the recent blocks are committed instead of being restored.
+     */
+    private void restoreTransactions()
+    {
+        Gson gson = new Gson();
+        Map<String, TransactionLog.Entry> live = transactionLog.getLiveTransactions();
+        if (live.isEmpty())
+            return;
 
-            Iterator<String> iterator = blocks.keySet().iterator();
-            while    (iterator.hasNext())
-            {
-                log.trace("in iterator!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                String key = iterator.next();
-                log.trace("KEY " + key);
+        HashMap<String, Transaction> transactions = new HashMap<>();
+        for (Map.Entry<String, TransactionLog.Entry> entry : live.entrySet())
+            transactions.put(entry.getKey(), gson.fromJson(entry.getValue().getTransaction(), Transaction.class));
 
-                Block block = gson.fromJson(blocks.get(key), Block.class);
-                String prevHash = block.getPreviousHash();
+        for (String id : findInChain(transactions)) {
+            transactions.remove(id);
+            transactionLog.logCommitted(id);
+        }
 
-                if (prevHash.equals(lastHash))
-                {
-                    log.trace("PREV HASH EQUALS TO THE LAST HASH");
-                    blocks.remove(key);
-                    lastHash = block.getHash();
-                    try {
-                        boolean added = addBlockToBlockchain(block);
-                    } catch (Exception e) {
-                        log.debug(e);
-                    }
-                    break;
-                }
+        int restored = 0;
+        synchronized (this) {
+            for (Map.Entry<String, Transaction> entry : transactions.entrySet()) {
+                TransactionLog.Entry logged = live.get(entry.getKey());
+                if (logged.getState() == TransactionLog.PENDING)
+                    transactionPendingBucket.put(logged.getTransaction(), entry.getValue());
+                else
+                    transactionBucket.add(entry.getValue());
+                restored++;
             }
+        }
+        log.info(restored + " transactions are restored from the transaction log.");
+    }
 
+    // Ids of the transactions which are in the main chain, a block cannot be older than its
+    // transactions, so only the recent blocks are checked
+    private HashSet<String> findInChain(Map<String, Transaction> transactions)
+    {
+        long oldest = Long.MAX_VALUE;
+        for (Transaction t : transactions.values()) {
+            if (t.getTimeStamp() != null && t.getTimeStamp() < oldest)
+                oldest = t.getTimeStamp();
         }
 
-        log.info("New blockchain size is: " + blockchain.getLength());
-        log.info("New blockchain lasthash: " + blockchain.getLastBlock());
-        transactionPendingBucket.clear();
-        transactionBucket.clear();
-        transactionBucket_solid.clear();
+        HashSet<String> found = new HashSet<>();
+        Block block = blockchain.getBlock(blockchain.getLastBlock());
+        while (block != null && !block.isGenesis() && block.getTimestamp() >= oldest) {
+            for (Transaction t : block.getTransactions()) {
+                if (transactions.containsKey(t.getId()))
+                    found.add(t.getId());
+            }
+            block = blockchain.getBlock(block.getPreviousHash());
+        }
+        return found;
+    }
+
+    // Broadcasts the own transactions which were waiting for validation before a restart
+    public void resumePendingTransactions()
+    {
+        if (!crypDist.isAuthenticated())
+            return;
+
+        for (String transaction : new ArrayList<>(transactionPendingBucket.keySet())) {
+            log.debug("Pending transaction is being broadcasted again.");
+            broadcast(transaction, Config.FLAG_BROADCAST_TRANSACTION, null);
+        }
     }
 
 
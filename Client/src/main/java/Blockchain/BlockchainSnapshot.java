@@ -0,0 +1,306 @@
+package Blockchain;
+
+import Util.Config;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary checkpoint of the blockchain which is tied to the hash of its last block.
+ * The main chain up to Config.SNAPSHOT_RECENT_BLOCKS under the last block is kept in
+ * an append-only block archive next to the snapshot, the snapshot itself has the sink
+ * blocks, the size of the archive and the blocks after the checkpoint. A restart reads
+ * only the snapshot and the archived blocks are read when they are needed. The indexes
+ * are built from the whole main chain though, so the first index lookup after a restart
+ * still reads the archive once. Branches which leave the main chain under the checkpoint
+ * are not kept, they are too far behind to become the main chain again.
+ *
+ * A snapshot is captured on the thread which adds the blocks and written on another
+ * one, capturing only walks the blocks since the previous snapshot.
+ *
+ * If block compression is enabled, a dictionary is trained on the blocks after the
+ * checkpoint, it is kept in the header and every block is compressed with it.
+ * Blocks carry their filters since version 3. Versions before 4 have every block
+ * in the snapshot.
+ */
+public class BlockchainSnapshot
+{
+    private static Logger log = BlockchainManager.log;
+
+    private static final int MAGIC = 0x43445350;
+    private static final int VERSION = 4;
+    private static final byte FLAG_COMPRESSED = 1;
+
+    private final File file;
+    private final BlockArchive archive;
+
+    public BlockchainSnapshot(String path)
+    {
+        file = new File(path);
+        archive = new BlockArchive(path + ".blocks");
+    }
+
+    /**
+     * Takes what the next snapshot writes. The archive is written again from the genesis
+     * if the main chain does not go through its last block anymore.
+     */
+    public Checkpoint capture(Blockchain blockchain)
+    {
+        Block tip = blockchain.getBlock(blockchain.getLastBlock());
+        int archived = archive.getCount();
+        int target = tip.getLength() - Config.SNAPSHOT_RECENT_BLOCKS;
+
+        // Main chain from the tip down to the end of the archive, in decreasing lengths
+        ArrayList<Block> main = new ArrayList<>();
+        int low = Math.min(archived - 1, target);
+        Block block = tip;
+        while (block != null && block.getLength() > low) {
+            main.add(block);
+            block = blockchain.getBlock(block.getPreviousHash());
+        }
+
+        boolean rewrite = false;
+        if (archived - 1 > tip.getLength()) {
+            rewrite = true;
+        }
+        else if (archived > 0) {
+            Block last = archived - 1 > low ? main.get(tip.getLength() - archived + 1) : block;
+            rewrite = last == null || !last.getHash().equals(archive.getLastHash());
+        }
+        if (rewrite) {
+            while (block != null) {
+                main.add(block);
+                block = blockchain.getBlock(block.getPreviousHash());
+            }
+        }
+        int checkpoint = rewrite ? target : Math.max(target, archived - 1);
+
+        Checkpoint c = new Checkpoint(tip.getHash(), rewrite);
+        HashSet<String> kept = new HashSet<>();
+        for (int i = main.size() - 1; i >= 0; i--) {
+            Block b = main.get(i);
+            if (b.getLength() > checkpoint) {
+                c.recent.add(b);
+                kept.add(b.getHash());
+            }
+            else if (rewrite || b.getLength() >= archived) {
+                c.archived.add(b);
+            }
+        }
+
+        // Last archived block, the branches may also leave the main chain there
+        String base = !c.archived.isEmpty() ? c.archived.get(c.archived.size() - 1).getHash()
+                : checkpoint >= 0 ? archive.getLastHash() : null;
+
+        int dropped = 0;
+        c.sinks.add(tip.getHash());
+        for (String sink : blockchain.getSinkBlocks()) {
+            if (sink.equals(tip.getHash()))
+                continue;
+            List<Block> branch = new ArrayList<>();
+            block = blockchain.getBlock(sink);
+            while (block != null && !kept.contains(block.getHash()) && block.getLength() > checkpoint) {
+                branch.add(block);
+                block = blockchain.getBlock(block.getPreviousHash());
+            }
+            if (block == null || !(kept.contains(block.getHash()) || block.getHash().equals(base))) {
+                dropped++;
+                continue;
+            }
+            for (Block b : branch)
+                kept.add(b.getHash());
+            c.recent.addAll(branch);
+            // A sink may be the last archived block itself, which is not a block of the snapshot
+            if (kept.contains(sink))
+                c.sinks.add(sink);
+        }
+        if (dropped > 0)
+            log.debug(dropped + " sinks under the checkpoint are not saved.");
+        return c;
+    }
+
+    public void save(Blockchain blockchain) throws IOException
+    {
+        save(capture(blockchain));
+    }
+
+    public void save(Checkpoint checkpoint) throws IOException
+    {
+        long start = System.currentTimeMillis();
+
+        // Archive is written first, a snapshot never refers to blocks which are not in it.
+        // A failed write leaves the archive as it was, the next snapshot takes the blocks again.
+        if (checkpoint.rewrite)
+            archive.rewrite(checkpoint.archived);
+        else
+            archive.append(checkpoint.archived);
+
+        List<Block> blocks = new ArrayList<>(checkpoint.recent);
+        blocks.sort(Comparator.comparingInt(Block::getLength));
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fileOut), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            BlockCompressor compressor = Config.BLOCK_COMPRESSION ? trainCompressor(blocks) : null;
+            out.writeByte(compressor == null ? 0 : FLAG_COMPRESSED);
+            if (compressor != null)
+                BlockCodec.writeBytes(out, compressor.getDictionary());
+            BlockCodec.writeString(out, checkpoint.tip);
+
+            out.writeInt(checkpoint.sinks.size());
+            for (String sink : checkpoint.sinks)
+                BlockCodec.writeString(out, sink);
+
+            out.writeInt(archive.getCount());
+            out.writeLong(archive.getSize());
+            out.writeLong(archive.getLastPosition());
+            BlockCodec.writeString(out, archive.getLastHash());
+
+            out.writeInt(blocks.size());
+            for (Block block : blocks) {
+                byte[] encoded = BlockCodec.encode(block);
+                BlockCodec.writeBytes(out, compressor == null ? encoded : compressor.compress(encoded));
+            }
+
+            out.flush();
+            // Checksum is not a part of itself, so it is written to the underlying stream
+            DataOutputStream trailer = new DataOutputStream(fileOut);
+            trailer.writeLong(crc.getValue());
+            trailer.flush();
+            fileOut.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        log.info("Snapshot of " + blocks.size() + " blocks and " + archive.getCount() + " archived blocks at "
+                + checkpoint.tip + " is saved in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    // Dictionary is trained on the latest blocks, they are the most similar to the next ones
+    private BlockCompressor trainCompressor(List<Block> blocks) throws IOException
+    {
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = blocks.size() - 1; i >= 0 && samples.size() < Config.COMPRESSION_TRAINING_BLOCKS; i--)
+            samples.add(BlockCodec.encode(blocks.get(i)));
+        return BlockCompressor.train(samples);
+    }
+
+    // Returns null if there is no usable snapshot
+    public Blockchain load()
+    {
+        if (!file.exists())
+            return null;
+
+        long start = System.currentTimeMillis();
+        try {
+            byte[] data = Files.readAllBytes(file.toPath());
+            if (data.length < 8)
+                throw new IOException("Snapshot is truncated.");
+
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - 8);
+            long expected = new DataInputStream(new ByteArrayInputStream(data, data.length - 8, 8)).readLong();
+            if (crc.getValue() != expected)
+                throw new IOException("Snapshot checksum does not match.");
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 8));
+            if (in.readInt() != MAGIC)
+                throw new IOException("Unknown snapshot format.");
+            int version = in.readInt();
+            if (version < 1 || version > VERSION)
+                throw new IOException("Unknown snapshot version: " + version);
+            BlockCompressor compressor = null;
+            if (version >= 2 && (in.readByte() & FLAG_COMPRESSED) != 0)
+                compressor = new BlockCompressor(BlockCodec.readBytes(in));
+            String tip = BlockCodec.readString(in);
+
+            int sinkCount = in.readInt();
+            List<String> sinks = new ArrayList<>(sinkCount);
+            for (int i = 0; i < sinkCount; i++)
+                sinks.add(BlockCodec.readString(in));
+
+            if (version >= 4) {
+                int archived = in.readInt();
+                long size = in.readLong();
+                long lastPosition = in.readLong();
+                String lastHash = BlockCodec.readString(in);
+                if (!archive.open(archived, size, lastPosition, lastHash))
+                    throw new IOException("Block archive does not match the snapshot.");
+            }
+            else {
+                archive.reset();
+            }
+
+            int blockCount = in.readInt();
+            List<Block> blocks = new ArrayList<>(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                byte[] encoded = BlockCodec.readBytes(in);
+                blocks.add(BlockCodec.decode(compressor == null ? encoded : compressor.decompress(encoded), version >= 3));
+            }
+
+            Blockchain blockchain = new Blockchain(blocks, sinks, tip, archive);
+            if (blockchain.getBlock(tip) == null)
+                throw new IOException("Snapshot does not include its last block.");
+
+            log.info("Snapshot of " + blockCount + " blocks and " + archive.getCount() + " archived blocks at " + tip
+                    + " is loaded in " + (System.currentTimeMillis() - start) + " ms.");
+            return blockchain;
+        } catch (IOException e) {
+            log.warn("Snapshot cannot be loaded.");
+            log.warn(e);
+            archive.reset();
+            return null;
+        }
+    }
+
+    /**
+     * Blocks which a snapshot writes: the main chain blocks which become archived, and the
+     * blocks after the checkpoint with their sinks. Blocks are not copied, they do not
+     * change after they are added.
+     */
+    public static class Checkpoint
+    {
+        private final String tip;
+        private final boolean rewrite;
+        private final List<String> sinks = new ArrayList<>();
+        private final List<Block> archived = new ArrayList<>();
+        private final List<Block> recent = new ArrayList<>();
+
+        Checkpoint(String tip, boolean rewrite)
+        {
+            this.tip = tip;
+            this.rewrite = rewrite;
+        }
+
+        public String getTip()
+        {
+            return tip;
+        }
+
+        public int getArchivedBlocks()
+        {
+            return archived.size();
+        }
+
+        public int getRecentBlocks()
+        {
+            return recent.size();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package Blockchain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Versions of every file in the main chain, in the order of their version numbers.
+ * The latest version of a file is the last one, so it is found without looking
+ * at the blocks. Versions in the branches which are not the main chain are not here.
+ */
+public class FileVersionIndex implements BlockchainIndex
+{
+    private static final Comparator<FileVersion> ORDER =
+            Comparator.comparingInt(FileVersion::getVersion).thenComparingLong(FileVersion::getTimestamp);
+
+    private final HashMap<String, ArrayList<FileVersion>> versions;
+
+    public FileVersionIndex()
+    {
+        versions = new HashMap<>();
+    }
+
+    public synchronized void add(Block block, int firstDocId)
+    {
+        ArrayList<Transaction> transactions = block.getTransactions();
+        if (transactions == null)
+            return;
+
+        int docId = firstDocId;
+        for (Transaction t : transactions) {
+            if (t.getFileName() != null) {
+                long timestamp = t.getTimeStamp() != null ? t.getTimeStamp() : block.getTimestamp();
+                FileVersion version = new FileVersion(t, block.getHash(), timestamp, docId);
+
+                ArrayList<FileVersion> list = versions.get(t.getFileName());
+                if (list == null) {
+                    list = new ArrayList<>(1);
+                    versions.put(t.getFileName(), list);
+                }
+                // Blocks mostly come in order, so the version goes to the end
+                int position = list.size();
+                while (position > 0 && ORDER.compare(list.get(position - 1), version) > 0)
+                    position--;
+                list.add(position, version);
+            }
+            docId++;
+        }
+    }
+
+    public synchronized void remove(Block block, int firstDocId)
+    {
+        ArrayList<Transaction> transactions = block.getTransactions();
+        if (transactions == null)
+            return;
+
+        int docId = firstDocId;
+        for (Transaction t : transactions) {
+            ArrayList<FileVersion> list = t.getFileName() == null ? null : versions.get(t.getFileName());
+            if (list != null) {
+                for (int i = list.size() - 1; i >= 0; i--) {
+                    if (list.get(i).getDocId() == docId) {
+                        list.remove(i);
+                        break;
+                    }
+                }
+                if (list.isEmpty())
+                    versions.remove(t.getFileName());
+            }
+            docId++;
+        }
+    }
+
+    public synchronized void clear()
+    {
+        versions.clear();
+    }
+
+    // Null if the file is not in the blockchain
+    public synchronized FileVersion getLatest(String fileName)
+    {
+        ArrayList<FileVersion> list = versions.get(fileName);
+        return list == null ? null : list.get(list.size() - 1);
+    }
+
+    public synchronized FileVersion getVersion(String fileName, int version)
+    {
+        ArrayList<FileVersion> list = versions.get(fileName);
+        if (list == null)
+            return null;
+        for (int i = list.size() - 1; i >= 0; i--)
+            if (list.get(i).getVersion() == version)
+                return list.get(i);
+        return null;
+    }
+
+    // Oldest version first
+    public synchronized List<FileVersion> getHistory(String fileName)
+    {
+        ArrayList<FileVersion> list = versions.get(fileName);
+        return list == null ? Collections.emptyList() : new ArrayList<>(list);
+    }
+
+    public synchronized boolean contains(String fileName)
+    {
+        return versions.containsKey(fileName);
+    }
+
+    public synchronized int size()
+    {
+        return versions.size();
+    }
+
+    public static class FileVersion
+    {
+        private final int version;
+        private final String blockHash;
+        private final long timestamp;
+        private final long dataSize;
+        // Local to this node, not sent to the peers
+        private final transient Transaction transaction;
+        private final transient int docId;
+
+        FileVersion(Transaction transaction, String blockHash, long timestamp, int docId)
+        {
+            this.transaction = transaction;
+            this.blockHash = blockHash;
+            this.timestamp = timestamp;
+            this.docId = docId;
+            version = transaction.getVersion();
+            dataSize = transaction.getDataSize();
+        }
+
+        public int getVersion()
+        {
+            return version;
+        }
+
+        public String getBlockHash()
+        {
+            return blockHash;
+        }
+
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+
+        public long getDataSize()
+        {
+            return dataSize;
+        }
+
+        public Transaction getTransaction()
+        {
+            return transaction;
+        }
+
+        public int getDocId()
+        {
+            return docId;
+        }
+    }
+}
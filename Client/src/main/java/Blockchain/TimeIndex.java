@@ -0,0 +1,149 @@
+package Blockchain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Blocks and transactions in the order of their timestamps. Both are kept in skip
+ * lists, so a time range is found in O(log n) and its entries are read in order
+ * while the blocks are being added. Bounds of the ranges are inclusive.
+ */
+public class TimeIndex implements BlockchainIndex
+{
+    private final ConcurrentSkipListSet<TimeEntry> blocks;
+    private final ConcurrentSkipListSet<TimeEntry> transactions;
+
+    public TimeIndex()
+    {
+        blocks = new ConcurrentSkipListSet<>();
+        transactions = new ConcurrentSkipListSet<>();
+    }
+
+    public void add(Block block, int firstDocId)
+    {
+        blocks.add(new TimeEntry(block.getTimestamp(), -1, block.getHash()));
+
+        ArrayList<Transaction> blockTransactions = block.getTransactions();
+        if (blockTransactions == null)
+            return;
+        int docId = firstDocId;
+        for (Transaction t : blockTransactions) {
+            // Transactions of older versions may have no timestamp
+            if (t.getTimeStamp() != null)
+                transactions.add(new TimeEntry(t.getTimeStamp(), docId, block.getHash()));
+            docId++;
+        }
+    }
+
+    public void remove(Block block, int firstDocId)
+    {
+        blocks.remove(new TimeEntry(block.getTimestamp(), -1, block.getHash()));
+
+        ArrayList<Transaction> blockTransactions = block.getTransactions();
+        if (blockTransactions == null)
+            return;
+        int docId = firstDocId;
+        for (Transaction t : blockTransactions) {
+            if (t.getTimeStamp() != null)
+                transactions.remove(new TimeEntry(t.getTimeStamp(), docId, block.getHash()));
+            docId++;
+        }
+    }
+
+    public void clear()
+    {
+        blocks.clear();
+        transactions.clear();
+    }
+
+    // Hashes of the blocks created in the range, oldest first
+    public List<String> getBlocks(long from, long to)
+    {
+        List<String> hashes = new ArrayList<>();
+        for (TimeEntry entry : range(blocks, from, to))
+            hashes.add(entry.blockHash);
+        return hashes;
+    }
+
+    public int countBlocks(long from, long to)
+    {
+        return range(blocks, from, to).size();
+    }
+
+    // Ids of the transactions uploaded in the range, oldest first
+    public int[] getTransactions(long from, long to)
+    {
+        NavigableSet<TimeEntry> range = range(transactions, from, to);
+        int[] ids = new int[16];
+        int k = 0;
+        for (TimeEntry entry : range) {
+            if (k == ids.length)
+                ids = Arrays.copyOf(ids, k * 2);
+            ids[k++] = entry.docId;
+        }
+        return Arrays.copyOf(ids, k);
+    }
+
+    public int countTransactions(long from, long to)
+    {
+        return range(transactions, from, to).size();
+    }
+
+    // Entries of the range in time order, the view follows the blocks which are added later
+    public NavigableSet<TimeEntry> transactionRange(long from, long to)
+    {
+        return range(transactions, from, to);
+    }
+
+    private static NavigableSet<TimeEntry> range(ConcurrentSkipListSet<TimeEntry> set, long from, long to)
+    {
+        if (from > to)
+            return new ConcurrentSkipListSet<>();
+        return set.subSet(new TimeEntry(from, Integer.MIN_VALUE, null), true,
+                new TimeEntry(to, Integer.MAX_VALUE, null), true);
+    }
+
+    public static class TimeEntry implements Comparable<TimeEntry>
+    {
+        private final long time;
+        private final int docId;
+        private final String blockHash;
+
+        TimeEntry(long time, int docId, String blockHash)
+        {
+            this.time = time;
+            this.docId = docId;
+            this.blockHash = blockHash;
+        }
+
+        public long getTime()
+        {
+            return time;
+        }
+
+        public int getDocId()
+        {
+            return docId;
+        }
+
+        public String getBlockHash()
+        {
+            return blockHash;
+        }
+
+        // Same time is ordered by id, blocks by hash
+        public int compareTo(TimeEntry other)
+        {
+            int c = Long.compare(time, other.time);
+            if (c != 0)
+                return c;
+            c = Integer.compare(docId, other.docId);
+            if (c != 0 || blockHash == null || other.blockHash == null)
+                return c;
+            return blockHash.compareTo(other.blockHash);
+        }
+    }
+}
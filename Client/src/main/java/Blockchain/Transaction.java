@@ -1,15 +1,23 @@
 package Blockchain;
 
 import UploadUnit.ServerAccessor;
+import Util.Config;
 import Util.Decryption;
+import Util.LruCache;
 import org.apache.commons.net.ntp.NTPUDPClient;
 import org.apache.commons.net.ntp.TimeInfo;
 import org.apache.log4j.Logger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 
 /**
@@ -18,6 +26,8 @@ import java.util.Date;
 public class Transaction implements Comparable<Transaction>
 {
     private static Logger log = BlockchainManager.log;
+    // Uploaders by signature, so that a signature is decrypted once and not for every use
+    private static final LruCache<ByteBuffer, String> uploaders = new LruCache<>(Config.UPLOADER_CACHE_SIZE);
 
     private final String TIME_SERVER = "nist1-macon.macon.ga.us";
     private final String amazonServer = "https://s3.eu-central-1.amazonaws.com/";
@@ -30,6 +40,8 @@ public class Transaction implements Comparable<Transaction>
     private URL url;
     private byte[] signature;
     private int version;
+    // Not serialized, computed again from the fields
+    private transient String id;
 
     public int compareTo(Transaction t) {
         if (t.getTimeStamp() > this.timeStamp)
@@ -97,6 +109,20 @@ public class Transaction implements Comparable<Transaction>
         }
     }
 
+    // Transaction restored from its binary form, time server is not asked again
+    Transaction(String filePath, String fileName, String dataSummary, long dataSize, URL url,
+                byte[] signature, int version, Long timeStamp)
+    {
+        this.filePath = filePath;
+        this.fileName = fileName;
+        this.dataSummary = dataSummary;
+        this.dataSize = dataSize;
+        this.url = url;
+        this.signature = signature;
+        this.version = version;
+        this.timeStamp = timeStamp;
+    }
+
     public String getFilePath()
     {
         return filePath;
@@ -140,17 +166,78 @@ public class Transaction implements Comparable<Transaction>
 
     public void setUrl(URL url) {
         this.url = url;
+        id = null;
     }
 
     public String getFileName() {
         return fileName;
     }
 
+    byte[] getSignatureBytes() {
+        return signature;
+    }
+
     public String getSignature() {
+        if (signature == null)
+            return "";
+        ByteBuffer key = ByteBuffer.wrap(signature);
+        String uploader = uploaders.get(key);
+        if (uploader != null)
+            return uploader;
+
+        // A failure is not cached, the key may be initialized again
         String[] credentials = Decryption.decryptGet(signature);
-        if(credentials == null){
+        if (credentials == null)
             return "";
-        }
+        uploaders.put(key, credentials[1]);
         return credentials[1];
     }
+
+    /**
+     * SHA-256 of the fields of the transaction. It does not depend on how the transaction
+     * is serialized, so the same transaction has the same id in a block, in a broadcast
+     * and in the transaction log.
+     */
+    public String getId()
+    {
+        if (id != null)
+            return id;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeField(out, filePath);
+            writeField(out, fileName);
+            writeField(out, dataSummary);
+            writeField(out, url == null ? null : url.toString());
+            out.writeLong(timeStamp == null ? -1 : timeStamp);
+            out.writeLong(dataSize);
+            out.writeInt(version);
+            out.writeInt(signature == null ? -1 : signature.length);
+            if (signature != null)
+                out.write(signature);
+            out.flush();
+
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] digest = md.digest(bytes.toByteArray());
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest)
+                sb.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+            id = sb.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            log.debug(e);
+        }
+        return id;
+    }
+
+    // Length prefixed, so that the fields cannot run into each other
+    private static void writeField(DataOutputStream out, String field) throws IOException
+    {
+        if (field == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] data = field.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
 }
@@ -0,0 +1,352 @@
+package Blockchain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * Inverted index over the transactions in the blockchain. Data summaries, file names
+ * and uploaders are split into lower case tokens, each token maps to the sorted ids
+ * of the transactions which include it. Whole file names and uploaders are also kept
+ * as "file:name" and "user:name" tokens for exact lookups. Time ranges of the queries
+ * are served by the time index of the blockchain if there is one.
+ */
+public class TransactionIndex implements BlockchainIndex
+{
+    public static final String FILE_PREFIX = "file:";
+    public static final String USER_PREFIX = "user:";
+
+    private final ArrayList<Transaction> transactions;
+    private final ArrayList<Block> blocks;
+    private final TreeMap<String, IntList> postings;
+    // Qualified tokens are kept apart, so that a word prefix does not match them
+    private final TreeMap<String, IntList> qualified;
+    private final TimeIndex timeIndex;
+    // Changes when the index is cleared or a block is removed, ids of the old index mean nothing then
+    private int epoch;
+
+    public TransactionIndex()
+    {
+        this(null);
+    }
+
+    public TransactionIndex(TimeIndex timeIndex)
+    {
+        this.timeIndex = timeIndex;
+        transactions = new ArrayList<>();
+        blocks = new ArrayList<>();
+        postings = new TreeMap<>();
+        qualified = new TreeMap<>();
+    }
+
+    public synchronized void add(Block block, int firstDocId)
+    {
+        ArrayList<Transaction> blockTransactions = block.getTransactions();
+        if (blockTransactions == null)
+            return;
+
+        int docId = firstDocId;
+        for (Transaction t : blockTransactions) {
+            while (transactions.size() < docId) {
+                transactions.add(null);
+                blocks.add(null);
+            }
+            transactions.add(t);
+            blocks.add(block);
+            for (String token : tokensOf(t))
+                post(token, docId);
+            docId++;
+        }
+    }
+
+    // Ids of the block are the greatest ones, so they are at the ends of the posting lists
+    public synchronized void remove(Block block, int firstDocId)
+    {
+        ArrayList<Transaction> blockTransactions = block.getTransactions();
+        if (blockTransactions == null)
+            return;
+
+        for (int i = blockTransactions.size() - 1; i >= 0; i--)
+            for (String token : tokensOf(blockTransactions.get(i)))
+                unpost(token, firstDocId + i);
+        while (transactions.size() > firstDocId) {
+            transactions.remove(transactions.size() - 1);
+            blocks.remove(blocks.size() - 1);
+        }
+        // Ids of the removed transactions are given to others
+        epoch++;
+    }
+
+    public synchronized void clear()
+    {
+        transactions.clear();
+        blocks.clear();
+        postings.clear();
+        qualified.clear();
+        epoch++;
+    }
+
+    // Ids of the transactions which include the token
+    public synchronized int[] term(String token)
+    {
+        token = token.toLowerCase(Locale.ROOT);
+        IntList list = mapOf(token).get(token);
+        return list == null ? new int[0] : list.toArray();
+    }
+
+    // Ids of the transactions which include a token starting with the prefix
+    public synchronized int[] prefix(String prefix)
+    {
+        prefix = prefix.toLowerCase(Locale.ROOT);
+        return union(mapOf(prefix).subMap(prefix, true, prefix + Character.MAX_VALUE, false).values());
+    }
+
+    // Number of transactions including the token, without copying them
+    public synchronized int count(String token)
+    {
+        token = token.toLowerCase(Locale.ROOT);
+        IntList list = mapOf(token).get(token);
+        return list == null ? 0 : list.size;
+    }
+
+    /**
+     * Ids of the transactions which include every word in the text. Each word is
+     * matched as a prefix, so that a part of a word still finds the transaction.
+     * The most selective word gives the candidates, the others only filter them.
+     */
+    public synchronized int[] search(String text)
+    {
+        List<String> tokens = tokenize(text);
+        if (tokens.isEmpty())
+            return new int[0];
+
+        List<List<IntList>> expansions = new ArrayList<>();
+        for (String token : tokens)
+            expansions.add(new ArrayList<>(postings.subMap(token, true, token + Character.MAX_VALUE, false).values()));
+        expansions.sort(Comparator.comparingLong(TransactionIndex::total));
+
+        int[] candidates = union(expansions.get(0));
+        for (int i = 1; i < expansions.size() && candidates.length > 0; i++) {
+            List<IntList> lists = expansions.get(i);
+            // Probing many short lists or a list of similar size is slower than merging
+            if (lists.size() > 8) {
+                candidates = intersect(candidates, union(lists));
+                continue;
+            }
+            if (lists.size() == 1 && lists.get(0).size < candidates.length * 8L) {
+                IntList list = lists.get(0);
+                candidates = intersect(candidates, candidates.length, list.values, list.size);
+                continue;
+            }
+            int k = 0;
+            for (int id : candidates) {
+                for (IntList list : lists) {
+                    if (list.contains(id)) {
+                        candidates[k++] = id;
+                        break;
+                    }
+                }
+            }
+            candidates = Arrays.copyOf(candidates, k);
+        }
+        return candidates;
+    }
+
+    public synchronized Transaction getTransaction(int docId)
+    {
+        return docId < transactions.size() ? transactions.get(docId) : null;
+    }
+
+    public synchronized String getBlockHash(int docId)
+    {
+        Block block = getBlock(docId);
+        return block == null ? null : block.getHash();
+    }
+
+    public synchronized Block getBlock(int docId)
+    {
+        return docId < blocks.size() ? blocks.get(docId) : null;
+    }
+
+    public synchronized int size()
+    {
+        return transactions.size();
+    }
+
+    public synchronized int getEpoch()
+    {
+        return epoch;
+    }
+
+    // Null if the index has no time index
+    public TimeIndex getTimeIndex()
+    {
+        return timeIndex;
+    }
+
+    // Number of transactions including a token starting with the prefix
+    public synchronized long countPrefix(String prefix)
+    {
+        prefix = prefix.toLowerCase(Locale.ROOT);
+        long total = 0;
+        for (IntList list : mapOf(prefix).subMap(prefix, true, prefix + Character.MAX_VALUE, false).values())
+            total += list.size;
+        return total;
+    }
+
+    // Transactions keep the decrypted uploaders, so this does not need the lock of the index
+    public String getUploader(Transaction t)
+    {
+        return t.getSignature();
+    }
+
+    private TreeMap<String, IntList> mapOf(String token)
+    {
+        return token.indexOf(':') >= 0 ? qualified : postings;
+    }
+
+    private List<String> tokensOf(Transaction t)
+    {
+        List<String> tokens = new ArrayList<>(tokenize(t.getDataSummary()));
+        tokens.addAll(tokenize(t.getFileName()));
+        if (t.getFileName() != null)
+            tokens.add(FILE_PREFIX + t.getFileName().toLowerCase(Locale.ROOT));
+
+        String uploader = getUploader(t);
+        tokens.addAll(tokenize(uploader));
+        if (!uploader.isEmpty())
+            tokens.add(USER_PREFIX + uploader.toLowerCase(Locale.ROOT));
+        return tokens;
+    }
+
+    private void post(String token, int docId)
+    {
+        TreeMap<String, IntList> map = mapOf(token);
+        IntList list = map.get(token);
+        if (list == null) {
+            list = new IntList();
+            map.put(token, list);
+        }
+        // Same token can come from both the summary and the file name
+        if (list.size == 0 || list.values[list.size - 1] != docId)
+            list.add(docId);
+    }
+
+    private void unpost(String token, int docId)
+    {
+        TreeMap<String, IntList> map = mapOf(token);
+        IntList list = map.get(token);
+        if (list == null || list.size == 0 || list.values[list.size - 1] != docId)
+            return;
+        list.size--;
+        if (list.size == 0)
+            map.remove(token);
+    }
+
+    public static List<String> tokenize(String text)
+    {
+        List<String> tokens = new ArrayList<>();
+        if (text == null)
+            return tokens;
+
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean letter = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (letter && start < 0)
+                start = i;
+            else if (!letter && start >= 0) {
+                tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    public static int[] intersect(int[] a, int[] b)
+    {
+        return intersect(a, a.length, b, b.length);
+    }
+
+    private static int[] intersect(int[] a, int aLength, int[] b, int bLength)
+    {
+        int[] result = new int[Math.min(aLength, bLength)];
+        int i = 0, j = 0, k = 0;
+        while (i < aLength && j < bLength) {
+            if (a[i] < b[j])
+                i++;
+            else if (a[i] > b[j])
+                j++;
+            else {
+                result[k++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, k);
+    }
+
+    private static long total(List<IntList> lists)
+    {
+        long total = 0;
+        for (IntList list : lists)
+            total += list.size;
+        return total;
+    }
+
+    private static int[] union(Collection<IntList> lists)
+    {
+        if (lists.size() == 1)
+            return lists.iterator().next().toArray();
+
+        int total = 0;
+        for (IntList list : lists)
+            total += list.size;
+        int[] ids = new int[total];
+        int offset = 0;
+        for (IntList list : lists) {
+            System.arraycopy(list.values, 0, ids, offset, list.size);
+            offset += list.size;
+        }
+        Arrays.sort(ids);
+        return distinct(ids);
+    }
+
+    private static int[] distinct(int[] sorted)
+    {
+        if (sorted.length == 0)
+            return sorted;
+        int k = 1;
+        for (int i = 1; i < sorted.length; i++)
+            if (sorted[i] != sorted[k - 1])
+                sorted[k++] = sorted[i];
+        return k == sorted.length ? sorted : Arrays.copyOf(sorted, k);
+    }
+
+    private static class IntList
+    {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value)
+        {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        boolean contains(int value)
+        {
+            return Arrays.binarySearch(values, 0, size, value) >= 0;
+        }
+
+        int[] toArray()
+        {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package Blockchain;
+
+import Util.Config;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of the transactions which are not in a block yet.
+ * Every record is [op][length][data][crc32], where data is the transaction id and,
+ * for the live states, the time it was first logged and the transaction json, each
+ * after a newline. Records of older logs have no time, they are taken as logged at
+ * the replay. Records are matched by the id, so a transaction does not have to be
+ * serialized the same way again to be committed. A torn record at the end of the file
+ * is dropped on replay. The log keeps a mirror of the live transactions and rewrites
+ * itself from the mirror when most of the records are obsolete. Transactions which
+ * are not committed within Config.WAL_ENTRY_LIFETIME are dropped when it is rewritten.
+ */
+public class TransactionLog
+{
+    private static Logger log = BlockchainManager.log;
+
+    // Own transaction waiting for the validation of the peers
+    public static final byte PENDING = 1;
+    // Validated transaction waiting to be put into a block
+    public static final byte QUEUED = 2;
+    // Transaction is in a block, it is not needed anymore
+    public static final byte COMMITTED = 3;
+
+    private final File file;
+    // Live transactions by id
+    private final LinkedHashMap<String, Entry> live;
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    private int records;
+
+    public TransactionLog(String path)
+    {
+        file = new File(path);
+        live = new LinkedHashMap<>();
+        records = 0;
+
+        long start = System.currentTimeMillis();
+        try {
+            replay();
+            compact();
+        } catch (IOException e) {
+            log.warn("Transaction log cannot be replayed.");
+            log.warn(e);
+        }
+        log.info("Transaction log is replayed in " + (System.currentTimeMillis() - start) + " ms with "
+                + live.size() + " live transactions.");
+    }
+
+    public synchronized void logPending(String id, String transaction)
+    {
+        log(id, PENDING, transaction);
+    }
+
+    public synchronized void logQueued(String id, String transaction)
+    {
+        log(id, QUEUED, transaction);
+    }
+
+    // A transaction keeps the time it was first logged, so it expires even if its state changes
+    private void log(String id, byte state, String transaction)
+    {
+        Entry previous = live.get(id);
+        Entry entry = new Entry(state, transaction, previous != null ? previous.time : System.currentTimeMillis());
+        live.put(id, entry);
+        append(id, entry);
+    }
+
+    public synchronized void logCommitted(String id)
+    {
+        if (live.remove(id) != null)
+            append(id, new Entry(COMMITTED, null, 0));
+    }
+
+    // Returns the live transactions by id with their last state, in the order they are logged
+    public synchronized Map<String, Entry> getLiveTransactions()
+    {
+        return new LinkedHashMap<>(live);
+    }
+
+    public synchronized int size()
+    {
+        return live.size();
+    }
+
+    public synchronized void close()
+    {
+        try {
+            if (out != null)
+                out.close();
+        } catch (IOException e) {
+            log.debug(e);
+        }
+        out = null;
+        fileOut = null;
+    }
+
+    private void append(String id, Entry entry)
+    {
+        try {
+            if (out == null)
+                open();
+            writeRecord(out, id, entry);
+            out.flush();
+            if (Config.WAL_SYNC)
+                fileOut.getChannel().force(false);
+            records++;
+        } catch (IOException e) {
+            log.warn("Transaction cannot be written to the transaction log.");
+            log.warn(e);
+            close();
+            return;
+        }
+
+        if (records > Config.WAL_COMPACTION_THRESHOLD && records > 2 * live.size()) {
+            try {
+                compact();
+            } catch (IOException e) {
+                log.warn("Transaction log cannot be compacted.");
+                log.warn(e);
+            }
+        }
+    }
+
+    private void open() throws IOException
+    {
+        fileOut = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    }
+
+    private void replay() throws IOException
+    {
+        if (!file.exists())
+            return;
+
+        long valid = 0;
+        long now = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                int length;
+                byte[] data;
+                int crc;
+                try {
+                    length = in.readInt();
+                    if (length < 0 || length > file.length())
+                        break;
+                    data = new byte[length];
+                    in.readFully(data);
+                    crc = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (crc != checksum(op, data))
+                    break;
+
+                String record = new String(data, StandardCharsets.UTF_8);
+                int separator = record.indexOf('\n');
+                if (op == COMMITTED && separator < 0)
+                    live.remove(record);
+                else if ((op == PENDING || op == QUEUED) && separator > 0) {
+                    Entry entry = entry(op, record.substring(separator + 1), now);
+                    if (entry == null)
+                        break;
+                    live.put(record.substring(0, separator), entry);
+                }
+                else
+                    break;
+
+                valid += 1 + 4 + length + 4;
+                records++;
+            }
+        }
+
+        if (valid < file.length()) {
+            log.warn("Transaction log has a torn tail, " + (file.length() - valid) + " bytes are dropped.");
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(valid);
+            }
+        }
+    }
+
+    // Json of a live record with the time before it, or without a time in the older logs
+    private static Entry entry(byte op, String record, long now)
+    {
+        if (record.startsWith("{"))
+            return new Entry(op, record, now);
+        int separator = record.indexOf('\n');
+        if (separator <= 0)
+            return null;
+        try {
+            return new Entry(op, record.substring(separator + 1), Long.parseLong(record.substring(0, separator)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Rewrites the log so that it only includes the live transactions which have not expired
+    private void compact() throws IOException
+    {
+        close();
+        long expiry = System.currentTimeMillis() - Config.WAL_ENTRY_LIFETIME;
+        int expired = 0;
+        for (Iterator<Entry> it = live.values().iterator(); it.hasNext(); ) {
+            if (it.next().time < expiry) {
+                it.remove();
+                expired++;
+            }
+        }
+        if (expired > 0)
+            log.warn(expired + " transactions which are not in a block after "
+                    + Config.WAL_ENTRY_LIFETIME + " ms are dropped from the transaction log.");
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream tmpOut = new FileOutputStream(tmp)) {
+            DataOutputStream tmpData = new DataOutputStream(new BufferedOutputStream(tmpOut));
+            for (Map.Entry<String, Entry> entry : live.entrySet())
+                writeRecord(tmpData, entry.getKey(), entry.getValue());
+            tmpData.flush();
+            tmpOut.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        records = live.size();
+        log.debug("Transaction log is compacted to " + records + " records.");
+    }
+
+    private static void writeRecord(DataOutputStream out, String id, Entry entry) throws IOException
+    {
+        String record = entry.transaction == null ? id : id + "\n" + entry.time + "\n" + entry.transaction;
+        byte[] data = record.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(entry.state);
+        out.writeInt(data.length);
+        out.write(data);
+        out.writeInt(checksum(entry.state, data));
+    }
+
+    private static int checksum(byte op, byte[] data)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(op);
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    // Last state of a live transaction, its json and the time it was first logged
+    public static class Entry
+    {
+        private final byte state;
+        private final String transaction;
+        private final long time;
+
+        Entry(byte state, String transaction, long time)
+        {
+            this.state = state;
+            this.transaction = transaction;
+            this.time = time;
+        }
+
+        public byte getState()
+        {
+            return state;
+        }
+
+        public String getTransaction()
+        {
+            return transaction;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package Blockchain;
+
+import Util.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * Uploads of every user in time buckets of Config.STATISTICS_BUCKET milliseconds:
+ * the number of uploads, their total size and the distinct files. Kept up to date
+ * with the blocks of the main chain, so a report does not walk the chain or decrypt
+ * any signature. When the main chain moves to another branch, the uploads of the old
+ * branch are taken out of their buckets.
+ */
+public class UploadStatistics implements BlockchainIndex
+{
+    private final Function<Transaction, String> uploaders;
+    // Uploader to bucket start to bucket
+    private final HashMap<String, TreeMap<Long, Bucket>> buckets;
+
+    public UploadStatistics(Function<Transaction, String> uploaders)
+    {
+        this.uploaders = uploaders;
+        buckets = new HashMap<>();
+    }
+
+    public synchronized void add(Block block, int firstDocId)
+    {
+        ArrayList<Transaction> transactions = block.getTransactions();
+        if (transactions == null)
+            return;
+        for (Transaction t : transactions)
+            bucket(t, block).add(t);
+    }
+
+    public synchronized void remove(Block block, int firstDocId)
+    {
+        ArrayList<Transaction> transactions = block.getTransactions();
+        if (transactions == null)
+            return;
+        for (Transaction t : transactions) {
+            String uploader = uploaders.apply(t);
+            TreeMap<Long, Bucket> uploads = buckets.get(uploader);
+            Bucket bucket = uploads == null ? null : uploads.get(bucketStart(time(t, block)));
+            if (bucket == null)
+                continue;
+            bucket.remove(t);
+            if (bucket.count == 0)
+                uploads.remove(bucket.start);
+            if (uploads.isEmpty())
+                buckets.remove(uploader);
+        }
+    }
+
+    public synchronized void clear()
+    {
+        buckets.clear();
+    }
+
+    public synchronized Set<String> getUploaders()
+    {
+        return new TreeSet<>(buckets.keySet());
+    }
+
+    // Buckets of the uploader which start in the range, oldest first
+    public synchronized List<Bucket> getBuckets(String uploader, long from, long to)
+    {
+        TreeMap<Long, Bucket> uploads = buckets.get(uploader);
+        List<Bucket> result = new ArrayList<>();
+        if (uploads == null || from > to)
+            return result;
+        // Bucket which includes the start of the range is a part of it
+        long start = from < Long.MIN_VALUE + Config.STATISTICS_BUCKET ? Long.MIN_VALUE : bucketStart(from);
+        for (Bucket bucket : uploads.subMap(start, true, to, true).values())
+            result.add(bucket.copy());
+        return result;
+    }
+
+    // Buckets of every uploader which start in the range
+    public synchronized Map<String, List<Bucket>> getBuckets(long from, long to)
+    {
+        Map<String, List<Bucket>> result = new TreeMap<>();
+        for (String uploader : buckets.keySet()) {
+            List<Bucket> list = getBuckets(uploader, from, to);
+            if (!list.isEmpty())
+                result.put(uploader, list);
+        }
+        return result;
+    }
+
+    private Bucket bucket(Transaction t, Block block)
+    {
+        String uploader = uploaders.apply(t);
+        long start = bucketStart(time(t, block));
+
+        TreeMap<Long, Bucket> uploads = buckets.get(uploader);
+        if (uploads == null) {
+            uploads = new TreeMap<>();
+            buckets.put(uploader, uploads);
+        }
+        Bucket bucket = uploads.get(start);
+        if (bucket == null) {
+            bucket = new Bucket(start);
+            uploads.put(start, bucket);
+        }
+        return bucket;
+    }
+
+    private static long time(Transaction t, Block block)
+    {
+        return t.getTimeStamp() != null ? t.getTimeStamp() : block.getTimestamp();
+    }
+
+    private static long bucketStart(long time)
+    {
+        return Math.floorDiv(time, Config.STATISTICS_BUCKET) * Config.STATISTICS_BUCKET;
+    }
+
+    public static class Bucket
+    {
+        private final long start;
+        private long count;
+        private long dataSize;
+        // Uploads of every file, so that a removed upload leaves the other ones of its file
+        private final HashMap<String, Integer> files;
+
+        Bucket(long start)
+        {
+            this.start = start;
+            files = new HashMap<>();
+        }
+
+        void add(Transaction t)
+        {
+            count++;
+            dataSize += t.getDataSize();
+            files.merge(t.getFileName(), 1, Integer::sum);
+        }
+
+        void remove(Transaction t)
+        {
+            count--;
+            dataSize -= t.getDataSize();
+            files.computeIfPresent(t.getFileName(), (name, uploads) -> uploads > 1 ? uploads - 1 : null);
+        }
+
+        Bucket copy()
+        {
+            Bucket copy = new Bucket(start);
+            copy.count = count;
+            copy.dataSize = dataSize;
+            copy.files.putAll(files);
+            return copy;
+        }
+
+        // Start of the bucket in epoch millis
+        public long getStart()
+        {
+            return start;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public long getDataSize()
+        {
+            return dataSize;
+        }
+
+        public int getDistinctFiles()
+        {
+            return files.size();
+        }
+    }
+}
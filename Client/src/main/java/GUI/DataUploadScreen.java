@@ -160,7 +160,7 @@ public class DataUploadScreen extends JPanel implements ActionListener{
                                 e1.printStackTrace();
                             }
                         };
-                        new Thread(myrunnable).start();
+                        controller.runInBackground(myrunnable);
                     }
                     else {
                         JOptionPane.showMessageDialog(this, "Please enter a valid path!", "Warning",
@@ -1,13 +1,17 @@
 package GUI;
 
+import Blockchain.FileVersionIndex;
 import Blockchain.Transaction;
+import Query.QueryCursor;
+import Util.Config;
 
 import javax.swing.*;
 import javax.swing.border.Border;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.TableModelEvent;
 import javax.swing.event.TableModelListener;
 import javax.swing.table.DefaultTableCellRenderer;
-import javax.swing.table.DefaultTableModel;
 import javax.swing.table.JTableHeader;
 import javax.swing.table.TableColumnModel;
 import java.awt.*;
@@ -15,10 +19,9 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Set;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Created by gizem on 06.04.2017.
@@ -30,8 +33,10 @@ public class QueryScreen extends JPanel {
     GlossyButton back;
     ScreenManager controller;
     JTable results;
-    DefaultTableModel resultsModel;
-    ArrayList<Transaction> currTransactions;
+    TransactionTableModel resultsModel;
+    QueryCursor cursor;
+    // Page which is fetched from the cursor, null if none is
+    PageWorker fetching;
     JPopupMenu popupMenu;
     JProgressBar progressBar;
 
@@ -41,23 +46,15 @@ public class QueryScreen extends JPanel {
         setBackground(Color.white);
 
         query = new JTextField();
-        resultsModel = new DefaultTableModel() {
-            public boolean isCellEditable(int row, int col)
-            {
-                return false;
-            }
-        };
-        resultsModel.addColumn("Data summary");
-        resultsModel.addColumn("File name");
-        resultsModel.addColumn("User name");
+        resultsModel = new TransactionTableModel();
         results = new JTable(resultsModel);
         results.addMouseListener(new TableListener());
-        currTransactions = new ArrayList<>();
-        currTransactions.add(null);
         progressBar = new JProgressBar();
         progressBar.setBackground(Color.white);
 
         query.setFont(new Font("Arial", Font.BOLD,20));
+        query.setToolTipText("e.g. weather file:data.csv user:alice size>10M version:2 after:2017-05-01 before:2017-06-01, " +
+                "combined with AND / OR and parentheses");
 
         DefaultTableCellRenderer moreRenderer = new DefaultTableCellRenderer() {
             Font font = new Font("Arial",Font.BOLD,results.getFont().getSize());
@@ -83,6 +80,7 @@ public class QueryScreen extends JPanel {
 
         ButtonListener l = new ButtonListener();
         query.addActionListener(l);
+        query.getDocument().addDocumentListener(new QueryListener());
         run.addActionListener(l);
         back.addActionListener(l);
 
@@ -90,6 +88,7 @@ public class QueryScreen extends JPanel {
         queryScroll.setBackground(Color.white);
         JScrollPane resultsScroll = new JScrollPane(results);
         resultsScroll.setBackground(Color.white);
+        resultsScroll.getViewport().addChangeListener(e -> fetchIfNeeded());
 
         Border border = BorderFactory.createLineBorder(Color.GRAY, 3);
 
@@ -163,38 +162,28 @@ public class QueryScreen extends JPanel {
 
             if(e.getSource() == run || e.getSource() == query)
             {
-                back.setEnabled(false);
-                // TODO: Check if query statement is correct
                 if(query.getText().equals("")) {
                     JOptionPane.showMessageDialog(QueryScreen.this, "Please enter a query statement!", "Warning",
                             JOptionPane.WARNING_MESSAGE);
                     return;
                 }
 
-                resultsModel.setRowCount(0);
-                currTransactions.clear();
-
-                HashMap<String, ArrayList<Transaction>> queryResults = controller.query(query.getText());
-                Set<String> keySet = queryResults.keySet();
-                Iterator<String> iterator = keySet.iterator();
-                while (iterator.hasNext())
-                {
-                    String key = iterator.next();
-                    ArrayList<Transaction> transactions = queryResults.get(key);
-
-                    for (int i = 0; i < transactions.size(); i++)
-                    {
-                        Object[] rowData = {transactions.get(i).getDataSummary()};
-                        resultsModel.addRow(rowData);
-                        resultsModel.setValueAt(transactions.get(i).getFileName(), resultsModel.getRowCount()-1,1);
-                        resultsModel.setValueAt(transactions.get(i).getSignature(), resultsModel.getRowCount()-1,2);
-                        resultsModel.fireTableDataChanged();
-                        currTransactions.add(transactions.get(i));
-                    }
+                cancelQuery();
+                QueryCursor cursor;
+                try {
+                    cursor = controller.openQuery(query.getText());
+                } catch (ParseException ex) {
+                    JOptionPane.showMessageDialog(QueryScreen.this, "Query is not valid: " + ex.getMessage(),
+                            "Warning", JOptionPane.WARNING_MESSAGE);
+                    return;
                 }
-                back.setEnabled(true);
+
+                QueryScreen.this.cursor = cursor;
+                resultsModel.open(cursor);
+                fetchIfNeeded();
             }
             else {  // back
+                cancelQuery();
                 controller.setCurrentView(new MainScreen(controller));
                 controller.setSize((new Dimension(1000,600)));
             }
@@ -212,19 +201,29 @@ public class QueryScreen extends JPanel {
             {
                 int row = results.rowAtPoint(event.getPoint());
                 results.setRowSelectionInterval(row, row);
-                if (row >= 0 && row < currTransactions.size())
+                Transaction transaction = resultsModel.getTransaction(row);
+                if (transaction != null)
                 {
                     popupMenu = new JPopupMenu();
                     JMenuItem download = new JMenuItem("Download");
                     JMenuItem update = new JMenuItem("Update");
+                    JMenuItem versions = new JMenuItem("Versions");
                     popupMenu.add(download);
                     popupMenu.add(update);
+                    popupMenu.add(versions);
                     popupMenu.setLocation(event.getXOnScreen(), event.getYOnScreen());
                     popupMenu.setVisible(true);
                     download.addActionListener(e -> {
                         update.setSelected(false);
                         popupMenu.setVisible(false);
-                        String filename = currTransactions.get(row).getFileName();
+                        String filename = transaction.getFileName();
+                        // The row may be of a branch which is not the main chain anymore
+                        String stored = controller.resolveFileName(filename, transaction.getVersion());
+                        if (stored == null) {
+                            JOptionPane.showMessageDialog(QueryScreen.this, "No such version: v" + transaction.getVersion(),
+                                    filename, JOptionPane.ERROR_MESSAGE);
+                            return;
+                        }
                         JFileChooser fileChooser = new JFileChooser();
                         fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
                         int returnVal = fileChooser.showOpenDialog(QueryScreen.this);
@@ -232,10 +231,9 @@ public class QueryScreen extends JPanel {
                         if (returnVal == JFileChooser.APPROVE_OPTION) {
                             String path = fileChooser.getSelectedFile().getAbsolutePath();
                             path = path + "/" + filename ;
-                            filename += currTransactions.get(row).getVersion();
                             popupMenu.setVisible(false);
 
-                            controller.showDownload(filename, path);
+                            controller.showDownload(stored, path);
                         }
                         else
                         {
@@ -244,6 +242,16 @@ public class QueryScreen extends JPanel {
                             popupMenu.setVisible(false);
                         }
                     });
+                    versions.addActionListener(e -> {
+                        popupMenu.setVisible(false);
+                        StringBuilder history = new StringBuilder();
+                        for (FileVersionIndex.FileVersion version : controller.getFileHistory(transaction.getFileName()))
+                            history.append("v").append(version.getVersion()).append("   ")
+                                    .append(new Date(version.getTimestamp())).append("   ")
+                                    .append(version.getDataSize()).append(" bytes\n");
+                        JOptionPane.showMessageDialog(QueryScreen.this, history.length() == 0 ? "No versions found." : history.toString(),
+                                transaction.getFileName(), JOptionPane.INFORMATION_MESSAGE);
+                    });
                     update.addActionListener(e -> {
                         download.setSelected(false);
                         JFileChooser fileChooser = new JFileChooser();
@@ -256,7 +264,7 @@ public class QueryScreen extends JPanel {
                             String path = fileChooser.getSelectedFile().getAbsolutePath();
                             String fileName = fileChooser.getSelectedFile().getName();
                             try {
-                                controller.updateData(currTransactions.get(row), path, fileName);
+                                controller.updateData(transaction, path, fileName);
                             } catch (InterruptedException e1) {
                                 e1.printStackTrace();
                             }
@@ -275,4 +283,79 @@ public class QueryScreen extends JPanel {
             }
         }
     }
+
+    private void cancelQuery() {
+        if (cursor != null) {
+            cursor.cancel();
+            cursor = null;
+            fetching = null;
+            progressBar.setIndeterminate(false);
+        }
+    }
+
+    // Fetches the next page when the last rows are visible, or the rows do not fill the table yet
+    private void fetchIfNeeded() {
+        if (cursor == null || fetching != null)
+            return;
+        Rectangle visible = results.getVisibleRect();
+        int last = results.rowAtPoint(new Point(visible.x, visible.y + visible.height - 1));
+        if (last >= 0 && resultsModel.getRowCount() - last > Config.QUERY_PAGE_SIZE / 2)
+            return;
+        progressBar.setIndeterminate(true);
+        fetching = new PageWorker(cursor);
+        controller.runQuery(fetching);
+    }
+
+    // A query which is still running is stopped when its text changes
+    class QueryListener implements DocumentListener {
+
+        public void insertUpdate(DocumentEvent e) {
+            cancelQuery();
+        }
+
+        public void removeUpdate(DocumentEvent e) {
+            cancelQuery();
+        }
+
+        public void changedUpdate(DocumentEvent e) {
+        }
+    }
+
+    /**
+     * Reads the next page of the cursor on the query executor and appends its ids to
+     * the table on the event thread. The cursor goes no further than the rows which
+     * were scrolled to, a query which is never scrolled to its end is not run to it.
+     */
+    class PageWorker extends SwingWorker<int[], Void> {
+
+        private final QueryCursor cursor;
+        private boolean more;
+
+        PageWorker(QueryCursor cursor) {
+            this.cursor = cursor;
+        }
+
+        protected int[] doInBackground() {
+            int[] ids = cursor.next(Config.QUERY_PAGE_SIZE);
+            more = cursor.hasNext();
+            return ids;
+        }
+
+        protected void done() {
+            if (fetching != this)
+                return;
+            fetching = null;
+            progressBar.setIndeterminate(false);
+            try {
+                resultsModel.addRows(get());
+            } catch (InterruptedException | ExecutionException e) {
+                more = false;
+            }
+            if (more)
+                fetchIfNeeded();
+            else
+                QueryScreen.this.cursor = null;
+            repaint();
+        }
+    }
 }
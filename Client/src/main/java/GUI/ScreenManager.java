@@ -2,9 +2,14 @@ package GUI;
 
 import Blockchain.Block;
 import Blockchain.Blockchain;
+import Blockchain.FileVersionIndex;
 import Blockchain.Transaction;
+import Blockchain.TransactionIndex;
+import Query.QueryCache;
+import Query.QueryCursor;
 import Util.Config;
 import Util.CrypDist;
+import Util.ExecutorRegistry;
 import jdk.nashorn.internal.scripts.JO;
 import sun.awt.ConstrainableGraphics;
 
@@ -20,7 +25,10 @@ import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -31,6 +39,9 @@ public class ScreenManager extends JFrame implements WindowListener{
     private CrypDist crypDist;
     JPanel currentView;
     private String userName;
+    // Queries run one at a time off the event thread
+    private final ExecutorService queryExecutor = ExecutorRegistry.executor(ExecutorRegistry.QUERY);
+    private final QueryCache queryCache = new QueryCache(Config.QUERY_CACHE_SIZE);
 
     private final int dimensionX = 1000;
     private final int dimensionY = 600;
@@ -197,33 +208,35 @@ public class ScreenManager extends JFrame implements WindowListener{
         final GlossyButton cancel = new GlossyButton("Cancel");
         final JPanel bottomP = new JPanel();
 
-        final Thread t = new Thread(() -> dlg.setVisible(true));
-
-        final Thread download = new Thread(() -> {
+        // Only the download runs on the executor, the dialog is shown and updated on the event thread
+        final FutureTask<?> download = new FutureTask<Object>(() -> {
             crypDist.getBlockchainManager().downloadFile(filename, path);
             System.out.println(filename + " - " + path + " is downloaded");
-            try {
-                TimeUnit.SECONDS.sleep(5);
-                t.interrupt();
-                label.setText("Data downloaded..");
-                progressBar.setEnabled(false);
-                progressBar.setVisible(false);
-                bottomP.remove(cancel);
-                GlossyButton ok = new GlossyButton("OK");
-                ok.addActionListener(e -> dlg.dispose());
-                bottomP.add(ok);
-                ok.repaint();
-                dlg.repaint();
-                dlg.setVisible(true);
-            } catch (InterruptedException e) {
-                dlg.dispose();
+        }, null) {
+            protected void done() {
+                if (isCancelled())
+                    return;
+                javax.swing.Timer finish = new javax.swing.Timer((int) TimeUnit.SECONDS.toMillis(5), e -> {
+                    if (!dlg.isDisplayable())
+                        return;
+                    label.setText("Data downloaded..");
+                    progressBar.setEnabled(false);
+                    progressBar.setVisible(false);
+                    bottomP.remove(cancel);
+                    GlossyButton ok = new GlossyButton("OK");
+                    ok.addActionListener(event -> dlg.dispose());
+                    bottomP.add(ok);
+                    bottomP.revalidate();
+                    dlg.repaint();
+                });
+                finish.setRepeats(false);
+                finish.start();
             }
-        });
+        };
 
         cancel.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                download.interrupt();
-                t.interrupt();
+                download.cancel(true);
                 dlg.dispose();
             }
         } );
@@ -234,44 +247,53 @@ public class ScreenManager extends JFrame implements WindowListener{
         dlg.setSize(600, 140);
         dlg.setLocationRelativeTo(this);
 
-        t.start();
-        download.start();
+        runInBackground(download);
+        SwingUtilities.invokeLater(() -> dlg.setVisible(true));
     }
 
-    public HashMap<String, ArrayList<Transaction>> query(String text) {
-        // TODO query();
+    public HashMap<String, ArrayList<Transaction>> query(String text) throws ParseException {
         HashMap<String, ArrayList<Transaction>> queryResults = new HashMap<>();
-//        ArrayList<String> arr1 = new ArrayList<>();
-//        arr1.add("A");
-//        arr1.add("B");
-//        ArrayList<String> arr2 = new ArrayList<>();
-//        arr1.add("C");
-//        arr1.add("D");
-//        queryResults.put("Hash1", arr1);
-//        queryResults.put("Hash2", arr2);
 
-        Blockchain blockchain = crypDist.getBlockchainManager().getBlockchain();
-        Set<String> keySet = blockchain.getKeySet();
-        Iterator<String> iterator = keySet.iterator();
-        while (iterator.hasNext())
+        TransactionIndex index = crypDist.getBlockchainManager().getBlockchain().getTransactionIndex();
+        String tip = crypDist.getBlockchainManager().getBlockchain().getLastBlock();
+        for (int id : queryCache.execute(text, index, tip))
         {
-            Block block = blockchain.getBlock(iterator.next());
-
-            ArrayList<Transaction> transactions = block.getTransactions();
-            int index = 0;
-            ArrayList<Transaction> selected = new ArrayList<>();
-            for (int i = 0; i < transactions.size(); i++)
-            {
-                String summary = transactions.get(i).getDataSummary();
-                if (summary.contains(text))
-                    selected.add(transactions.get(i));
-            }
-            if (selected.size() > 0)
-                queryResults.put(block.getHash(), selected);
+            String hash = index.getBlockHash(id);
+            if (!queryResults.containsKey(hash))
+                queryResults.put(hash, new ArrayList<>());
+            queryResults.get(hash).add(index.getTransaction(id));
         }
         return queryResults;
     }
 
+    // Null if the version is not in the main chain
+    public String resolveFileName(String fileName, int version) {
+        return crypDist.getBlockchainManager().resolveFileName(fileName, version);
+    }
+
+    public java.util.List<FileVersionIndex.FileVersion> getFileHistory(String fileName) {
+        return crypDist.getBlockchainManager().getFileHistory(fileName);
+    }
+
+    public TransactionIndex getTransactionIndex() {
+        return crypDist.getBlockchainManager().getBlockchain().getTransactionIndex();
+    }
+
+    // Parses the query, the cursor runs it when it is read, a repeated query comes from the cache
+    public QueryCursor openQuery(String text) throws ParseException {
+        String tip = crypDist.getBlockchainManager().getBlockchain().getLastBlock();
+        return queryCache.open(text, getTransactionIndex(), tip);
+    }
+
+    public void runQuery(SwingWorker<?, ?> worker) {
+        queryExecutor.execute(worker);
+    }
+
+    // Work of the screens which must not block the event thread
+    public void runInBackground(Runnable task) {
+        ExecutorRegistry.executor(ExecutorRegistry.GUI).execute(task);
+    }
+
     public boolean isPathExist(String text) {
         File file = new File(text);
         return file.exists();
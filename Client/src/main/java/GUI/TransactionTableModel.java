@@ -0,0 +1,109 @@
+package GUI;
+
+import Blockchain.Transaction;
+import Query.QueryCursor;
+import Util.Config;
+import Util.LruCache;
+
+import javax.swing.table.AbstractTableModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rows of the query results. Only the ids of the rows which were fetched from the
+ * cursor are kept, the transactions are read page by page when the table paints
+ * them and only the last Config.QUERY_WINDOW_PAGES pages which were painted are
+ * kept, so the uploader of a row is looked up only once it is visible. Ids are
+ * appended a page at a time as the table is scrolled towards its end.
+ */
+public class TransactionTableModel extends AbstractTableModel {
+
+    private static final long serialVersionUID = 1L;
+    private static final String[] COLUMNS = {"Data summary", "File name", "User name"};
+
+    private QueryCursor cursor;
+    private int[] ids;
+    private int rowCount;
+    private final LruCache<Integer, List<Transaction>> pages;
+
+    public TransactionTableModel() {
+        ids = new int[0];
+        pages = new LruCache<>(Config.QUERY_WINDOW_PAGES);
+    }
+
+    // Rows of the cursor, which are fetched by the screen
+    public void open(QueryCursor cursor) {
+        clear();
+        this.cursor = cursor;
+    }
+
+    public void clear() {
+        int size = rowCount;
+        cursor = null;
+        ids = new int[0];
+        rowCount = 0;
+        pages.clear();
+        if (size > 0)
+            fireTableRowsDeleted(0, size - 1);
+    }
+
+    public void addRows(int[] page) {
+        if (page.length == 0)
+            return;
+        int first = rowCount;
+        if (rowCount + page.length > ids.length)
+            ids = Arrays.copyOf(ids, Math.max(ids.length * 2, rowCount + page.length));
+        System.arraycopy(page, 0, ids, rowCount, page.length);
+        rowCount += page.length;
+        // The last page may have been read while it was shorter
+        pages.remove(first / Config.QUERY_PAGE_SIZE);
+        fireTableRowsInserted(first, rowCount - 1);
+    }
+
+    public Transaction getTransaction(int row) {
+        if (row < 0 || row >= rowCount || cursor == null)
+            return null;
+        int page = row / Config.QUERY_PAGE_SIZE;
+        List<Transaction> transactions = pages.get(page);
+        if (transactions == null) {
+            int first = page * Config.QUERY_PAGE_SIZE;
+            int end = Math.min(rowCount, first + Config.QUERY_PAGE_SIZE);
+            transactions = new ArrayList<>(end - first);
+            for (int i = first; i < end; i++)
+                transactions.add(cursor.getTransaction(ids[i]));
+            pages.put(page, transactions);
+        }
+        return transactions.get(row % Config.QUERY_PAGE_SIZE);
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    public boolean isCellEditable(int row, int column) {
+        return false;
+    }
+
+    public Object getValueAt(int row, int column) {
+        Transaction t = getTransaction(row);
+        if (t == null)
+            return "";
+        switch (column) {
+            case 0:
+                return t.getDataSummary();
+            case 1:
+                return t.getFileName();
+            default:
+                return t.getSignature();
+        }
+    }
+}
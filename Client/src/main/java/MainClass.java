@@ -1,8 +1,18 @@
+import Blockchain.FileVersionIndex;
+import Blockchain.TransactionIndex;
+import Blockchain.UploadStatistics;
 import GUI.MainScreen;
 import GUI.ScreenManager;
+import Query.ChainScanner;
+import Query.QueryNode;
+import Query.QueryParser;
 import Util.CrypDist;
 import Util.CustomAppender;
 
+import java.text.ParseException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 /**
@@ -32,10 +42,13 @@ public class MainClass {
                 String name = null;
                 String path = null;
                 String summary = null;
+                Integer version = null;
                 if (inputSplitted.length > 1) {
                     name = inputSplitted[1];
                     if (inputSplitted.length > 2) {
                         path = inputSplitted[2];
+                        if (inputSplitted.length > 3 && inputSplitted[3].matches("\\d+"))
+                            version = Integer.valueOf(inputSplitted[3]);
                     }
                 }
                 switch (x) {
@@ -56,9 +69,48 @@ public class MainClass {
                         break;
                     case "download":
                         CustomAppender.clear();
-                        c.getBlockchainManager().downloadFile(name, path);
+                        // Latest version unless one is given
+                        String stored = c.getBlockchainManager().resolveFileName(name, version);
+                        if (stored == null) {
+                            System.out.println("No such version: " + name + " v" + version);
+                            break;
+                        }
+                        c.getBlockchainManager().downloadFile(stored, path);
                         System.out.println(CustomAppender.getMessages());
                         break;
+                    case "versions":
+                        List<FileVersionIndex.FileVersion> history = c.getBlockchainManager().getFileHistory(name);
+                        if (history.isEmpty())
+                            System.out.println(c.requestFileVersions(name));
+                        for (FileVersionIndex.FileVersion v : history)
+                            System.out.println("v" + v.getVersion() + "\t" + new Date(v.getTimestamp()) + "\t"
+                                    + v.getDataSize() + " bytes\t" + v.getBlockHash());
+                        break;
+                    case "stats":
+                        // Count and size of the matching uploads in the chain, by uploader
+                        try {
+                            QueryNode node = QueryParser.parse(name);
+                            TransactionIndex index = c.getBlockchainManager().getBlockchain().getTransactionIndex();
+                            ChainScanner scanner = new ChainScanner(c.getBlockchainManager().getBlockchain().getMainChain());
+                            ChainScanner.Result result = scanner.scan(t -> node.matches(t, index), node, false, index::getUploader);
+                            System.out.println(result.getCount() + " uploads, " + result.getDataSize() + " bytes");
+                            for (Map.Entry<String, ChainScanner.Aggregate> group : result.getGroups().entrySet())
+                                System.out.println(group.getKey() + "\t" + group.getValue().getCount() + " uploads, "
+                                        + group.getValue().getDataSize() + " bytes");
+                        } catch (ParseException e) {
+                            System.out.println("Query is not valid: " + e.getMessage());
+                        }
+                        break;
+                    case "report":
+                        // Uploads of every user per day
+                        Map<String, List<UploadStatistics.Bucket>> report =
+                                c.getBlockchainManager().getUploadStatistics(Long.MIN_VALUE, Long.MAX_VALUE);
+                        for (Map.Entry<String, List<UploadStatistics.Bucket>> user : report.entrySet())
+                            for (UploadStatistics.Bucket bucket : user.getValue())
+                                System.out.println(user.getKey() + "\t" + new Date(bucket.getStart()) + "\t"
+                                        + bucket.getCount() + " uploads, " + bucket.getDataSize() + " bytes, "
+                                        + bucket.getDistinctFiles() + " files");
+                        break;
                     case "save":
                         CustomAppender.clear();
                         c.getBlockchainManager().saveBlockchain();
@@ -0,0 +1,278 @@
+package P2P;
+
+import Blockchain.Block;
+import Blockchain.Blockchain;
+import Blockchain.BlockchainManager;
+import Util.Config;
+import Util.ExecutorRegistry;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Download of the missing blocks. Batches of Config.SYNC_BATCH_SIZE blocks are requested
+ * from the peers which their statistics favour, and at most Config.SYNC_WINDOW blocks are
+ * requested or waiting at a time, so the memory does not grow with the gap. The blocks of
+ * a response are checked by the sync executor as soon as it lands, while the other
+ * requests are on the way, and they are added in the order of the chain as soon as they
+ * follow the last one.
+ *
+ * A block which is received before the block it follows waits for it, and the one it
+ * follows is requested next. If the window is full of waiting blocks the highest half
+ * of them is asked again later, lowest first, so the gap is filled in the order of the
+ * chain once every block is seen. A block which cannot be received in
+ * Config.SYNC_MAX_TRIALS in a row is given up.
+ */
+class BlockSync {
+
+    private static Logger log = Client.log;
+
+    private final ConnectionPool connections;
+    private final List<Peer> peers;
+    private final Supplier<Blockchain> blockchain;
+    // Adds a block which follows the last one
+    private final Consumer<Block> add;
+
+    // Hashes which are not requested yet. The ones which received blocks follow are requested first,
+    // then the ones which are never received, then the ones which are received before by their
+    // heights. A hash may be in more than one, it is requested once as long as it is queued
+    private final ArrayDeque<String> urgent;
+    private final ArrayDeque<String> pending;
+    private final PriorityQueue<String> ordered;
+    private final Set<String> queued;
+    // Heights of the received blocks, which give the order of the chain once they are all received
+    private final HashMap<String, Integer> heights;
+    private final HashMap<String, Integer> trials;
+    // Received blocks by the hash of the block they follow
+    private final HashMap<String, ArrayDeque<Block>> waiting;
+    private final LinkedBlockingQueue<Landing> landed;
+    private int waitingCount;
+    private int requestedCount;
+    private String tip;
+    private int added;
+    private int addedAtEviction;
+    private int lowestAtEviction;
+    private int receivedAtEviction;
+    private int stalls;
+
+    BlockSync(ConnectionPool connections, List<Peer> peers, BlockchainManager manager) {
+        this(connections, peers, manager::getBlockchain, manager::addReceivedBlock);
+    }
+
+    BlockSync(ConnectionPool connections, List<Peer> peers, Supplier<Blockchain> blockchain, Consumer<Block> add) {
+        this.connections = connections;
+        this.peers = new ArrayList<>(peers);
+        this.blockchain = blockchain;
+        this.add = add;
+        addedAtEviction = -1;
+        lowestAtEviction = Integer.MAX_VALUE;
+        urgent = new ArrayDeque<>();
+        pending = new ArrayDeque<>();
+        heights = new HashMap<>();
+        ordered = new PriorityQueue<>(Comparator.comparingInt(heights::get));
+        queued = new HashSet<>();
+        trials = new HashMap<>();
+        waiting = new HashMap<>();
+        landed = new LinkedBlockingQueue<>();
+    }
+
+    // Number of the blocks which are added after the last block
+    int run(Set<String> needed) throws InterruptedException {
+        if (peers.isEmpty())
+            return 0;
+        tip = blockchain.get().getLastBlock();
+        for (String hash : needed)
+            queue(hash);
+
+        while (true) {
+            request();
+            if (requestedCount == 0) {
+                if (queued.isEmpty())
+                    break;
+                // The window is full of blocks which wait for the ones in front of them
+                evict();
+                continue;
+            }
+            receive(landed.take());
+        }
+
+        apply(true);
+        if (waitingCount > 0)
+            log.warn(waitingCount + " received blocks do not follow the blockchain.");
+        return added;
+    }
+
+    private void request() {
+        while (!queued.isEmpty() && requestedCount + waitingCount < Config.SYNC_WINDOW) {
+            int size = Math.min(Config.SYNC_BATCH_SIZE, Config.SYNC_WINDOW - requestedCount - waitingCount);
+            List<String> batch = new ArrayList<>(size);
+            while (batch.size() < size && !queued.isEmpty()) {
+                String hash = !urgent.isEmpty() ? urgent.poll() : !pending.isEmpty() ? pending.poll() : ordered.poll();
+                if (queued.remove(hash))
+                    batch.add(hash);
+            }
+            requestedCount += batch.size();
+
+            connections.requestBlocksAsync(peers, batch)
+                    .thenApplyAsync(this::check, ExecutorRegistry.executor(ExecutorRegistry.SYNC))
+                    .whenComplete((blocks, e) -> {
+                        if (e != null)
+                            log.debug(e);
+                        landed.add(new Landing(batch, e == null ? blocks : Collections.emptyMap()));
+                    });
+        }
+    }
+
+    // Blocks which are what they were asked for, their filters are built here off the applying thread
+    private Map<String, Block> check(Map<String, Block> blocks) {
+        HashMap<String, Block> valid = new HashMap<>();
+        for (Map.Entry<String, Block> entry : blocks.entrySet()) {
+            Block block = entry.getValue();
+            if (block == null || !entry.getKey().equals(block.getHash()) || block.getPreviousHash() == null
+                    || !block.validateBlock()) {
+                log.warn("Received block " + entry.getKey() + " is not valid.");
+                continue;
+            }
+            block.rebuildFilter();
+            valid.put(entry.getKey(), block);
+        }
+        return valid;
+    }
+
+    private void receive(Landing landing) {
+        requestedCount -= landing.hashes.size();
+        for (String hash : landing.hashes) {
+            Block block = landing.blocks.get(hash);
+            if (block == null) {
+                retry(hash);
+                continue;
+            }
+            trials.remove(hash);
+            heights.putIfAbsent(hash, block.getLength());
+            String previous = block.getPreviousHash();
+            // A block of another branch which leaves the chain before its last block cannot follow it
+            if (!previous.equals(tip) && blockchain.get().getBlock(previous) != null) {
+                log.debug("Received block " + hash + " does not follow the last block.");
+                continue;
+            }
+            waiting.computeIfAbsent(previous, k -> new ArrayDeque<>()).add(block);
+            waitingCount++;
+            // The block it follows is needed before any other
+            if (queued.contains(previous))
+                urgent.add(previous);
+        }
+        apply(false);
+    }
+
+    private void apply(boolean last) {
+        ArrayDeque<Block> children;
+        while ((children = waiting.get(tip)) != null) {
+            Block block = branch(children, last);
+            if (block == null)
+                return;
+            waiting.remove(tip);
+            waitingCount -= children.size();
+            // Blocks of the other branches cannot follow the chain any more, they are not added as before
+            add.accept(block);
+            tip = block.getHash();
+            added++;
+        }
+    }
+
+    // Block of the branch which is received further, null if it is not known yet
+    private Block branch(ArrayDeque<Block> children, boolean last) {
+        if (children.size() == 1)
+            return children.peek();
+        for (Block child : children) {
+            if (waiting.containsKey(child.getHash()))
+                return child;
+        }
+        return last ? children.peek() : null;
+    }
+
+    // Asks the highest half of the waiting blocks again later, the ones which are needed sooner keep their
+    // place. Once every block is received the ones which are asked again come in the order of the chain
+    private void evict() {
+        List<Block> blocks = new ArrayList<>(waitingCount);
+        for (ArrayDeque<Block> children : waiting.values())
+            blocks.addAll(children);
+        blocks.sort(Comparator.comparingInt(Block::getLength));
+        waiting.clear();
+        waitingCount = 0;
+
+        // The download ends if no block is added or received for the first time, and the lowest waiting
+        // one does not get any closer to the chain in Config.SYNC_MAX_TRIALS evictions
+        int lowest = blocks.isEmpty() ? Integer.MAX_VALUE : blocks.get(0).getLength();
+        if (added != addedAtEviction || heights.size() != receivedAtEviction || lowest < lowestAtEviction)
+            stalls = 0;
+        else if (++stalls >= Config.SYNC_MAX_TRIALS) {
+            log.warn(queued.size() + blocks.size() + " blocks cannot be received, the download stalls.");
+            urgent.clear();
+            pending.clear();
+            ordered.clear();
+            queued.clear();
+            return;
+        }
+        addedAtEviction = added;
+        receivedAtEviction = heights.size();
+        lowestAtEviction = lowest;
+
+        int keep = Config.SYNC_WINDOW / 2;
+        for (Block block : blocks) {
+            if (waitingCount < keep) {
+                waiting.computeIfAbsent(block.getPreviousHash(), k -> new ArrayDeque<>()).add(block);
+                waitingCount++;
+            }
+            else {
+                queue(block.getHash());
+            }
+        }
+        for (String previous : waiting.keySet()) {
+            if (queued.contains(previous))
+                urgent.add(previous);
+        }
+    }
+
+    private void retry(String hash) {
+        int trial = trials.merge(hash, 1, Integer::sum);
+        if (trial < Config.SYNC_MAX_TRIALS) {
+            queue(hash);
+            // Received blocks wait for it
+            if (waiting.containsKey(hash))
+                urgent.add(hash);
+        }
+        else
+            log.warn("Block " + hash + " cannot be received.");
+    }
+
+    private void queue(String hash) {
+        if (!queued.add(hash))
+            return;
+        if (heights.containsKey(hash))
+            ordered.add(hash);
+        else
+            pending.add(hash);
+    }
+
+    private static class Landing {
+        final List<String> hashes;
+        final Map<String, Block> blocks;
+
+        Landing(List<String> hashes, Map<String, Block> blocks) {
+            this.hashes = hashes;
+            this.blocks = blocks;
+        }
+    }
+}
@@ -1,13 +1,18 @@
 package P2P;
 
+import Blockchain.Block;
+import Blockchain.BlockCodec;
+import Blockchain.BlockchainManager;
 import Util.CrypDist;
 import Util.Config;
+import Util.ExecutorRegistry;
 import com.google.gson.Gson;
 
 import com.google.gson.JsonObject;
 import com.mchange.v2.collection.MapEntry;
 import org.apache.log4j.Logger;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -15,18 +20,15 @@ import java.io.ObjectInputStream;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Observable;
-import java.util.Random;
 import java.util.Set;
 import java.util.Timer;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Client is actual working class for peers.
@@ -45,6 +47,9 @@ public class Client extends Observable implements Runnable{
     private int serverPort;
     private int heartBeatPort;
     private boolean active;
+    private ConnectionPool connections;
+    private SessionManager sessions;
+    private GossipManager gossip;
     // Added to support the hash choosing algorithm.
     int lastSize;
 
@@ -57,6 +62,9 @@ public class Client extends Observable implements Runnable{
         swAdr = Config.SERVER_ADDRESS;
         swPort = Config.SERVER_PORT;
         lastSize = 0;
+        connections = new ConnectionPool();
+        sessions = new SessionManager(crypDist, connections);
+        gossip = new GossipManager(this);
 
         initialization();
     }
@@ -133,70 +141,61 @@ public class Client extends Observable implements Runnable{
 
     public void broadCastMessage(String message) {
 
-        ArrayList<Thread> threads = new ArrayList<>(peerList.size());
-        for(Peer peer: peerList.keySet()) {
-            Thread t = new Thread(new MessageTask(peer,message));
-            threads.add(t);
-            t.start();
+        // Only the fan-out is sent to, the others get it from them
+        if(Config.GOSSIP) {
+            gossip.publish(message);
+            return;
         }
 
-        try {
-            for(Thread t: threads) {
-                t.join();
+        Map<Peer, CompletableFuture<String>> futures = broadCastMessageAsync(message, false);
+        for(CompletableFuture<String> future : futures.values()) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                log.warn("Message interrupted.");
+                return;
+            } catch (ExecutionException e) {
+                // Logged when the message fails
             }
-        } catch (InterruptedException e) {
-            log.warn("Message interrupted.");
         }
-
     }
 
     public void sendMessage(String adr, String message) {
 
-        Thread t = null;
-        for(Peer peer: peerList.keySet()){
-            if(peer.getAddress().toString().equals(adr)){
-                 t = new Thread(new MessageTask(peer,message));
-                 t.start();
-            }
-        }
-        if(t == null){
+        Peer peer = findPeer(adr);
+        if(peer == null){
             log.warn("Peer cannot found.");
-        } else {
-            try {
-                t.join();
-            } catch (InterruptedException e) {
-                log.warn("Message sending is interrupted before success.");
-            }
+            return;
+        }
+        try {
+            sendMessageAsync(peer, message, false).get();
+        } catch (InterruptedException e) {
+            log.warn("Message sending is interrupted before success.");
+        } catch (ExecutionException e) {
+            // Logged when the message fails
         }
     }
 
     public ArrayList<String> broadCastMessageResponse(String message) {
+        return broadCastMessageResponse(message, "KEYSET CANNOT BE RECEIVED.");
+    }
 
-        ExecutorService executor = Executors.newCachedThreadPool();
-        ArrayList<Future<String>> futures = new ArrayList<>();
+    // Responses of the peers, the failure is logged for every peer which does not answer
+    public ArrayList<String> broadCastMessageResponse(String message, String failure) {
 
         log.info("BROADCASTED TO " + peerList.size() + " PEERS");
-        for(Peer peer:peerList.keySet()) {
-            Callable<String> task = new ResponsedMessageTask(peer,message);
-            Future<String> future = executor.submit(task);
-            futures.add(future);
-        }
+        Map<Peer, CompletableFuture<String>> futures = broadCastMessageAsync(message, true);
 
         ArrayList<String> result = new ArrayList<>();
-
-        try {
-            for(Future<String> future: futures) {
-                String res = future.get();
-                if(res != null && !res.equals(""))
-                {
-                    log.debug("RESULT IS ADDED: " + res);
-                    result.add(res);
-                }
-                else
-                    log.warn("KEYSET CANNOT BE RECEIVED.");
+        for(CompletableFuture<String> future : futures.values()) {
+            String res = responseOf(future);
+            if(res != null && !res.equals(""))
+            {
+                log.debug("RESULT IS ADDED: " + res);
+                result.add(res);
             }
-        } catch (Exception e) {
-            log.warn("KEYSET CANNOT BE RECEIVED.");
+            else
+                log.warn(failure);
         }
 
         return result;
@@ -204,50 +203,77 @@ public class Client extends Observable implements Runnable{
 
     public HashMap<String,String> broadCastMessageResponseWithIp(String message) {
 
-        ExecutorService executor = Executors.newCachedThreadPool();
-        HashMap<Peer,Future<String>> futures = new HashMap<>();
-
-        for(Peer peer:peerList.keySet()) {
-            Callable<String> task = new ResponsedMessageTask(peer,message);
-            Future<String> future = executor.submit(task);
-            futures.put(peer,future);
-        }
+        Map<Peer, CompletableFuture<String>> futures = broadCastMessageAsync(message, true);
 
         HashMap<String,String> result = new HashMap<>();
-
-
-        for(Map.Entry<Peer,Future<String>> entry : futures.entrySet()) {
-            try {
-                String res  = entry.getValue().get();
-                if(res != null && !res.equals(""))
-                    result.put(entry.getKey().getAddress().toString(),res);
-            } catch (Exception e) {}
+        for(Map.Entry<Peer, CompletableFuture<String>> entry : futures.entrySet()) {
+            String res = responseOf(entry.getValue());
+            if(res != null && !res.equals(""))
+                result.put(entry.getKey().getAddress().toString(),res);
         }
 
         return result;
     }
 
+    public String sendMessageResponse(String adr, String message) {
 
+        Peer peer = findPeer(adr);
+        if(peer == null)
+            return null; // OR "" can be returned.s
+        return responseOf(sendMessageAsync(peer, message, true));
+    }
 
-    public String sendMessageResponse(String adr, String message) {
+    /**
+     * Sends the message to every peer at once over their channels, no thread waits for a peer.
+     * The futures give the responses of the peers if a response is asked, "" otherwise, and
+     * fail if the message cannot be sent in ConnectionPool.defaultTimeout().
+     */
+    public Map<Peer, CompletableFuture<String>> broadCastMessageAsync(String message, boolean response) {
+        HashMap<Peer, CompletableFuture<String>> futures = new HashMap<>();
+        for(Peer peer : peerList.keySet())
+            futures.put(peer, sendMessageAsync(peer, message, response));
+        return futures;
+    }
 
-        Future<String> f = null;
-        ExecutorService executor = Executors.newCachedThreadPool();
-        for(Peer peer: peerList.keySet()){
-            if(peer.getAddress().toString().equals(adr)){
-                Callable<String> task = new ResponsedMessageTask(peer,message);
-                f = executor.submit(task);
+    public CompletableFuture<String> sendMessageAsync(Peer peer, String message, boolean response) {
+        int flag = response ? Config.MESSAGE_OUTGOING_RESPONSE : Config.MESSAGE_OUTGOING;
+        CompletableFuture<String> future;
+        try {
+            // Signing may make a handshake with the peer first
+            future = CompletableFuture
+                    .supplyAsync(() -> sessions.seal(peer, message), ExecutorRegistry.executor(ExecutorRegistry.SESSIONS))
+                    .thenCompose(msg -> connections.sendAsync(peer, flag, msg, ConnectionPool.defaultTimeout()));
+        } catch (RejectedExecutionException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        future.whenComplete((res, e) -> {
+            if (e != null) {
+                log.warn("Message cannot be sent to " + peer.getAddress() + ": " + e);
+                log.debug(message);
             }
+        });
+        return future;
+    }
+
+    // Response of the future, null if the message failed
+    private String responseOf(CompletableFuture<String> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
         }
+    }
 
-        if(f != null) {
-            try {
-                return f.get();
-            } catch (Exception e) {
-                return null;
-            }
+    private Peer findPeer(String adr) {
+        for(Peer peer: peerList.keySet()){
+            if(peer.getAddress().toString().equals(adr))
+                return peer;
         }
-        return null; // OR "" can be returned.s
+        return null;
     }
 
 
@@ -277,63 +303,54 @@ public class Client extends Observable implements Runnable{
         return heartBeatPort;
     }
 
-    public HashMap<String, String > receiveBlocks(Set<String> neededBlocks) {
-
-        log.debug("RECEIVE BLOCKS ARE CALLED");
+    public ConnectionPool getConnections() {
+        return connections;
+    }
 
-        for(String s : neededBlocks)
-            log.debug("STRING:" + s);
+    // Binary form of a block for the peers, empty if this node does not have it
+    public byte[] getBlockData(String hash) throws IOException {
+        BlockchainManager blockchainManager = crypDist.getBlockchainManager();
+        Block block = blockchainManager == null ? null : blockchainManager.getBlock(hash);
+        return block == null ? new byte[0] : BlockCodec.encode(block);
+    }
 
-        int peerSize = peerList.size();
-        Peer[] peers = new Peer[peerSize];
-        Iterator<Peer> i = peerList.keySet().iterator();
+    // Binary forms of the blocks, each after its length, 0 for a block which this node does not have
+    public byte[] getBlocksData(List<String> hashes) throws IOException {
+        BlockchainManager blockchainManager = crypDist.getBlockchainManager();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
         int count = 0;
-        while(i.hasNext()){
-            peers[count++] = i.next();
+        for(String hash : hashes) {
+            // A larger batch is answered partly, the rest is asked again
+            Block block = blockchainManager == null || count++ >= Config.BLOCK_BATCH_SIZE ? null : blockchainManager.getBlock(hash);
+            byte[] data = block == null ? new byte[0] : BlockCodec.encode(block);
+            out.writeInt(data.length);
+            out.write(data);
         }
+        out.flush();
+        return bytes.toByteArray();
+    }
 
-        HashSet<String> remainingTasks = new HashSet<>(neededBlocks);
-        HashMap<String,String> actualResults = new HashMap<>();
-
-        Random r = new Random();
-        while(remainingTasks.size() > 0) {
-            count = r.nextInt(peerSize);
-
-            Iterator<String> iterator = remainingTasks.iterator();
-            HashMap<String, Future<String>> assignments = new HashMap<>();
-            ExecutorService executor = Executors.newCachedThreadPool();
-            while(iterator.hasNext()){
-                String hash = iterator.next();
-
-                //Message to be sent for requesting block
-                JsonObject obj = new JsonObject();
-                obj.addProperty("flag",Config.MESSAGE_REQUEST_BLOCK);
-                obj.addProperty("data", hash);
-
-                Gson gson = new Gson();
-                Callable<String> task = new ResponsedMessageTask(peers[count % peerSize], gson.toJson(obj, JsonObject.class));
-                Future<String> f = executor.submit(task);
+    public SessionManager getSessions() {
+        return sessions;
+    }
 
-                assignments.put(hash,f);
-                count++;
-            }
+    public GossipManager getGossip() {
+        return gossip;
+    }
 
-            for(Map.Entry<String, Future<String>> entry : assignments.entrySet()) {
-                try {
-                    String response = entry.getValue().get();
-                    if(response != null && !response.equals("")) {
-                        actualResults.put(entry.getKey(),response);
-                        remainingTasks.remove(entry.getKey());
-                    }
+    // Downloads the blocks and adds them to the blockchain in their order, the number of the added blocks
+    public int syncBlocks(Set<String> neededBlocks, BlockchainManager manager) {
 
-                } catch (Exception e) {
+        log.debug("SYNC BLOCKS IS CALLED WITH " + neededBlocks.size() + " BLOCKS");
 
-                }
-            }
+        try {
+            return new BlockSync(connections, new ArrayList<>(peerList.keySet()), manager).run(neededBlocks);
+        } catch (InterruptedException e) {
+            log.warn("Block download is interrupted.");
+            Thread.currentThread().interrupt();
+            return 0;
         }
-
-
-        return actualResults;
     }
 
     public ArrayList<String> receiveKeySet() {
@@ -342,4 +359,11 @@ public class Client extends Observable implements Runnable{
         obj.addProperty("flag",Config.MESSAGE_REQUEST_KEYSET);
         return broadCastMessageResponse(obj.toString());
     }
+
+    public ArrayList<String> receiveFileVersions(String fileName) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("flag",Config.MESSAGE_REQUEST_FILE_VERSIONS);
+        obj.addProperty("data", fileName);
+        return broadCastMessageResponse(obj.toString(), "FILE VERSIONS CANNOT BE RECEIVED.");
+    }
 }
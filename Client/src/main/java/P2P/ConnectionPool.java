@@ -0,0 +1,582 @@
+package P2P;
+
+import Blockchain.Block;
+import Blockchain.BlockCodec;
+import Util.Config;
+import Util.ExecutorRegistry;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Connections to the peers. A peer which talks in frames has one channel, which carries
+ * all of the requests to it at the same time, matched to their responses by correlation
+ * ids. Requests return futures which fail after the timeout of the request.
+ *
+ * A peer which does not answer the HELLO frame of a channel with a frame is talked to
+ * with object streams for Config.CONNECTION_RETRY_PERIOD, then frames are tried again.
+ * A peer which does not answer in time is only retried. Those connections carry one
+ * message at a time, up to Config.PEER_POOL_SIZE idle ones are kept per peer. An idle
+ * one is checked after Config.CONNECTION_CHECK_PERIOD and closed after
+ * Config.CONNECTION_IDLE_TIMEOUT. A peer which closes the connection after every
+ * message, as the oldest versions do, is sent every message over a new connection.
+ */
+public class ConnectionPool {
+
+    private static Logger log = Client.log;
+
+    // Least share of the largest weight which a peer keeps in the choice of the peers
+    private static final double MIN_SHARE = 0.02;
+
+    private final ConcurrentHashMap<Peer, Pool> pools;
+    // Opens the channels and talks to the older peers
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+
+    public ConnectionPool() {
+        pools = new ConcurrentHashMap<>();
+        executor = ExecutorRegistry.executor(ExecutorRegistry.NETWORK);
+        timer = ExecutorRegistry.scheduler();
+    }
+
+    // Time which a request may take with its retries, as long as the trials of a message took before
+    public static long defaultTimeout() {
+        return (long) Config.MESSAGE_TIMEOUT * Config.MESSAGE_MAX_TRIALS;
+    }
+
+    // Response of the peer, "" for a message without a response, null if it cannot be sent
+    public String send(Peer peer, int flag, String msg) {
+        if (!pool(peer).isBinary())
+            return call(peer, connection -> connection.exchange(flag, msg));
+        return await(sendAsync(peer, flag, msg, defaultTimeout()));
+    }
+
+    // Block of the peer, an empty optional if the peer does not have it, null if it cannot be received
+    public Optional<Block> requestBlock(Peer peer, String hash) {
+        if (!pool(peer).isBinary())
+            return call(peer, connection -> legacyBlock(connection, hash));
+        return await(requestBlockAsync(peer, hash, defaultTimeout()));
+    }
+
+    public CompletableFuture<String> sendAsync(Peer peer, int flag, String msg, long timeout) {
+        boolean response = flag == Config.MESSAGE_OUTGOING_RESPONSE;
+        byte type = response ? Frame.REQUEST : Frame.MESSAGE;
+        return callAsync(peer, type, msg.getBytes(StandardCharsets.UTF_8),
+                frame -> response ? frame.getText() : "",
+                connection -> connection.exchange(flag, msg), timeout);
+    }
+
+    public CompletableFuture<Optional<Block>> requestBlockAsync(Peer peer, String hash, long timeout) {
+        return callAsync(peer, Frame.BLOCK_REQUEST, hash.getBytes(StandardCharsets.UTF_8),
+                frame -> {
+                    byte[] data = frame.getContent();
+                    return data.length == 0 ? Optional.empty() : Optional.of(BlockCodec.decode(data));
+                },
+                connection -> legacyBlock(connection, hash), timeout);
+    }
+
+    /**
+     * Blocks of the peer by their hashes, which are asked in one request and sent in one
+     * response. Only the blocks which the peer has are in the map. The older peers are asked
+     * for every block, the ones which talk in frames over the same channel at once.
+     */
+    public CompletableFuture<Map<String, Block>> requestBlocksAsync(Peer peer, List<String> hashes, long timeout) {
+        byte[] content = String.join("\n", hashes).getBytes(StandardCharsets.UTF_8);
+        PeerStats stats = stats(peer);
+        long start = System.nanoTime();
+        stats.start();
+
+        CompletableFuture<Map<String, Block>> batch = callAsync(peer, Frame.BLOCKS_REQUEST, content,
+                frame -> decodeBlocks(hashes, frame.getContent()),
+                connection -> legacyBlocks(connection, hashes), timeout);
+        CompletableFuture<Map<String, Block>> result = batch.handle((blocks, e) -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof ErrorResponse)
+                return blockByBlock(peer, hashes, timeout);
+            return batch;
+        }).thenCompose(f -> f);
+        result.whenComplete((blocks, e) -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause == null)
+                stats.success((System.nanoTime() - start) / 1e6, blocks.size());
+            else
+                stats.failure(cause instanceof TimeoutException);
+        });
+        return result;
+    }
+
+    /**
+     * Blocks of the hashes from one of the peers, which is chosen by its statistics and given
+     * a timeout by its round trip times. If it does not answer in its hedge delay or fails,
+     * the request is sent to another peer too, up to Config.HEDGED_REQUESTS peers, and the
+     * first response is taken. The future fails if every request fails.
+     */
+    public CompletableFuture<Map<String, Block>> requestBlocksAsync(List<Peer> peers, List<String> hashes) {
+        return new HedgedRequest(peers, hashes).start();
+    }
+
+    // Peer of the next block request, drawn by the weights of their statistics. A peer which has not
+    // answered yet gets the largest weight so it is tried, a poor one keeps a small share so it is measured again
+    Peer choose(List<Peer> peers, Collection<Peer> excluded) {
+        List<Peer> candidates = new ArrayList<>(peers.size());
+        for (Peer peer : peers) {
+            if (!excluded.contains(peer))
+                candidates.add(peer);
+        }
+        if (candidates.isEmpty())
+            return null;
+
+        double[] weights = new double[candidates.size()];
+        double largest = 0;
+        for (int i = 0; i < weights.length; i++) {
+            PeerStats stats = stats(candidates.get(i));
+            weights[i] = stats.isMeasured() ? stats.weight() : -1;
+            largest = Math.max(largest, weights[i]);
+        }
+        if (largest == 0)
+            largest = 1;
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = weights[i] < 0 ? largest : Math.max(weights[i], largest * MIN_SHARE);
+            total += weights[i];
+        }
+
+        double r = ThreadLocalRandom.current().nextDouble(total);
+        for (int i = 0; i < weights.length; i++) {
+            r -= weights[i];
+            if (r < 0)
+                return candidates.get(i);
+        }
+        return candidates.get(candidates.size() - 1);
+    }
+
+    public PeerStats stats(Peer peer) {
+        return pool(peer).stats;
+    }
+
+    // Statistics of every peer, one line each
+    public List<String> metrics() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<Peer, Pool> entry : pools.entrySet())
+            lines.add(entry.getKey().getAddress() + ": " + entry.getValue().stats);
+        return lines;
+    }
+
+    private Map<String, Block> decodeBlocks(List<String> hashes, byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        HashMap<String, Block> blocks = new HashMap<>();
+        for (String hash : hashes) {
+            int length = in.readInt();
+            if (length < 0 || length > in.available())
+                throw new ProtocolException("Invalid block length " + length);
+            if (length == 0)
+                continue;
+            byte[] block = new byte[length];
+            in.readFully(block);
+            blocks.put(hash, BlockCodec.decode(block));
+        }
+        return blocks;
+    }
+
+    private Map<String, Block> legacyBlocks(PeerConnection connection, List<String> hashes) throws IOException {
+        HashMap<String, Block> blocks = new HashMap<>();
+        for (String hash : hashes) {
+            Optional<Block> block = legacyBlock(connection, hash);
+            if (block == null)
+                return null;
+            block.ifPresent(b -> blocks.put(hash, b));
+        }
+        return blocks;
+    }
+
+    // Peers which do not know the batch request are sent a request for each block
+    private CompletableFuture<Map<String, Block>> blockByBlock(Peer peer, List<String> hashes, long timeout) {
+        HashMap<String, CompletableFuture<Optional<Block>>> futures = new HashMap<>();
+        for (String hash : hashes)
+            futures.put(hash, requestBlockAsync(peer, hash, timeout));
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            HashMap<String, Block> blocks = new HashMap<>();
+            for (Map.Entry<String, CompletableFuture<Optional<Block>>> entry : futures.entrySet())
+                entry.getValue().join().ifPresent(b -> blocks.put(entry.getKey(), b));
+            return blocks;
+        });
+    }
+
+    private Optional<Block> legacyBlock(PeerConnection connection, String hash) throws IOException {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("flag", Config.MESSAGE_REQUEST_BLOCK);
+        obj.addProperty("data", hash);
+        String response = connection.exchange(Config.MESSAGE_OUTGOING_RESPONSE, obj.toString());
+        if (response == null)
+            return null;
+        return response.equals("") ? Optional.empty() : Optional.of(new Gson().fromJson(response, Block.class));
+    }
+
+    private interface Decoder<T> {
+        T apply(Frame frame) throws IOException;
+    }
+
+    private interface Exchange<T> {
+        // Null if the peer did not ack
+        T apply(PeerConnection connection) throws IOException;
+    }
+
+    private <T> CompletableFuture<T> callAsync(Peer peer, byte type, byte[] content, Decoder<T> decoder,
+                                               Exchange<T> legacy, long timeout) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> timeoutTask = timer.schedule(
+                () -> result.completeExceptionally(new TimeoutException("No response in " + timeout + " ms")),
+                timeout, TimeUnit.MILLISECONDS);
+        result.whenComplete((r, e) -> timeoutTask.cancel(false));
+
+        attempt(peer, type, content, decoder, legacy, result, 0);
+        return result;
+    }
+
+    private <T> void attempt(Peer peer, byte type, byte[] content, Decoder<T> decoder, Exchange<T> legacy,
+                             CompletableFuture<T> result, int trial) {
+        if (result.isDone())
+            return;
+        Pool pool = pool(peer);
+        if (!pool.isBinary()) {
+            try {
+                executor.execute(() -> {
+                    T response = call(peer, legacy);
+                    if (response != null)
+                        result.complete(response);
+                    else
+                        result.completeExceptionally(new IOException("Message cannot be sent after " + Config.MESSAGE_MAX_TRIALS + " trials"));
+                });
+            } catch (RejectedExecutionException e) {
+                result.completeExceptionally(e);
+            }
+            return;
+        }
+
+        pool.channel(peer, executor).thenCompose(channel -> {
+            CompletableFuture<Frame> request = channel.request(type, content);
+            // The channel does not keep a request which the caller does not wait for anymore
+            result.whenComplete((r, e) -> request.cancel(false));
+            return request;
+        }).whenComplete((frame, e) -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof ProtocolException) {
+                // Frames are not understood, the peer is talked to with object streams
+                log.debug("Peer " + peer.getAddress() + " does not support frames.");
+                pool.objectStreams();
+                attempt(peer, type, content, decoder, legacy, result, trial);
+                return;
+            }
+            if (cause == null) {
+                try {
+                    if (frame.getType() == Frame.RESPONSE) {
+                        result.complete(decoder.apply(frame));
+                        return;
+                    }
+                    // Another trial gets the same error, the caller falls back at once
+                    log.trace("Error frame read");
+                    result.completeExceptionally(new ErrorResponse());
+                    return;
+                } catch (Exception decodeError) {
+                    result.completeExceptionally(decodeError);
+                    return;
+                }
+            } else {
+                log.debug(cause);
+            }
+            if (trial + 1 < Config.MESSAGE_MAX_TRIALS)
+                attempt(peer, type, content, decoder, legacy, result, trial + 1);
+            else
+                result.completeExceptionally(cause);
+        });
+    }
+
+    // Result of the future, null if it failed
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            log.debug(e.getCause());
+            return null;
+        }
+    }
+
+    private <T> T call(Peer peer, Exchange<T> exchange) {
+        Pool pool = pool(peer);
+
+        int trials = 0;
+        while (trials < Config.MESSAGE_MAX_TRIALS) {
+            PeerConnection connection = pool.borrow();
+            boolean reused = connection != null;
+            try {
+                if (connection == null)
+                    connection = new PeerConnection(peer);
+                T response = exchange.apply(connection);
+                if (response != null) {
+                    pool.release(connection);
+                    return response;
+                }
+                log.trace("Non flag read");
+                connection.close();
+            } catch (EOFException | SocketException e) {
+                if (connection != null)
+                    connection.close();
+                // An idle connection closed by the peer is replaced without counting a trial
+                if (reused) {
+                    pool.closedByPeer(connection);
+                    continue;
+                }
+                log.debug(e);
+            } catch (IOException e) {
+                if (connection != null)
+                    connection.close();
+                log.debug(e);
+            }
+            trials++;
+        }
+        return null;
+    }
+
+    private Pool pool(Peer peer) {
+        return pools.computeIfAbsent(peer, p -> new Pool());
+    }
+
+    // Closes the connections which have been idle too long
+    public void closeIdle() {
+        for (Pool pool : pools.values())
+            pool.closeIdle();
+    }
+
+    // Closes the connections to the peers which are not in the list anymore
+    public void retain(Set<Peer> peers) {
+        for (Map.Entry<Peer, Pool> entry : pools.entrySet()) {
+            if (!peers.contains(entry.getKey())) {
+                pools.remove(entry.getKey());
+                entry.getValue().closeAll();
+            }
+        }
+    }
+
+    public void close() {
+        for (Pool pool : pools.values())
+            pool.closeAll();
+        pools.clear();
+    }
+
+    private class HedgedRequest {
+        private final List<Peer> peers;
+        private final List<String> hashes;
+        private final CompletableFuture<Map<String, Block>> result;
+        private final List<Peer> tried;
+        private int running;
+        private ScheduledFuture<?> hedge;
+
+        HedgedRequest(List<Peer> peers, List<String> hashes) {
+            this.peers = peers;
+            this.hashes = hashes;
+            result = new CompletableFuture<>();
+            tried = new ArrayList<>();
+            result.whenComplete((blocks, e) -> cancelHedge());
+        }
+
+        CompletableFuture<Map<String, Block>> start() {
+            if (!next())
+                result.completeExceptionally(new IOException("No peer to request the blocks from"));
+            return result;
+        }
+
+        // Sends the request to one more peer, false if it is done or no peer is left
+        private synchronized boolean next() {
+            if (result.isDone() || tried.size() >= Config.HEDGED_REQUESTS)
+                return false;
+            Peer peer = choose(peers, tried);
+            if (peer == null)
+                return false;
+            if (!tried.isEmpty())
+                log.debug("Block request is sent to " + peer.getAddress() + " too.");
+            tried.add(peer);
+            running++;
+
+            PeerStats stats = stats(peer);
+            cancelHedge();
+            // The request is sent by the network executor, the timer only starts it
+            hedge = timer.schedule(() -> executor.execute(this::next), stats.hedgeDelay(), TimeUnit.MILLISECONDS);
+            requestBlocksAsync(peer, hashes, stats.timeout()).whenComplete(this::done);
+            return true;
+        }
+
+        private synchronized void done(Map<String, Block> blocks, Throwable e) {
+            running--;
+            if (e == null) {
+                result.complete(blocks);
+                return;
+            }
+            // A failed request is sent to another peer at once
+            if (!next() && running == 0)
+                result.completeExceptionally(e);
+        }
+
+        private synchronized void cancelHedge() {
+            if (hedge != null)
+                hedge.cancel(false);
+        }
+    }
+
+    // The peer answered with an error frame, it could not handle the request or does not know its type
+    private static class ErrorResponse extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ErrorResponse() {
+            super("Peer cannot handle the request");
+        }
+    }
+
+    private static class Pool {
+        private final ArrayDeque<PeerConnection> idle = new ArrayDeque<>();
+        private final PeerStats stats = new PeerStats();
+        private long oneShotUntil;
+        private long objectStreamsUntil;
+        private CompletableFuture<PeerChannel> channel;
+
+        synchronized boolean isBinary() {
+            return System.currentTimeMillis() >= objectStreamsUntil;
+        }
+
+        synchronized void objectStreams() {
+            objectStreamsUntil = System.currentTimeMillis() + Config.CONNECTION_RETRY_PERIOD;
+        }
+
+        // Open channel to the peer, a new one is opened if there is none or it has been idle too long
+        synchronized CompletableFuture<PeerChannel> channel(Peer peer, ExecutorService executor) {
+            if (channel != null && channel.isDone()) {
+                PeerChannel current = channel.isCompletedExceptionally() ? null : channel.getNow(null);
+                if (!usable(current)) {
+                    if (current != null)
+                        current.close();
+                    channel = null;
+                }
+            }
+            if (channel == null) {
+                CompletableFuture<PeerChannel> opening = new CompletableFuture<>();
+                channel = opening;
+                try {
+                    executor.execute(() -> {
+                        try {
+                            opening.complete(new PeerChannel(peer));
+                        } catch (IOException e) {
+                            opening.completeExceptionally(e);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    opening.completeExceptionally(e);
+                }
+            }
+            return channel;
+        }
+
+        /**
+         * A channel which has been idle for the check period may have been dropped by the peer, and
+         * one which has not read anything since a request was sent, for longer than any request
+         * waits, may be half-open. A new one is opened then, the requests of the old one fail.
+         */
+        private static boolean usable(PeerChannel channel) {
+            return channel != null && channel.isOpen() && !channel.isStalled(defaultTimeout())
+                    && (channel.getPending() > 0
+                    || System.currentTimeMillis() - channel.getLastUsed() <= Config.CONNECTION_CHECK_PERIOD);
+        }
+
+        // Most recently used idle connection which passes the health check, null if there is none
+        PeerConnection borrow() {
+            while (true) {
+                PeerConnection connection;
+                synchronized (this) {
+                    connection = idle.pollLast();
+                }
+                if (connection == null)
+                    return null;
+
+                long idleTime = System.currentTimeMillis() - connection.getLastUsed();
+                if (idleTime > Config.CONNECTION_IDLE_TIMEOUT
+                        || (idleTime > Config.CONNECTION_CHECK_PERIOD && !connection.ping())) {
+                    connection.close();
+                    continue;
+                }
+                return connection;
+            }
+        }
+
+        synchronized void release(PeerConnection connection) {
+            if (System.currentTimeMillis() >= oneShotUntil && idle.size() < Config.PEER_POOL_SIZE)
+                idle.addLast(connection);
+            else
+                connection.close();
+        }
+
+        // A connection which carried only one message was closed, the peer does not keep connections
+        synchronized void closedByPeer(PeerConnection connection) {
+            if (connection.getMessages() <= 2) {
+                oneShotUntil = System.currentTimeMillis() + Config.CONNECTION_RETRY_PERIOD;
+                for (PeerConnection c : idle)
+                    c.close();
+                idle.clear();
+            }
+        }
+
+        synchronized void closeIdle() {
+            long now = System.currentTimeMillis();
+            idle.removeIf(c -> {
+                if (now - c.getLastUsed() <= Config.CONNECTION_IDLE_TIMEOUT)
+                    return false;
+                c.close();
+                return true;
+            });
+            if (channel != null && channel.isDone() && !channel.isCompletedExceptionally()) {
+                PeerChannel current = channel.getNow(null);
+                if (current.isStalled(defaultTimeout())
+                        || (current.getPending() == 0 && now - current.getLastUsed() > Config.CONNECTION_IDLE_TIMEOUT)) {
+                    current.close();
+                    channel = null;
+                }
+            }
+        }
+
+        synchronized void closeAll() {
+            for (PeerConnection c : idle)
+                c.close();
+            idle.clear();
+            if (channel != null)
+                channel.thenAccept(PeerChannel::close);
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package P2P;
+
+import Util.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Frame of the binary peer protocol: magic, version, type, flags, correlation id,
+ * payload length and payload. The payload has no 64KB limit as writeUTF has, and a
+ * large payload is deflated. A connection starts with a HELLO frame, a peer which
+ * does not answer it is talked to with object streams as before.
+ */
+class Frame {
+
+    // Object streams start with 0xACED, so the two protocols are told apart by the first bytes
+    static final short MAGIC = (short) 0xCD1F;
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 13;
+
+    static final byte HELLO = 1;
+    static final byte PING = 2;
+    static final byte MESSAGE = 3;
+    static final byte REQUEST = 4;
+    static final byte RESPONSE = 5;
+    static final byte BLOCK_REQUEST = 6;
+    static final byte ERROR = 7;
+    // Hashes separated by new lines, the response has the length and the binary form of each block, 0 if it is missing
+    static final byte BLOCKS_REQUEST = 8;
+
+    static final byte FLAG_DEFLATE = 1;
+
+    private final byte type;
+    private final byte flags;
+    private final int correlation;
+    private final byte[] payload;
+
+    private Frame(byte type, byte flags, int correlation, byte[] payload) {
+        this.type = type;
+        this.flags = flags;
+        this.correlation = correlation;
+        this.payload = payload;
+    }
+
+    static Frame of(byte type, int correlation, byte[] content) {
+        if (content.length >= Config.FRAME_COMPRESSION_THRESHOLD) {
+            byte[] deflated = deflate(content);
+            if (deflated.length < content.length)
+                return new Frame(type, FLAG_DEFLATE, correlation, deflated);
+        }
+        return new Frame(type, (byte) 0, correlation, content);
+    }
+
+    static Frame of(byte type, int correlation, String content) {
+        return of(type, correlation, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Frame of(byte type, int correlation) {
+        return new Frame(type, (byte) 0, correlation, new byte[0]);
+    }
+
+    byte getType() {
+        return type;
+    }
+
+    int getCorrelation() {
+        return correlation;
+    }
+
+    byte[] getContent() throws IOException {
+        return (flags & FLAG_DEFLATE) != 0 ? inflate(payload) : payload;
+    }
+
+    String getText() throws IOException {
+        return new String(getContent(), StandardCharsets.UTF_8);
+    }
+
+    ByteBuffer encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.putShort(MAGIC);
+        buffer.put(VERSION);
+        buffer.put(type);
+        buffer.put(flags);
+        buffer.putInt(correlation);
+        buffer.putInt(payload.length);
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    void write(OutputStream out) throws IOException {
+        ByteBuffer buffer = encode();
+        out.write(buffer.array(), 0, buffer.limit());
+    }
+
+    static Frame read(DataInputStream in) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        in.readFully(header);
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        int length = checkHeader(buffer);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(header[3], header[4], buffer.getInt(5), payload);
+    }
+
+    // Frame of a header which is read and its payload
+    static Frame of(ByteBuffer header, byte[] payload) {
+        return new Frame(header.get(3), header.get(4), header.getInt(5), payload);
+    }
+
+    // Payload length of the header, the header is rejected if it is not a frame of a known version
+    static int checkHeader(ByteBuffer header) throws IOException {
+        if (header.getShort(0) != MAGIC)
+            throw new ProtocolException("Not a frame");
+        if (header.get(2) > VERSION)
+            throw new ProtocolException("Unknown frame version " + header.get(2));
+        int length = header.getInt(9);
+        if (length < 0 || length > Config.FRAME_MAX_SIZE)
+            throw new ProtocolException("Invalid frame length " + length);
+        return length;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished())
+            out.write(buffer, 0, deflater.deflate(buffer));
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new ProtocolException("Truncated frame payload");
+                out.write(buffer, 0, length);
+                if (out.size() > Config.FRAME_MAX_SIZE)
+                    throw new ProtocolException("Frame payload is too large");
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Invalid frame payload");
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+}
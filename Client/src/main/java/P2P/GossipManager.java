@@ -0,0 +1,222 @@
+package P2P;
+
+import Util.Config;
+import Util.Decryption;
+import Util.LruCache;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Epidemic broadcast of the messages which need no response. A message is sent to
+ * Config.GOSSIP_FANOUT random peers, and every peer which sees it for the first time
+ * relays it to as many others until it has made Config.GOSSIP_MAX_HOPS hops. A broadcast
+ * still makes about N * fanout messages in the network, more than the N of sending it to
+ * every peer directly, but each node sends only O(fanout) of them instead of O(N).
+ *
+ * The messages of the last Config.GOSSIP_RETENTION are kept. Every
+ * Config.GOSSIP_ANTI_ENTROPY_PERIOD one random peer is sent their ids, and the two
+ * peers send each other the messages which the other one has missed.
+ *
+ * A relayed message keeps the token of its origin, so it is checked as if the origin
+ * had sent it directly.
+ */
+public class GossipManager {
+
+    private static Logger log = Client.log;
+
+    private final Client client;
+    // Ids of the messages which are delivered already
+    private final LruCache<String, Boolean> seen;
+    // Messages of the retention period by their ids, oldest first
+    private final LinkedHashMap<String, Rumor> recent;
+    private long lastAntiEntropy;
+
+    public GossipManager(Client client) {
+        this.client = client;
+        seen = new LruCache<>(Config.GOSSIP_SEEN_CACHE_SIZE);
+        recent = new LinkedHashMap<>();
+    }
+
+    // Starts the broadcast of a message which is signed with the token of this node
+    public void publish(String msg) {
+        JsonObject rumor = new JsonObject();
+        rumor.addProperty("flag", Config.MESSAGE_GOSSIP);
+        rumor.addProperty("id", UUID.randomUUID().toString());
+        rumor.addProperty("hops", 0);
+        rumor.addProperty("data", msg);
+        if (remember(rumor))
+            relay(rumor, null, null);
+    }
+
+    // Delivers and relays a message which is seen for the first time, the response is always empty
+    public String receive(String ip, JsonObject rumor) {
+        String data = rumor.get("data").getAsString();
+        String origin = origin(data);
+        if (origin == null) {
+            log.warn("Gossip message from " + ip + " includes false key");
+            return "";
+        }
+        // The signature of the last hop is not passed on
+        rumor.remove("session");
+        rumor.remove("mac");
+        if (!remember(rumor))
+            return "";
+
+        try {
+            client.notify(origin + Config.CLIENT_MESSAGE_SPLITTER + data);
+        } catch (Exception e) {
+            log.warn("Gossip message cannot be handled.");
+            log.debug(e);
+        }
+        if (rumor.get("hops").getAsInt() + 1 < Config.GOSSIP_MAX_HOPS) {
+            rumor.addProperty("hops", rumor.get("hops").getAsInt() + 1);
+            relay(rumor, ip, origin);
+        }
+        return "";
+    }
+
+    // Answers the ids of a peer with the messages which it has missed and the ids which this node has missed
+    public String digest(JsonObject obj) {
+        Set<String> ids = new HashSet<>();
+        for (JsonElement id : obj.getAsJsonArray("ids"))
+            ids.add(id.getAsString());
+
+        JsonArray messages = new JsonArray();
+        JsonArray missing = new JsonArray();
+        synchronized (this) {
+            removeExpired();
+            for (Map.Entry<String, Rumor> entry : recent.entrySet()) {
+                if (!ids.remove(entry.getKey()))
+                    messages.add(entry.getValue().message);
+            }
+            for (String id : ids) {
+                if (seen.get(id) == null)
+                    missing.add(id);
+            }
+        }
+
+        JsonObject response = new JsonObject();
+        response.add("messages", messages);
+        response.add("missing", missing);
+        return response.toString();
+    }
+
+    // Compares the recent messages with a random peer, called on every heartbeat
+    public void antiEntropy() {
+        long now = System.currentTimeMillis();
+        if (now - lastAntiEntropy < Config.GOSSIP_ANTI_ENTROPY_PERIOD)
+            return;
+        lastAntiEntropy = now;
+
+        List<Peer> peers = new ArrayList<>(client.peerList.keySet());
+        if (peers.isEmpty())
+            return;
+        Peer peer = peers.get((int) (Math.random() * peers.size()));
+
+        JsonArray ids = new JsonArray();
+        synchronized (this) {
+            removeExpired();
+            for (String id : recent.keySet())
+                ids.add(id);
+        }
+        JsonObject obj = new JsonObject();
+        obj.addProperty("flag", Config.MESSAGE_GOSSIP_DIGEST);
+        obj.add("ids", ids);
+
+        String ip = peer.getAddress().toString();
+        client.sendMessageAsync(peer, obj.toString(), true).thenAccept(response -> {
+            if (response == null || response.equals(""))
+                return;
+            JsonObject reply = new Gson().fromJson(response, JsonObject.class);
+            // Repaired messages are delivered here but not relayed, the other peers had the same chance to get them
+            for (JsonElement message : reply.getAsJsonArray("messages")) {
+                JsonObject rumor = new Gson().fromJson(message.getAsString(), JsonObject.class);
+                rumor.addProperty("hops", Config.GOSSIP_MAX_HOPS);
+                receive(ip, rumor);
+            }
+            for (JsonElement id : reply.getAsJsonArray("missing")) {
+                Rumor rumor;
+                synchronized (this) {
+                    rumor = recent.get(id.getAsString());
+                }
+                if (rumor != null) {
+                    JsonObject repair = new Gson().fromJson(rumor.message, JsonObject.class);
+                    repair.addProperty("hops", Config.GOSSIP_MAX_HOPS);
+                    client.sendMessageAsync(peer, repair.toString(), false);
+                }
+            }
+        });
+    }
+
+    // False if the message has been seen before
+    private synchronized boolean remember(JsonObject rumor) {
+        String id = rumor.get("id").getAsString();
+        if (seen.get(id) != null)
+            return false;
+        seen.put(id, Boolean.TRUE);
+        removeExpired();
+        recent.put(id, new Rumor(rumor.toString()));
+        return true;
+    }
+
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Rumor> iterator = recent.values().iterator();
+        while (iterator.hasNext() && now - iterator.next().received > Config.GOSSIP_RETENTION)
+            iterator.remove();
+    }
+
+    // Sends the message to the fan-out of random peers, except the one it came from and its origin
+    private void relay(JsonObject rumor, String from, String origin) {
+        List<Peer> peers = new ArrayList<>(client.peerList.keySet());
+        Collections.shuffle(peers);
+        String msg = rumor.toString();
+        int sent = 0;
+        for (Peer peer : peers) {
+            if (sent == Config.GOSSIP_FANOUT)
+                break;
+            String ip = peer.getAddress().toString();
+            if (ip.equals(from) || ip.equals(origin))
+                continue;
+            client.sendMessageAsync(peer, msg, false);
+            sent++;
+        }
+    }
+
+    // Address of the node which signed the message with its token, null if the token is not valid
+    private static String origin(String data) {
+        try {
+            JsonObject obj = new Gson().fromJson(data, JsonObject.class);
+            byte[] key = Base64.getDecoder().decode(new Gson().fromJson(obj.get("key").getAsString(), byte[].class));
+            String[] credentials = Decryption.decryptGet(key);
+            return credentials == null ? null : credentials[0];
+        } catch (Exception e) {
+            log.debug(e);
+            return null;
+        }
+    }
+
+    private static class Rumor {
+        final String message;
+        final long received;
+
+        Rumor(String message) {
+            this.message = message;
+            received = System.currentTimeMillis();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package P2P;
 
 import Util.Config;
+import Util.ExecutorRegistry;
 import org.apache.log4j.Logger;
 
 import java.io.DataInputStream;
@@ -13,7 +14,6 @@ import java.util.TimerTask;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 /**
@@ -94,7 +94,7 @@ public class HeartBeatTask extends TimerTask {
             }
         }
 
-        ExecutorService executor = Executors.newCachedThreadPool();
+        ExecutorService executor = ExecutorRegistry.executor(ExecutorRegistry.HEARTBEAT);
         ArrayList<Future<Peer>> results = new ArrayList<>();
         for(Peer peer:peerList.keySet()) {
             Callable<Peer> task = new SendHeartBeat(peer);
@@ -114,6 +114,15 @@ public class HeartBeatTask extends TimerTask {
         }
         int a = peerList.size();
 
+        client.getConnections().retain(peerList.keySet());
+        client.getConnections().closeIdle();
+        if (Config.GOSSIP)
+            client.getGossip().antiEntropy();
+        for (String line : ExecutorRegistry.metrics())
+            log.debug(line);
+        for (String line : client.getConnections().metrics())
+            log.debug(line);
+
         if (size != a) {
             client.notify(Config.CLIENT_MESSAGE_PEERSIZE + Config.CLIENT_MESSAGE_SPLITTER + a);
             size = a;
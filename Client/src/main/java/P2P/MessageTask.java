@@ -3,12 +3,6 @@ package P2P;
 import Util.Config;
 import org.apache.log4j.Logger;
 
-import java.io.DataInputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-
 /**
  * Created by od on 27.04.2017.
  */
@@ -16,42 +10,31 @@ public class MessageTask implements Runnable {
 
     private Peer p;
     private String msg;
+    private ConnectionPool connections;
+    private SessionManager sessions;
     private Logger log = Client.log;
 
-    public MessageTask(Peer p, String msg) {
+    public MessageTask(Peer p, String msg, ConnectionPool connections) {
+        this(p, msg, connections, null);
+    }
+
+    // The message is signed with the session of the peer if sessions are given
+    public MessageTask(Peer p, String msg, ConnectionPool connections, SessionManager sessions) {
         this.p = p;
         this.msg = msg;
+        this.connections = connections;
+        this.sessions = sessions;
     }
 
     @Override
     public void run() {
 
-        int trials = 0;
-        while(trials < Config.MESSAGE_MAX_TRIALS) {
-
-            try {
-                log.debug(p.getPeerServerPort());
-                log.debug(p.getAddress());
-                Socket messagedClient = new Socket(p.getAddress(), p.getPeerServerPort());
-                messagedClient.setSoTimeout(Config.MESSAGE_TIMEOUT);
-                ObjectOutputStream out = new ObjectOutputStream(messagedClient.getOutputStream());
-                out.writeInt(Config.MESSAGE_OUTGOING);
-                out.writeUTF(msg);
-                out.flush();
-
-                ObjectInputStream in = new ObjectInputStream(new DataInputStream(messagedClient.getInputStream()));
-                int ack = in.readInt();
-                messagedClient.close();
-                if (ack == Config.MESSAGE_ACK) {
-                    return;
-                }
-
-            } catch (IOException e) {
-
-            }
-            trials++;
+        log.debug(p.getPeerServerPort());
+        log.debug(p.getAddress());
+        String msg = sessions != null ? sessions.seal(p, this.msg) : this.msg;
+        if (connections.send(p, Config.MESSAGE_OUTGOING, msg) == null) {
+            log.warn("Message cannot be sent after " + Config.MESSAGE_MAX_TRIALS + " trials");
+            log.warn(msg);
         }
-        log.warn("Message cannot be sent after " + Config.MESSAGE_MAX_TRIALS + " trials");
-        log.warn(msg);
     }
 }
@@ -0,0 +1,154 @@
+package P2P;
+
+import Util.Config;
+import Util.ExecutorRegistry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Frame connection to a peer which carries any number of requests at the same time.
+ * Every request has its own correlation id, a reader thread completes the future of
+ * a request when the response with its id arrives, so no thread waits for a peer.
+ */
+class PeerChannel {
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final AtomicInteger correlation;
+    private final ConcurrentHashMap<Integer, CompletableFuture<Frame>> pending;
+    private volatile boolean closed;
+    private volatile long lastUsed;
+    // When the oldest request sent after the last frame was read was sent, 0 if there is none
+    private volatile long unansweredSince;
+
+    // ProtocolException is thrown if the peer does not answer the HELLO frame with a frame
+    PeerChannel(Peer peer) throws IOException {
+        socket = new Socket(peer.getAddress(), peer.getPeerServerPort());
+        correlation = new AtomicInteger();
+        pending = new ConcurrentHashMap<>();
+        try {
+            socket.setSoTimeout(Config.MESSAGE_TIMEOUT);
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            hello();
+            // Responses are waited for by the futures of the requests, the reader waits as long as the channel is open
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        lastUsed = System.currentTimeMillis();
+
+        ExecutorRegistry.newThread("PeerChannel " + peer.getAddress(), this::read).start();
+    }
+
+    /**
+     * A peer of an older version reads the HELLO frame as the header of an object stream
+     * and closes the connection, so an answer which is not a frame or a connection which
+     * is closed after the frame is sent means that the peer does not talk in frames.
+     * A timeout is an IOException like any other network error, the peer is tried again.
+     */
+    private void hello() throws IOException {
+        Frame.of(Frame.HELLO, 0, new byte[]{Frame.VERSION}).write(out);
+        out.flush();
+        Frame frame;
+        try {
+            frame = Frame.read(in);
+        } catch (EOFException | SocketException e) {
+            throw new ProtocolException("Peer closed the connection after hello: " + e);
+        }
+        if (frame.getType() != Frame.HELLO)
+            throw new ProtocolException("Unexpected answer to hello");
+    }
+
+    /**
+     * Response frame of the request, it fails with an IOException if the channel is closed.
+     * A caller which gives up on the request cancels the future, it is then dropped from
+     * the pending requests, a response which comes later is ignored.
+     */
+    CompletableFuture<Frame> request(byte type, byte[] content) {
+        int id = correlation.incrementAndGet();
+        CompletableFuture<Frame> future = new CompletableFuture<>();
+        pending.put(id, future);
+        future.whenComplete((frame, e) -> pending.remove(id));
+
+        if (closed) {
+            future.completeExceptionally(new IOException("Channel is closed"));
+            return future;
+        }
+        try {
+            Frame frame = Frame.of(type, id, content);
+            if (unansweredSince == 0)
+                unansweredSince = System.currentTimeMillis();
+            synchronized (out) {
+                frame.write(out);
+                out.flush();
+            }
+            lastUsed = System.currentTimeMillis();
+        } catch (IOException e) {
+            close();
+        }
+        return future;
+    }
+
+    private void read() {
+        try {
+            while (!closed) {
+                Frame frame = Frame.read(in);
+                lastUsed = System.currentTimeMillis();
+                unansweredSince = 0;
+                CompletableFuture<Frame> future = pending.get(frame.getCorrelation());
+                if (future != null)
+                    future.complete(frame);
+            }
+        } catch (IOException e) {
+            Client.log.debug(e);
+        } finally {
+            close();
+        }
+    }
+
+    boolean isOpen() {
+        return !closed;
+    }
+
+    int getPending() {
+        return pending.size();
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    // Nothing was read for longer than the timeout since a request was sent, the connection may be half-open
+    boolean isStalled(long timeout) {
+        long since = unansweredSince;
+        return since != 0 && System.currentTimeMillis() - since > timeout;
+    }
+
+    // Fails the requests which are waiting for a response
+    void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+
+        }
+        for (CompletableFuture<Frame> future : pending.values())
+            future.completeExceptionally(new IOException("Channel is closed"));
+    }
+}
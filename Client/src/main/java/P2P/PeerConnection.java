@@ -0,0 +1,91 @@
+package P2P;
+
+import Util.Config;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+
+/**
+ * Object stream connection to the message server of an older peer which does not
+ * understand frames. Any number of messages are sent over it one after the other.
+ */
+class PeerConnection {
+
+    private final Socket socket;
+    private final ObjectOutputStream out;
+    // Created after the first message, older peers send their stream header only after reading one
+    private ObjectInputStream in;
+    private volatile long lastUsed;
+    private int messages;
+
+    PeerConnection(Peer peer) throws IOException {
+        socket = new Socket(peer.getAddress(), peer.getPeerServerPort());
+        try {
+            socket.setSoTimeout(Config.MESSAGE_TIMEOUT);
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true);
+            // Buffered so that a message is written to the socket at once when it is flushed
+            out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.flush();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        lastUsed = System.currentTimeMillis();
+    }
+
+    // Response of the peer for MESSAGE_OUTGOING_RESPONSE, "" for the other flags, null if the peer did not ack
+    String exchange(int flag, String msg) throws IOException {
+        messages++;
+        out.writeInt(flag);
+        out.writeUTF(msg);
+        out.flush();
+
+        int ack = input().readInt();
+        if (ack != Config.MESSAGE_ACK)
+            return null;
+        String response = flag == Config.MESSAGE_OUTGOING_RESPONSE ? in.readUTF() : "";
+        lastUsed = System.currentTimeMillis();
+        return response;
+    }
+
+    // Health check of an idle connection
+    boolean ping() {
+        try {
+            out.writeInt(Config.MESSAGE_SERVER_TEST);
+            out.flush();
+            boolean alive = input().readInt() == Config.MESSAGE_ACK;
+            lastUsed = System.currentTimeMillis();
+            return alive;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private ObjectInputStream input() throws IOException {
+        if (in == null)
+            in = new ObjectInputStream(new DataInputStream(socket.getInputStream()));
+        return in;
+    }
+
+    // Number of messages sent over the connection
+    int getMessages() {
+        return messages;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+
+        }
+    }
+}
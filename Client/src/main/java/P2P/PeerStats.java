@@ -0,0 +1,91 @@
+package P2P;
+
+import Util.Config;
+
+/**
+ * Statistics of the block requests to a peer. The round trip time and its variation are
+ * smoothed as TCP does (RFC 6298), the blocks per millisecond and the rate of the failed
+ * requests are moving averages. They give the timeout of the next request, the time after
+ * which it is a straggler, and the share of the requests which the peer is sent.
+ */
+public class PeerStats {
+
+    // Weight of a new sample in the averages, and of a new deviation in the variation
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final int MAX_BACKOFF = 64;
+
+    private double srtt;
+    private double rttvar;
+    private double throughput;
+    private double errorRate;
+    private int samples;
+    private int inFlight;
+    private int backoff = 1;
+    private long requests;
+    private long failures;
+
+    synchronized void start() {
+        inFlight++;
+        requests++;
+    }
+
+    // Response of a request which took rtt milliseconds and gave the blocks
+    synchronized void success(double rtt, int blocks) {
+        inFlight--;
+        double rate = blocks / Math.max(rtt, 1);
+        if (samples == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+            throughput = rate;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+            throughput = (1 - ALPHA) * throughput + ALPHA * rate;
+        }
+        samples++;
+        errorRate = (1 - ALPHA) * errorRate;
+        backoff = 1;
+    }
+
+    synchronized void failure(boolean timeout) {
+        inFlight--;
+        failures++;
+        errorRate = (1 - ALPHA) * errorRate + ALPHA;
+        // The timeout is doubled until the peer answers again
+        if (timeout && backoff < MAX_BACKOFF)
+            backoff *= 2;
+    }
+
+    // srtt + 4 rttvar between Config.REQUEST_TIMEOUT_MIN and the default timeout, which is used until the first response
+    public synchronized long timeout() {
+        long max = ConnectionPool.defaultTimeout();
+        if (samples == 0)
+            return max;
+        long rto = (long) Math.ceil(srtt + 4 * rttvar) * backoff;
+        return Math.max(Config.REQUEST_TIMEOUT_MIN, Math.min(rto, max));
+    }
+
+    // Time after which a request is slower than most of the others of the peer
+    public synchronized long hedgeDelay() {
+        if (samples == 0)
+            return Config.MESSAGE_TIMEOUT;
+        return Math.max(Config.HEDGE_DELAY_MIN, (long) Math.ceil(srtt + 2 * rttvar));
+    }
+
+    // Blocks per millisecond which the peer is expected to give beside its current requests, 0 before the first response
+    synchronized double weight() {
+        return throughput * (1 - errorRate) / (1 + inFlight);
+    }
+
+    // False until a request has succeeded or failed
+    synchronized boolean isMeasured() {
+        return samples > 0 || failures > 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("srtt %.1f ms, rttvar %.1f ms, %.2f blocks/ms, %.0f%% errors, %d in flight, %d requests, %d failed",
+                srtt, rttvar, throughput, errorRate * 100, inFlight, requests, failures);
+    }
+}
@@ -1,27 +1,60 @@
 package P2P;
 
 import Util.Config;
+import Util.ExecutorRegistry;
 import org.apache.log4j.Logger;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Supplier;
 
 /**
+ * Server of the messages of the peers. One selector thread accepts the connections and
+ * reads them, the complete messages are handed to Config.SERVER_WORKER_THREADS workers
+ * which notify the client, so the number of threads does not grow with the peers.
+ *
+ * A connection is either binary frames or, for the older peers, an object stream: a
+ * stream header, then the ints and strings in block data records. The records are read
+ * here without object streams, and the responses are written in the same form.
+ *
  * Created by od on 3.03.2017.
  */
 public class ReceiveServerRequest extends Thread {
 
     private static Logger log = Client.log;
-    static boolean broken = false;
+    static volatile boolean broken = false;
+
+    private static final byte[] STREAM_HEADER = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+    private static final int TC_BLOCKDATA = 0x77;
+    private static final int TC_BLOCKDATALONG = 0x7A;
+    private static final int MAX_BLOCK = 1024;
+
+    // Protocol of a connection, it is known when its first bytes are read
+    private static final int UNKNOWN = 0;
+    private static final int OBJECT_STREAM = 1;
+    private static final int FRAMES = 2;
 
     private Client client;
-    ServerSocket serverSocket;
+    private Selector selector;
+    private ThreadPoolExecutor workers;
+    // Results of the workers, they are written on the selector thread
+    private final ConcurrentLinkedQueue<Runnable> completed = new ConcurrentLinkedQueue<>();
 
     public ReceiveServerRequest(Client client) {
         this.client = client;
@@ -29,8 +62,14 @@ public class ReceiveServerRequest extends Thread {
 
     public void run() {
 
+        ServerSocketChannel serverChannel;
         try {
-             serverSocket = new ServerSocket(client.getServerPort());
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(client.getServerPort()), Config.SERVER_BACKLOG);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
         } catch (IOException e) {
             log.warn("Cannot open the server socket.");
             log.debug(e);
@@ -38,70 +77,408 @@ public class ReceiveServerRequest extends Thread {
             return;
         }
 
-        while (!broken) {
+        workers = ExecutorRegistry.executor(ExecutorRegistry.SERVER);
+        long lastCheck = System.currentTimeMillis();
 
-//            if(Thread.interrupted()) {
-//                log.trace("IN INTERRUPTED!!!!!!!!!!!!!");
-//                try {
-//                    serverSocket.close();
-//                } catch (Exception e) {
-//                }
-//            }
+        while (!broken) {
             try {
-                Socket server = serverSocket.accept();
+                selector.select(1000);
+
+                Runnable task;
+                while ((task = completed.poll()) != null)
+                    task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
 
-                new Thread(() -> {
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
                     try {
-                        log.trace("Server request incoming.");
+                        if (key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.write();
+                    } catch (IOException e) {
+                        log.debug(e);
+                        connection.close();
+                    }
+                }
 
-                        ObjectInputStream in = new ObjectInputStream(new DataInputStream(server.getInputStream()));
-                        ObjectOutputStream out = new ObjectOutputStream(new DataOutputStream(server.getOutputStream()));
+                long now = System.currentTimeMillis();
+                if (now - lastCheck > 1000) {
+                    closeIdle(now);
+                    lastCheck = now;
+                }
+            } catch (IOException e) {
+                log.warn("IOException while receiving server request!");
+                log.debug(e);
+            }
+        }
 
-                        int flag = in.readInt();
+        ExecutorRegistry.shutdown(ExecutorRegistry.SERVER);
+        try {
+            for (SelectionKey key : selector.keys())
+                key.channel().close();
+            selector.close();
+        } catch (IOException e) {
+            log.debug(e);
+        }
+    }
 
-                        if(flag == Config.MESSAGE_SERVER_TEST) {
-                            out.writeInt(Config.MESSAGE_ACK);
-                            out.flush();
-                            server.close();
-                        }
-                        else {
-                            String str = in.readUTF();
+    // Accepts every waiting connection, so the backlog does not overflow in a broadcast storm
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            log.trace("Server request incoming.");
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+        }
+    }
 
-                            str = server.getInetAddress().toString() + Config.CLIENT_MESSAGE_SPLITTER + str;
-                            log.debug("Client is notifying with " + flag + " | " + str);
-                            String response = client.notify(str);
+    // Idle connections are closed by the senders first, this only drops the abandoned ones
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                Connection connection = (Connection) attachment;
+                if (connection.inFlight == 0 && now - connection.lastActive > 2 * Config.CONNECTION_IDLE_TIMEOUT)
+                    connection.close();
+            }
+        }
+    }
 
+    // Block data records of the payload, the way an object stream writes them
+    static ByteBuffer blockData(byte[] payload) {
+        int blocks = (payload.length + MAX_BLOCK - 1) / MAX_BLOCK;
+        ByteBuffer buffer = ByteBuffer.allocate(payload.length + 5 * blocks);
+        for (int offset = 0; offset < payload.length; offset += MAX_BLOCK) {
+            int length = Math.min(MAX_BLOCK, payload.length - offset);
+            if (length <= 0xFF) {
+                buffer.put((byte) TC_BLOCKDATA);
+                buffer.put((byte) length);
+            } else {
+                buffer.put((byte) TC_BLOCKDATALONG);
+                buffer.putInt(length);
+            }
+            buffer.put(payload, offset, length);
+        }
+        buffer.flip();
+        return buffer;
+    }
 
-                            out.writeInt(Config.MESSAGE_ACK);
-                            if (flag == Config.MESSAGE_OUTGOING_RESPONSE) {
-                                out.writeUTF(response);
-                            }
+    private class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final String address;
+        private final ByteBuffer input;
+        private final ArrayDeque<ByteBuffer> output;
+        private int protocol;
+        // Messages of the connection which are being handled. Frames carry their correlation ids so
+        // up to Config.MAX_IN_FLIGHT of them are handled at once, object stream messages one by one
+        private int inFlight;
+        private long lastActive;
 
-                            out.flush();
+        // Contents of the block data records of an object stream which are read so far
+        private final ByteArrayOutputStream payload;
+        private boolean headerRead;
+        private int blockRemaining;
 
-                            server.close();
-                        }
-                    } catch (IOException e) {
-                        log.debug(e);
-                    } finally {
-                        if(server != null && !server.isClosed())
+        // Frame which is being read, and the frames which are read completely
+        private final ByteBuffer frameHeader;
+        private byte[] framePayload;
+        private int framePayloadRead;
+        private final ArrayDeque<Frame> frames;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            address = channel.socket().getInetAddress().toString();
+            input = ByteBuffer.allocate(8192);
+            output = new ArrayDeque<>();
+            protocol = UNKNOWN;
+            lastActive = System.currentTimeMillis();
+            payload = new ByteArrayOutputStream();
+            frameHeader = ByteBuffer.allocate(Frame.HEADER_SIZE);
+            frames = new ArrayDeque<>();
+        }
+
+        void read() throws IOException {
+            int read = channel.read(input);
+            if (read < 0) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            input.flip();
+            if (protocol == UNKNOWN && input.remaining() >= 2) {
+                protocol = input.getShort(input.position()) == Frame.MAGIC ? FRAMES : OBJECT_STREAM;
+                if (protocol == OBJECT_STREAM)
+                    respond(ByteBuffer.wrap(STREAM_HEADER));
+            }
+            if (protocol == FRAMES)
+                readFrames();
+            else if (protocol == OBJECT_STREAM)
+                unblock();
+            input.compact();
+            handle();
+            interest();
+        }
+
+        private void readFrames() throws IOException {
+            while (input.hasRemaining()) {
+                if (framePayload == null) {
+                    while (frameHeader.hasRemaining() && input.hasRemaining())
+                        frameHeader.put(input.get());
+                    if (frameHeader.hasRemaining())
+                        return;
+                    framePayload = new byte[Frame.checkHeader(frameHeader)];
+                    framePayloadRead = 0;
+                }
+
+                int length = Math.min(framePayload.length - framePayloadRead, input.remaining());
+                input.get(framePayload, framePayloadRead, length);
+                framePayloadRead += length;
+                if (framePayloadRead == framePayload.length) {
+                    frames.add(Frame.of(frameHeader, framePayload));
+                    frameHeader.clear();
+                    framePayload = null;
+                }
+            }
+        }
+
+        // Moves the contents of the block data records to the payload
+        private void unblock() throws IOException {
+            if (!headerRead) {
+                if (input.remaining() < STREAM_HEADER.length)
+                    return;
+                for (byte b : STREAM_HEADER) {
+                    if (input.get() != b)
+                        throw new IOException("Not an object stream");
+                }
+                headerRead = true;
+            }
+
+            while (input.hasRemaining()) {
+                if (blockRemaining > 0) {
+                    int length = Math.min(blockRemaining, input.remaining());
+                    payload.write(input.array(), input.arrayOffset() + input.position(), length);
+                    input.position(input.position() + length);
+                    blockRemaining -= length;
+                    continue;
+                }
+
+                int tag = input.get(input.position()) & 0xFF;
+                if (tag == TC_BLOCKDATA) {
+                    if (input.remaining() < 2)
+                        return;
+                    input.get();
+                    blockRemaining = input.get() & 0xFF;
+                } else if (tag == TC_BLOCKDATALONG) {
+                    if (input.remaining() < 5)
+                        return;
+                    input.get();
+                    blockRemaining = input.getInt();
+                    if (blockRemaining < 0)
+                        throw new IOException("Invalid block length");
+                } else {
+                    throw new IOException("Unexpected object stream record " + tag);
+                }
+            }
+        }
+
+        private void handle() throws IOException {
+            if (protocol == FRAMES)
+                handleFrames();
+            else if (protocol == OBJECT_STREAM)
+                handleObjectStream();
+        }
+
+        // Answers the hellos and pings and hands the messages to the workers
+        private void handleFrames() throws IOException {
+            while (inFlight < Config.MAX_IN_FLIGHT && !frames.isEmpty()) {
+                Frame frame = frames.poll();
+                int id = frame.getCorrelation();
+                switch (frame.getType()) {
+                    case Frame.HELLO:
+                        respond(Frame.of(Frame.HELLO, id, new byte[]{Frame.VERSION}).encode());
+                        break;
+                    case Frame.PING:
+                        respond(Frame.of(Frame.RESPONSE, id).encode());
+                        break;
+                    case Frame.MESSAGE:
+                    case Frame.REQUEST:
+                        boolean request = frame.getType() == Frame.REQUEST;
+                        String str = frame.getText();
+                        dispatch(() -> {
+                            String response = notify(request ? Config.MESSAGE_OUTGOING_RESPONSE : Config.MESSAGE_OUTGOING, str);
+                            if (response == null)
+                                return Frame.of(Frame.ERROR, id).encode();
+                            return Frame.of(Frame.RESPONSE, id, request ? response : "").encode();
+                        });
+                        break;
+                    case Frame.BLOCK_REQUEST:
+                        String hash = frame.getText();
+                        dispatch(() -> {
                             try {
-                                server.close();
+                                return Frame.of(Frame.RESPONSE, id, client.getBlockData(hash)).encode();
                             } catch (Exception e) {
-
+                                log.debug(e);
+                                return Frame.of(Frame.ERROR, id).encode();
                             }
+                        });
+                        break;
+                    case Frame.BLOCKS_REQUEST:
+                        List<String> hashes = Arrays.asList(frame.getText().split("\n"));
+                        dispatch(() -> {
+                            try {
+                                return Frame.of(Frame.RESPONSE, id, client.getBlocksData(hashes)).encode();
+                            } catch (Exception e) {
+                                log.debug(e);
+                                return Frame.of(Frame.ERROR, id).encode();
+                            }
+                        });
+                        break;
+                    default:
+                        respond(Frame.of(Frame.ERROR, id).encode());
+                }
+            }
+        }
+
+        // Answers the pings and hands the next complete message to a worker
+        private void handleObjectStream() throws IOException {
+            while (inFlight == 0 && payload.size() >= 4) {
+                byte[] bytes = payload.toByteArray();
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                int flag = in.readInt();
+
+                if (flag == Config.MESSAGE_SERVER_TEST) {
+                    consume(bytes, 4);
+                    respond(response(Config.MESSAGE_ACK, null));
+                    continue;
+                }
+                if (bytes.length < 6)
+                    return;
+                int length = ((bytes[4] & 0xFF) << 8) | (bytes[5] & 0xFF);
+                if (bytes.length < 6 + length)
+                    return;
+                String str = in.readUTF();
+                consume(bytes, 6 + length);
+                dispatch(() -> {
+                    String response = notify(flag, str);
+                    // As a failed handler thread did, the connection is closed and the sender retries
+                    if (response == null)
+                        return null;
+                    try {
+                        return response(Config.MESSAGE_ACK, flag == Config.MESSAGE_OUTGOING_RESPONSE ? response : null);
+                    } catch (IOException e) {
+                        log.debug(e);
+                        return null;
                     }
+                });
+            }
+        }
 
-                }).start();
+        // Response of the client to the message, null if it cannot be handled
+        private String notify(int flag, String str) {
+            String msg = address + Config.CLIENT_MESSAGE_SPLITTER + str;
+            log.debug("Client is notifying with " + flag + " | " + msg);
+            try {
+                return client.notify(msg);
+            } catch (Exception e) {
+                log.warn("Message cannot be handled.");
+                log.debug(e);
+                return null;
+            }
+        }
 
+        // The work is done by a worker, the connection is closed if it gives no response
+        private void dispatch(Supplier<ByteBuffer> work) {
+            inFlight++;
+            try {
+                workers.execute(() -> {
+                    ByteBuffer response = work.get();
+                    completed.add(() -> complete(response));
+                    selector.wakeup();
+                });
+            } catch (RejectedExecutionException e) {
+                log.warn("Server is overloaded, connection of " + address + " is closed.");
+                close();
             }
-            catch (SocketTimeoutException s) {
-                log.warn("Server socket timed out!");
-                s.printStackTrace();
+        }
+
+        private void complete(ByteBuffer response) {
+            inFlight--;
+            if (!channel.isOpen())
+                return;
+            if (response == null) {
+                close();
+                return;
+            }
+            try {
+                respond(response);
+                handle();
+                interest();
+            } catch (IOException e) {
+                log.debug(e);
+                close();
+            }
+        }
+
+        private ByteBuffer response(int ack, String response) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(ack);
+            if (response != null)
+                out.writeUTF(response);
+            out.flush();
+            return blockData(bytes.toByteArray());
+        }
+
+        private void consume(byte[] bytes, int length) {
+            payload.reset();
+            payload.write(bytes, length, bytes.length - length);
+        }
+
+        void respond(ByteBuffer buffer) throws IOException {
+            output.add(buffer);
+            write();
+        }
+
+        void write() throws IOException {
+            while (!output.isEmpty()) {
+                ByteBuffer buffer = output.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining())
+                    break;
+                output.poll();
+            }
+            interest();
+        }
+
+        // Frames are not read while as many of them as can be handled at once are waiting
+        private void interest() {
+            if (!key.isValid())
+                return;
+            int ops = frames.size() < Config.MAX_IN_FLIGHT ? SelectionKey.OP_READ : 0;
+            key.interestOps(output.isEmpty() ? ops : ops | SelectionKey.OP_WRITE);
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
             } catch (IOException e) {
-                log.warn("IOException while receiving server request!");
                 log.debug(e);
             }
         }
     }
-}
\ No newline at end of file
+}
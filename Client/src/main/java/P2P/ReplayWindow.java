@@ -0,0 +1,32 @@
+package P2P;
+
+/**
+ * Sequence numbers which were received in a session. A number is taken once, and only
+ * if it is above the highest one or among the last WIDTH under it, so the messages which
+ * are sent on different connections of a peer may come in a different order.
+ */
+class ReplayWindow {
+
+    static final int WIDTH = 64;
+
+    private long highest;
+    // Bit i is set if highest - i was received
+    private long seen;
+
+    // False if the number was received before or is too old
+    synchronized boolean accept(long sequence) {
+        if (sequence <= 0)
+            return false;
+        if (sequence > highest) {
+            long shift = sequence - highest;
+            seen = shift >= WIDTH ? 1 : (seen << shift) | 1;
+            highest = sequence;
+            return true;
+        }
+        long offset = highest - sequence;
+        if (offset >= WIDTH || (seen & (1L << offset)) != 0)
+            return false;
+        seen |= 1L << offset;
+        return true;
+    }
+}
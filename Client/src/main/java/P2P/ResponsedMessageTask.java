@@ -3,11 +3,6 @@ package P2P;
 import Util.Config;
 import org.apache.log4j.Logger;
 
-import java.io.DataInputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
 import java.util.concurrent.Callable;
 
 /**
@@ -17,49 +12,33 @@ public class ResponsedMessageTask implements Callable<String> {
 
     private Peer p;
     private String msg;
+    private ConnectionPool connections;
+    private SessionManager sessions;
     private Logger log = Client.log;
 
-    public ResponsedMessageTask(Peer p, String msg) {
+    public ResponsedMessageTask(Peer p, String msg, ConnectionPool connections) {
+        this(p, msg, connections, null);
+    }
+
+    // The message is signed with the session of the peer if sessions are given
+    public ResponsedMessageTask(Peer p, String msg, ConnectionPool connections, SessionManager sessions) {
         this.p = p;
         this.msg = msg;
+        this.connections = connections;
+        this.sessions = sessions;
     }
 
     @Override
     public String call() throws Exception {
 
-        int trials = 0;
-        while(trials < Config.MESSAGE_MAX_TRIALS) {
-            try {
-                log.trace(p.getPeerServerPort());
-                log.trace(p.getAddress());
-                Socket messagedClient = new Socket(p.getAddress(), p.getPeerServerPort());
-                messagedClient.setSoTimeout(Config.MESSAGE_TIMEOUT);
-                ObjectOutputStream out = new ObjectOutputStream(messagedClient.getOutputStream());
-                out.writeInt(Config.MESSAGE_OUTGOING_RESPONSE);
-                out.writeUTF(msg);
-                out.flush();
-
-                ObjectInputStream in = new ObjectInputStream(new DataInputStream(messagedClient.getInputStream()));
-                int ack = in.readInt();
-
-                if (ack == Config.MESSAGE_ACK) {
-                    String response = in.readUTF();
-                    return response;
-                } else {
-                    log.trace("Non flag read");
-                }
-                messagedClient.close();
-
-            } catch (IOException e) {
-                log.warn("EXCEPTIOON\n\n\n");
-                log.warn(e);
-                trials++;
-                continue;
-            }
-            trials++;
+        log.trace(p.getPeerServerPort());
+        log.trace(p.getAddress());
+        String msg = sessions != null ? sessions.seal(p, this.msg) : this.msg;
+        String response = connections.send(p, Config.MESSAGE_OUTGOING_RESPONSE, msg);
+        if (response == null) {
+            log.warn("Message cannot be sent after " + Config.MESSAGE_MAX_TRIALS + " trials");
+            log.warn(msg);
         }
-        log.warn("Message cannot be sent after " + Config.MESSAGE_MAX_TRIALS + " trials");
-        log.warn(msg);
-        return null;
+        return response;
     }
 }
@@ -0,0 +1,318 @@
+package P2P;
+
+import Util.Config;
+import Util.CrypDist;
+import Util.Decryption;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.apache.log4j.Logger;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Authenticated sessions with the peers. The server issued token of a peer is checked
+ * with an RSA decryption only once, in a handshake which also agrees on a session key
+ * with ECDH. The later messages carry an HMAC of their content under the session key
+ * instead of the token, so they are checked without any RSA operation.
+ *
+ * The session id is chosen by the peer which answers the handshake, so the sessions are
+ * kept by the address of the peer and the id, a peer cannot take the session of another
+ * one. Every signed message has a sequence number of its sender and the MAC covers the
+ * direction, a message which was already received in the session, or which is older than
+ * the replay window, is rejected.
+ *
+ * A peer which does not answer the handshake is sent the token as before, and the
+ * handshake is tried again after Config.SESSION_RETRY_PERIOD.
+ */
+public class SessionManager {
+
+    private static Logger log = Client.log;
+    private static final String MAC = "HmacSHA256";
+
+    private final CrypDist crypDist;
+    private final ConnectionPool connections;
+    private final SecureRandom random;
+    // Sessions of both directions by the addresses of the peers and the ids
+    private final ConcurrentHashMap<String, Session> sessions;
+    // Session which is used to send to a peer, by the address of the peer
+    private final ConcurrentHashMap<String, Session> outgoing;
+    // Peers which did not answer a handshake, until the next try
+    private final ConcurrentHashMap<String, Long> legacy;
+    private final ConcurrentHashMap<String, Object> locks;
+
+    public SessionManager(CrypDist crypDist, ConnectionPool connections) {
+        this.crypDist = crypDist;
+        this.connections = connections;
+        random = new SecureRandom();
+        sessions = new ConcurrentHashMap<>();
+        outgoing = new ConcurrentHashMap<>();
+        legacy = new ConcurrentHashMap<>();
+        locks = new ConcurrentHashMap<>();
+    }
+
+    // Signs the message for the peer, the message is returned as it is if there is no session with the peer
+    public String seal(Peer peer, String msg) {
+        JsonObject obj;
+        try {
+            obj = new Gson().fromJson(msg, JsonObject.class);
+        } catch (Exception e) {
+            return msg;
+        }
+        Session session = outgoing(peer);
+        if (obj == null || session == null)
+            return msg;
+
+        obj.remove("key");
+        sign(session, obj);
+        return obj.toString();
+    }
+
+    // Signs a response with the session of the request, false if the session is not known anymore
+    public boolean seal(String ip, String sessionId, JsonObject obj) {
+        Session session = sessions.get(key(ip, sessionId));
+        if (session == null || session.expired())
+            return false;
+        sign(session, obj);
+        return true;
+    }
+
+    // Address and user name of the sender of a signed message, null if the signature is not valid
+    public String[] verify(String ip, JsonObject obj) {
+        JsonElement id = obj.get("session");
+        JsonElement mac = obj.get("mac");
+        JsonElement sequence = obj.get("sequence");
+        if (id == null || mac == null || sequence == null)
+            return null;
+
+        Session session = sessions.get(key(ip, id.getAsString()));
+        if (session == null || session.expired())
+            return null;
+
+        JsonObject signed = new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
+            if (!entry.getKey().equals("mac"))
+                signed.add(entry.getKey(), entry.getValue());
+        }
+        try {
+            byte[] expected = session.mac(!session.initiator, signed.toString());
+            if (!MessageDigest.isEqual(expected, Base64.getDecoder().decode(mac.getAsString())))
+                return null;
+            if (session.received.accept(sequence.getAsLong()))
+                return new String[]{session.ip, session.user};
+            log.warn("Replayed message of session " + session.id + " from " + ip);
+        } catch (Exception e) {
+            log.debug(e);
+        }
+        return null;
+    }
+
+    // The peer does not know the session anymore, a new handshake is made for the next message
+    public void invalidate(String ip) {
+        Session session = outgoing.remove(ip);
+        if (session != null)
+            sessions.remove(key(ip, session.id));
+    }
+
+    // Answers the handshake of a peer, an empty response if its token is not valid
+    public String accept(String ip, JsonObject obj) {
+        try {
+            byte[] token = crypDist.getSessionKey();
+            String[] credentials = Decryption.decryptGet(decode(obj.get("token")));
+            if (token == null || credentials == null || !credentials[0].equals(ip)) {
+                log.warn("Session handshake with a false token from " + ip);
+                return "";
+            }
+
+            KeyPair pair = keyPair();
+            byte[] nonce = nonce();
+            byte[] key = derive(pair.getPrivate(), decode(obj.get("dh")), decode(obj.get("nonce")), nonce);
+            Session session = new Session(id(), ip, credentials[1], key, false);
+
+            removeExpired();
+            sessions.put(key(ip, session.id), session);
+            outgoing.compute(ip, (k, v) -> v == null || v.expiring() ? session : v);
+            legacy.remove(ip);
+
+            JsonObject response = new JsonObject();
+            response.addProperty("session", session.id);
+            response.addProperty("token", Base64.getEncoder().encodeToString(token));
+            response.addProperty("dh", Base64.getEncoder().encodeToString(pair.getPublic().getEncoded()));
+            response.addProperty("nonce", Base64.getEncoder().encodeToString(nonce));
+            return response.toString();
+        } catch (Exception e) {
+            log.warn("Session handshake from " + ip + " cannot be answered.");
+            log.debug(e);
+            return "";
+        }
+    }
+
+    private Session outgoing(Peer peer) {
+        String ip = peer.getAddress().toString();
+        Session session = outgoing.get(ip);
+        if (session != null && !session.expiring())
+            return session;
+
+        synchronized (locks.computeIfAbsent(ip, k -> new Object())) {
+            session = outgoing.get(ip);
+            if (session != null && !session.expiring())
+                return session;
+            Long retry = legacy.get(ip);
+            if (retry != null && retry > System.currentTimeMillis())
+                return session != null && !session.expired() ? session : null;
+
+            Session created = handshake(peer, ip);
+            if (created == null) {
+                legacy.put(ip, System.currentTimeMillis() + Config.SESSION_RETRY_PERIOD);
+                return session != null && !session.expired() ? session : null;
+            }
+            removeExpired();
+            sessions.put(key(ip, created.id), created);
+            outgoing.put(ip, created);
+            return created;
+        }
+    }
+
+    private Session handshake(Peer peer, String ip) {
+        try {
+            byte[] token = crypDist.getSessionKey();
+            if (token == null)
+                return null;
+            KeyPair pair = keyPair();
+            byte[] nonce = nonce();
+
+            JsonObject obj = new JsonObject();
+            obj.addProperty("flag", Config.MESSAGE_SESSION_HANDSHAKE);
+            obj.addProperty("token", Base64.getEncoder().encodeToString(token));
+            obj.addProperty("dh", Base64.getEncoder().encodeToString(pair.getPublic().getEncoded()));
+            obj.addProperty("nonce", Base64.getEncoder().encodeToString(nonce));
+
+            String response = new ResponsedMessageTask(peer, obj.toString(), connections).call();
+            if (response == null || response.equals("")) {
+                log.debug("Peer " + ip + " does not support sessions.");
+                return null;
+            }
+
+            JsonObject reply = new Gson().fromJson(response, JsonObject.class);
+            String[] credentials = Decryption.decryptGet(decode(reply.get("token")));
+            if (credentials == null || !credentials[0].equals(ip)) {
+                log.warn("Session handshake with a false token from " + ip);
+                return null;
+            }
+            byte[] key = derive(pair.getPrivate(), decode(reply.get("dh")), nonce, decode(reply.get("nonce")));
+            return new Session(reply.get("session").getAsString(), ip, credentials[1], key, true);
+        } catch (Exception e) {
+            log.debug("Session handshake with " + ip + " failed.");
+            log.debug(e);
+            return null;
+        }
+    }
+
+    private void sign(Session session, JsonObject obj) {
+        obj.remove("mac");
+        obj.addProperty("session", session.id);
+        obj.addProperty("sequence", session.sent.incrementAndGet());
+        try {
+            obj.addProperty("mac", Base64.getEncoder().encodeToString(session.mac(session.initiator, obj.toString())));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void removeExpired() {
+        sessions.values().removeIf(Session::expired);
+        outgoing.values().removeIf(Session::expired);
+    }
+
+    private static KeyPair keyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        return generator.generateKeyPair();
+    }
+
+    // Session key from the shared ECDH secret and the nonces of the initiator and the responder
+    private static byte[] derive(PrivateKey own, byte[] other, byte[] initiatorNonce, byte[] responderNonce) throws Exception {
+        PublicKey key = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(other));
+        KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+        agreement.init(own);
+        agreement.doPhase(key, true);
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(agreement.generateSecret());
+        digest.update(initiatorNonce);
+        digest.update(responderNonce);
+        return digest.digest();
+    }
+
+    private byte[] nonce() {
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    private String id() {
+        return Base64.getEncoder().encodeToString(nonce());
+    }
+
+    private static String key(String ip, String id) {
+        return ip + " " + id;
+    }
+
+    private static byte[] decode(JsonElement element) {
+        return element == null ? null : Base64.getDecoder().decode(element.getAsString());
+    }
+
+    private static class Session {
+        final String id;
+        final String ip;
+        final String user;
+        final SecretKeySpec key;
+        final long created;
+        // Whether this side made the handshake, the MAC of a message covers who sent it
+        final boolean initiator;
+        final AtomicLong sent;
+        final ReplayWindow received;
+
+        Session(String id, String ip, String user, byte[] key, boolean initiator) {
+            this.id = id;
+            this.ip = ip;
+            this.user = user;
+            this.key = new SecretKeySpec(key, MAC);
+            this.initiator = initiator;
+            created = System.currentTimeMillis();
+            sent = new AtomicLong();
+            received = new ReplayWindow();
+        }
+
+        byte[] mac(boolean fromInitiator, String content) throws Exception {
+            Mac mac = Mac.getInstance(MAC);
+            mac.init(key);
+            mac.update((byte) (fromInitiator ? 1 : 0));
+            return mac.doFinal(content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        boolean expired() {
+            return System.currentTimeMillis() - created > Config.SESSION_LIFETIME;
+        }
+
+        // The sender makes a new session before the receiver lets the old one expire
+        boolean expiring() {
+            return System.currentTimeMillis() - created > Config.SESSION_LIFETIME / 2;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package Query;
+
+import Blockchain.Block;
+import Blockchain.Transaction;
+import Util.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Parallel scan of the main chain for the questions which no index answers. The
+ * chain is split into ranges of blocks, the ranges are checked on the fork/join
+ * pool and their results are joined in chain order. Besides the matching
+ * transactions, their count and total data size are computed, optionally grouped
+ * by a key such as the uploader. If a query node is given, the blocks whose filters
+ * rule it out are skipped.
+ */
+public class ChainScanner
+{
+    private final List<Block> chain;
+    private final ForkJoinPool pool;
+
+    // Blocks from the genesis to the tip
+    public ChainScanner(List<Block> chain)
+    {
+        this(chain, ForkJoinPool.commonPool());
+    }
+
+    public ChainScanner(List<Block> chain, ForkJoinPool pool)
+    {
+        this.chain = new ArrayList<>(chain);
+        this.pool = pool;
+    }
+
+    public Result scan(Predicate<Transaction> predicate)
+    {
+        return scan(predicate, null, true, null);
+    }
+
+    /**
+     * @param hint     node whose block filters are checked before the predicate, may be null
+     * @param collect  whether the matching transactions are kept or only counted
+     * @param groupBy  key of the groups, null for no grouping
+     */
+    public Result scan(Predicate<Transaction> predicate, QueryNode hint, boolean collect,
+                       Function<Transaction, String> groupBy)
+    {
+        return pool.invoke(new ScanTask(0, chain.size(), predicate, hint, collect, groupBy));
+    }
+
+    private class ScanTask extends RecursiveTask<Result>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final Predicate<Transaction> predicate;
+        private final QueryNode hint;
+        private final boolean collect;
+        private final Function<Transaction, String> groupBy;
+
+        ScanTask(int from, int to, Predicate<Transaction> predicate, QueryNode hint, boolean collect,
+                 Function<Transaction, String> groupBy)
+        {
+            this.from = from;
+            this.to = to;
+            this.predicate = predicate;
+            this.hint = hint;
+            this.collect = collect;
+            this.groupBy = groupBy;
+        }
+
+        protected Result compute()
+        {
+            if (to - from > Config.SCAN_BLOCKS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                ScanTask left = new ScanTask(from, middle, predicate, hint, collect, groupBy);
+                ScanTask right = new ScanTask(middle, to, predicate, hint, collect, groupBy);
+                left.fork();
+                Result result = right.compute();
+                // Left range is earlier in the chain
+                return left.join().merge(result);
+            }
+
+            Result result = new Result();
+            for (int i = from; i < to; i++) {
+                Block block = chain.get(i);
+                if (block.getTransactions() == null || (hint != null && !hint.mightMatch(block.getFilter())))
+                    continue;
+                for (Transaction t : block.getTransactions()) {
+                    if (!predicate.test(t))
+                        continue;
+                    result.add(t);
+                    if (collect)
+                        result.transactions.add(t);
+                    if (groupBy != null) {
+                        String key = groupBy.apply(t);
+                        Aggregate group = result.groups.get(key);
+                        if (group == null) {
+                            group = new Aggregate();
+                            result.groups.put(key, group);
+                        }
+                        group.add(t);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    public static class Aggregate
+    {
+        long count;
+        long dataSize;
+
+        void add(Transaction t)
+        {
+            count++;
+            dataSize += t.getDataSize();
+        }
+
+        void add(Aggregate other)
+        {
+            count += other.count;
+            dataSize += other.dataSize;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public long getDataSize()
+        {
+            return dataSize;
+        }
+    }
+
+    public static class Result extends Aggregate
+    {
+        private final ArrayList<Transaction> transactions = new ArrayList<>();
+        private final TreeMap<String, Aggregate> groups = new TreeMap<>();
+
+        // Other result is the later part of the chain
+        Result merge(Result other)
+        {
+            add(other);
+            transactions.addAll(other.transactions);
+            for (Map.Entry<String, Aggregate> entry : other.groups.entrySet()) {
+                Aggregate group = groups.get(entry.getKey());
+                if (group == null)
+                    groups.put(entry.getKey(), entry.getValue());
+                else
+                    group.add(entry.getValue());
+            }
+            return this;
+        }
+
+        // Matching transactions in chain order, empty if they are not collected
+        public List<Transaction> getTransactions()
+        {
+            return transactions;
+        }
+
+        public Map<String, Aggregate> getGroups()
+        {
+            return groups;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package Query;
+
+import Blockchain.TransactionIndex;
+import org.apache.log4j.Logger;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of the latest queries, least recently used ones are dropped first. A result
+ * is kept with the tip of the chain and the number of transactions it has seen.
+ * When new blocks are added, only their transactions are checked and the matches are
+ * appended to the result. A query which is not cached runs as a lazy cursor, its
+ * result is kept once the cursor has read all of it. A rollback or a switch to another
+ * branch changes the epoch of the index, so the results of the old index are computed again.
+ * Queries never run while the cache is locked.
+ */
+public class QueryCache
+{
+    private static Logger log = Logger.getLogger("Query");
+
+    private final LinkedHashMap<String, Result> results;
+    private int hits;
+    private int updates;
+    private int misses;
+
+    public QueryCache(final int capacity)
+    {
+        results = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Result> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // Only parses the query, it is looked up when the cursor is read
+    public QueryCursor open(String text, TransactionIndex index, String tip) throws ParseException
+    {
+        QueryNode node = QueryParser.parse(text);
+        String key = node.toString();
+        return new QueryCursor(node, index, () -> cached(key, node, index, tip),
+                (ids, size, epoch) -> put(key, ids, epoch, size, tip));
+    }
+
+    public int[] execute(String text, TransactionIndex index, String tip) throws ParseException
+    {
+        return execute(QueryParser.parse(text), index, tip);
+    }
+
+    public int[] execute(QueryNode node, TransactionIndex index, String tip)
+    {
+        // Nodes print themselves in a normalized form
+        String key = node.toString();
+        int[] ids = cached(key, node, index, tip);
+        if (ids != null)
+            return ids;
+
+        // Blocks which are added meanwhile are left to the next update
+        int epoch = index.getEpoch();
+        int size = index.size();
+        ids = trim(QueryPlanner.execute(node, index), size);
+        put(key, ids, epoch, size, tip);
+        return ids;
+    }
+
+    /**
+     * Ids of a cached result, the transactions added since it was computed are scanned
+     * first. Returns null if the query is not cached for this index.
+     */
+    int[] cached(String key, QueryNode node, TransactionIndex index, String tip)
+    {
+        int epoch = index.getEpoch();
+        int size = index.size();
+        Result result;
+        int from;
+        int[] ids;
+        synchronized (this) {
+            result = results.get(key);
+            if (result == null || result.epoch != epoch || result.size > size) {
+                misses++;
+                log();
+                return null;
+            }
+            if (result.size == size && result.tip.equals(tip)) {
+                hits++;
+                log();
+                return result.ids;
+            }
+            from = result.size;
+            ids = result.ids;
+        }
+
+        // New transactions have greater ids, so the new matches go to the end
+        int[] added = QueryPlanner.scan(node, index, from, size);
+        if (added.length > 0) {
+            ids = Arrays.copyOf(ids, ids.length + added.length);
+            System.arraycopy(added, 0, ids, ids.length - added.length, added.length);
+        }
+        synchronized (this) {
+            // Another update may have been faster
+            if (results.get(key) == result && result.size == from) {
+                result.ids = ids;
+                result.size = size;
+                result.tip = tip;
+            }
+            updates++;
+            log();
+        }
+        return ids;
+    }
+
+    // Keeps the ids of the first size transactions, unless a newer result is cached
+    synchronized void put(String key, int[] ids, int epoch, int size, String tip)
+    {
+        Result result = results.get(key);
+        if (result != null && result.epoch == epoch && result.size >= size)
+            return;
+        results.put(key, new Result(trim(ids, size), epoch, size, tip));
+    }
+
+    private void log()
+    {
+        log.debug("Query cache: " + hits + " hits, " + updates + " updates, " + misses + " misses.");
+    }
+
+    // Ids are sorted, the ones of the transactions added after the size are dropped
+    private static int[] trim(int[] ids, int size)
+    {
+        int end = ids.length;
+        while (end > 0 && ids[end - 1] >= size)
+            end--;
+        return end == ids.length ? ids : Arrays.copyOf(ids, end);
+    }
+
+    public synchronized void clear()
+    {
+        results.clear();
+    }
+
+    private static class Result
+    {
+        int[] ids;
+        final int epoch;
+        // Transactions in the index when the result was last brought up to date
+        int size;
+        String tip;
+
+        Result(int[] ids, int epoch, int size, String tip)
+        {
+            this.ids = ids;
+            this.epoch = epoch;
+            this.size = size;
+            this.tip = tip;
+        }
+    }
+}
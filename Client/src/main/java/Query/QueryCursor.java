@@ -0,0 +1,166 @@
+package Query;
+
+import Blockchain.Block;
+import Blockchain.Transaction;
+import Blockchain.TransactionIndex;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Lazy, paged result of a query. Nothing runs until the first page is asked for,
+ * so a cursor can be opened on the event thread and read on a worker. An indexed
+ * query keeps only the ids of the matching transactions and resolves them page by
+ * page, a query without an index scans the transactions only as far as the
+ * requested page needs. A cancelled cursor returns no more pages.
+ *
+ * A cursor of the query cache first asks the cache for the ids. If the query is not
+ * cached, the cursor runs it itself and hands the ids it found to the listener once
+ * it has all of them.
+ */
+public class QueryCursor
+{
+    private final QueryNode node;
+    private final TransactionIndex index;
+    // Gives all ids at once, e.g. from the query cache, or null if it does not have them
+    private final Supplier<int[]> result;
+    // Told about the ids which the query found, null after it is told
+    private Listener listener;
+    // Null while the query is scanned
+    private int[] ids;
+    // Ids found by the scan so far, only kept for the listener
+    private int[] found;
+    private int foundCount;
+    private int epoch;
+    private boolean opened;
+    private int position;
+    // Block of the scan and whether its filter rules the query out
+    private Block block;
+    private boolean skip;
+    private volatile boolean cancelled;
+
+    QueryCursor(QueryNode node, TransactionIndex index)
+    {
+        this(node, index, null, null);
+    }
+
+    QueryCursor(QueryNode node, TransactionIndex index, Supplier<int[]> result, Listener listener)
+    {
+        this.node = node;
+        this.index = index;
+        this.result = result;
+        this.listener = listener;
+        opened = false;
+        position = 0;
+        cancelled = false;
+    }
+
+    // Runs the indexed part of the query, a scan goes on page by page
+    private void open()
+    {
+        if (opened)
+            return;
+        opened = true;
+        if (result != null)
+            ids = result.get();
+        if (ids != null) {
+            listener = null;
+            return;
+        }
+
+        epoch = index.getEpoch();
+        if (node.isIndexed(index)) {
+            int size = index.size();
+            ids = QueryPlanner.execute(node, index);
+            complete(ids, size);
+        }
+        else if (listener != null) {
+            found = new int[16];
+        }
+    }
+
+    private void complete(int[] all, int size)
+    {
+        if (listener != null && !cancelled)
+            listener.completed(all, size, epoch);
+        listener = null;
+        found = null;
+    }
+
+    public boolean hasNext()
+    {
+        if (cancelled)
+            return false;
+        open();
+        if (ids != null)
+            return position < ids.length;
+        if (position < index.size())
+            return true;
+        if (found != null)
+            complete(Arrays.copyOf(found, foundCount), position);
+        return false;
+    }
+
+    // Ids of the next matching transactions, at most pageSize of them
+    public int[] next(int pageSize)
+    {
+        if (cancelled)
+            return new int[0];
+
+        open();
+        if (ids != null) {
+            int end = Math.min(ids.length, position + pageSize);
+            int[] page = Arrays.copyOfRange(ids, position, end);
+            position = end;
+            return page;
+        }
+
+        int[] page = new int[pageSize];
+        int k = 0;
+        int size = index.size();
+        while (k < pageSize && position < size && !cancelled) {
+            Block next = index.getBlock(position);
+            if (next != block) {
+                block = next;
+                skip = block != null && !node.mightMatch(block.getFilter());
+            }
+            Transaction t = skip ? null : index.getTransaction(position);
+            if (t != null && node.matches(t, index))
+                page[k++] = position;
+            position++;
+        }
+        if (found != null) {
+            if (foundCount + k > found.length)
+                found = Arrays.copyOf(found, Math.max(found.length * 2, foundCount + k));
+            System.arraycopy(page, 0, found, foundCount, k);
+            foundCount += k;
+        }
+        return Arrays.copyOf(page, k);
+    }
+
+    public Transaction getTransaction(int id)
+    {
+        return index.getTransaction(id);
+    }
+
+    public String getBlockHash(int id)
+    {
+        return index.getBlockHash(id);
+    }
+
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    // Ids which a query found among the first size transactions of the index at the epoch
+    interface Listener
+    {
+        void completed(int[] ids, int size, int epoch);
+    }
+}
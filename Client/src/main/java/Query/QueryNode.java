@@ -0,0 +1,313 @@
+package Query;
+
+import Blockchain.BlockFilter;
+import Blockchain.TimeIndex;
+import Blockchain.Transaction;
+import Blockchain.TransactionIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A node of a parsed query. Every node can check a single transaction, the nodes
+ * which are served by an index can also give their matching transaction ids and
+ * an estimate of how many there are, so that the planner starts from the most
+ * selective one. The filter of a block tells whether a node can match any of its
+ * transactions, a scan skips the blocks which surely do not match.
+ */
+public abstract class QueryNode
+{
+    public static final long NOT_INDEXED = Long.MAX_VALUE;
+
+    public abstract boolean matches(Transaction t, TransactionIndex index);
+
+    // Number of matching transactions, NOT_INDEXED if the node has no index
+    public long estimate(TransactionIndex index)
+    {
+        return NOT_INDEXED;
+    }
+
+    // Sorted ids of the matching transactions, only called for indexed nodes
+    public int[] ids(TransactionIndex index)
+    {
+        throw new UnsupportedOperationException(this + " is not indexed");
+    }
+
+    public boolean isIndexed(TransactionIndex index)
+    {
+        return estimate(index) != NOT_INDEXED;
+    }
+
+    // False only if no transaction of the block can match
+    public boolean mightMatch(BlockFilter filter)
+    {
+        return true;
+    }
+
+    /**
+     * Word of a data summary, file name or uploader, matched as a prefix.
+     */
+    public static class Word extends QueryNode
+    {
+        final String word;
+
+        public Word(String word)
+        {
+            this.word = word.toLowerCase(Locale.ROOT);
+        }
+
+        public boolean matches(Transaction t, TransactionIndex index)
+        {
+            return startsWith(t.getDataSummary(), word) || startsWith(t.getFileName(), word)
+                    || startsWith(index.getUploader(t), word);
+        }
+
+        public long estimate(TransactionIndex index)
+        {
+            return index.countPrefix(word);
+        }
+
+        public int[] ids(TransactionIndex index)
+        {
+            return index.prefix(word);
+        }
+
+        public boolean mightMatch(BlockFilter filter)
+        {
+            return filter.mightContainPrefix("", word);
+        }
+
+        private static boolean startsWith(String text, String word)
+        {
+            for (String token : TransactionIndex.tokenize(text))
+                if (token.startsWith(word))
+                    return true;
+            return false;
+        }
+
+        public String toString()
+        {
+            return word;
+        }
+    }
+
+    /**
+     * Whole file name or uploader through the qualified tokens of the index,
+     * a value ending with * is matched as a prefix.
+     */
+    public static class Field extends QueryNode
+    {
+        final String prefix;
+        final String value;
+        final boolean wildcard;
+
+        public Field(String prefix, String value)
+        {
+            this.prefix = prefix;
+            String lower = value.toLowerCase(Locale.ROOT);
+            wildcard = lower.endsWith("*");
+            this.value = wildcard ? lower.substring(0, lower.length() - 1) : lower;
+        }
+
+        public boolean matches(Transaction t, TransactionIndex index)
+        {
+            String field = prefix.equals(TransactionIndex.FILE_PREFIX) ? t.getFileName() : index.getUploader(t);
+            if (field == null)
+                return false;
+            field = field.toLowerCase(Locale.ROOT);
+            return wildcard ? field.startsWith(value) : field.equals(value);
+        }
+
+        public long estimate(TransactionIndex index)
+        {
+            return wildcard ? index.countPrefix(prefix + value) : index.count(prefix + value);
+        }
+
+        public int[] ids(TransactionIndex index)
+        {
+            return wildcard ? index.prefix(prefix + value) : index.term(prefix + value);
+        }
+
+        public boolean mightMatch(BlockFilter filter)
+        {
+            return wildcard ? filter.mightContainPrefix(prefix, value) : filter.mightContain(prefix + value);
+        }
+
+        public String toString()
+        {
+            return prefix + value + (wildcard ? "*" : "");
+        }
+    }
+
+    /**
+     * Comparison of a numeric field: size, version or time. Only time is indexed.
+     */
+    public static class Range extends QueryNode
+    {
+        public static final String SIZE = "size";
+        public static final String VERSION = "version";
+        public static final String TIME = "time";
+
+        final String field;
+        // Inclusive bounds
+        final long min;
+        final long max;
+        // Counting a range reads its entries, so it is done once for an index size
+        private long estimate;
+        private int estimatedSize = -1;
+
+        public Range(String field, long min, long max)
+        {
+            this.field = field;
+            this.min = min;
+            this.max = max;
+        }
+
+        public boolean matches(Transaction t, TransactionIndex index)
+        {
+            long value;
+            if (field.equals(SIZE))
+                value = t.getDataSize();
+            else if (field.equals(VERSION))
+                value = t.getVersion();
+            else if (t.getTimeStamp() != null)
+                value = t.getTimeStamp();
+            else
+                return false;
+            return value >= min && value <= max;
+        }
+
+        public long estimate(TransactionIndex index)
+        {
+            TimeIndex times = index.getTimeIndex();
+            if (!field.equals(TIME) || times == null)
+                return NOT_INDEXED;
+            int size = index.size();
+            if (estimatedSize != size) {
+                estimate = times.countTransactions(min, max);
+                estimatedSize = size;
+            }
+            return estimate;
+        }
+
+        // Time index gives the ids in time order, the planner needs them sorted
+        public int[] ids(TransactionIndex index)
+        {
+            int[] ids = index.getTimeIndex().getTransactions(min, max);
+            Arrays.sort(ids);
+            return ids;
+        }
+
+        public String toString()
+        {
+            return field + "[" + min + "," + max + "]";
+        }
+    }
+
+    public static class And extends QueryNode
+    {
+        final List<QueryNode> children;
+
+        public And(List<QueryNode> children)
+        {
+            this.children = new ArrayList<>(children);
+        }
+
+        public boolean matches(Transaction t, TransactionIndex index)
+        {
+            for (QueryNode child : children)
+                if (!child.matches(t, index))
+                    return false;
+            return true;
+        }
+
+        // The smallest indexed child bounds the result
+        public long estimate(TransactionIndex index)
+        {
+            long min = NOT_INDEXED;
+            for (QueryNode child : children)
+                min = Math.min(min, child.estimate(index));
+            return min;
+        }
+
+        public int[] ids(TransactionIndex index)
+        {
+            return QueryPlanner.executeAnd(this, index);
+        }
+
+        public boolean mightMatch(BlockFilter filter)
+        {
+            for (QueryNode child : children)
+                if (!child.mightMatch(filter))
+                    return false;
+            return true;
+        }
+
+        public String toString()
+        {
+            return "(" + join(children, " AND ") + ")";
+        }
+    }
+
+    public static class Or extends QueryNode
+    {
+        final List<QueryNode> children;
+
+        public Or(List<QueryNode> children)
+        {
+            this.children = new ArrayList<>(children);
+        }
+
+        public boolean matches(Transaction t, TransactionIndex index)
+        {
+            for (QueryNode child : children)
+                if (child.matches(t, index))
+                    return true;
+            return false;
+        }
+
+        // Every child must be indexed, otherwise the union needs a scan
+        public long estimate(TransactionIndex index)
+        {
+            long total = 0;
+            for (QueryNode child : children) {
+                long estimate = child.estimate(index);
+                if (estimate == NOT_INDEXED)
+                    return NOT_INDEXED;
+                total += estimate;
+            }
+            return total;
+        }
+
+        public int[] ids(TransactionIndex index)
+        {
+            return QueryPlanner.executeOr(this, index);
+        }
+
+        public boolean mightMatch(BlockFilter filter)
+        {
+            for (QueryNode child : children)
+                if (child.mightMatch(filter))
+                    return true;
+            return false;
+        }
+
+        public String toString()
+        {
+            return "(" + join(children, " OR ") + ")";
+        }
+    }
+
+    private static String join(List<QueryNode> nodes, String separator)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (QueryNode node : nodes) {
+            if (builder.length() > 0)
+                builder.append(separator);
+            builder.append(node);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,241 @@
+package Query;
+
+import Blockchain.TransactionIndex;
+
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Parser of the query language of the query screen.
+ *
+ *   weather report          words of the summary, file name or uploader (prefix match)
+ *   file:data.csv           whole file name, file:data* for a prefix
+ *   user:alice              uploader
+ *   size>10M  size<=2048    data size, K/M/G suffixes are accepted
+ *   version:2  version>1    version of the file
+ *   after:2017-05-01        upload time, a date, date and time (2017-05-01T10:30) or epoch millis
+ *   before:2017-05-02
+ *
+ * Terms next to each other are combined with AND, OR combines the AND groups
+ * and parentheses group the terms. Values with spaces can be quoted: file:"my data.csv"
+ */
+public class QueryParser
+{
+    private final String text;
+    private final List<String> tokens;
+    private int position;
+
+    private QueryParser(String text)
+    {
+        this.text = text;
+        tokens = new ArrayList<>();
+        position = 0;
+    }
+
+    public static QueryNode parse(String text) throws ParseException
+    {
+        QueryParser parser = new QueryParser(text);
+        parser.lex();
+        if (parser.tokens.isEmpty())
+            throw new ParseException("Query is empty", 0);
+
+        QueryNode node = parser.parseOr();
+        if (parser.position < parser.tokens.size())
+            throw new ParseException("Unexpected " + parser.tokens.get(parser.position), parser.position);
+        return node;
+    }
+
+    private void lex() throws ParseException
+    {
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            }
+            else if (c == '(' || c == ')') {
+                tokens.add(String.valueOf(c));
+                i++;
+            }
+            else {
+                StringBuilder token = new StringBuilder();
+                while (i < text.length() && !Character.isWhitespace(text.charAt(i))
+                        && text.charAt(i) != '(' && text.charAt(i) != ')') {
+                    if (text.charAt(i) == '"') {
+                        int end = text.indexOf('"', i + 1);
+                        if (end < 0)
+                            throw new ParseException("Quote is not closed", i);
+                        token.append(text, i + 1, end);
+                        i = end + 1;
+                    }
+                    else
+                        token.append(text.charAt(i++));
+                }
+                tokens.add(token.toString());
+            }
+        }
+    }
+
+    private QueryNode parseOr() throws ParseException
+    {
+        List<QueryNode> children = new ArrayList<>();
+        children.add(parseAnd());
+        while (position < tokens.size() && tokens.get(position).equalsIgnoreCase("OR")) {
+            position++;
+            children.add(parseAnd());
+        }
+        return children.size() == 1 ? children.get(0) : new QueryNode.Or(children);
+    }
+
+    private QueryNode parseAnd() throws ParseException
+    {
+        List<QueryNode> children = new ArrayList<>();
+        while (position < tokens.size()) {
+            String token = tokens.get(position);
+            if (token.equals(")") || token.equalsIgnoreCase("OR"))
+                break;
+            if (token.equalsIgnoreCase("AND")) {
+                position++;
+                continue;
+            }
+            children.add(parseUnary());
+        }
+        if (children.isEmpty())
+            throw new ParseException("Missing term", position);
+        mergeRanges(children);
+        return children.size() == 1 ? children.get(0) : new QueryNode.And(children);
+    }
+
+    // after:x before:y is a single range, so that the time index reads only the entries between them
+    private static void mergeRanges(List<QueryNode> children)
+    {
+        for (int i = 0; i < children.size(); i++) {
+            if (!(children.get(i) instanceof QueryNode.Range))
+                continue;
+            QueryNode.Range range = (QueryNode.Range) children.get(i);
+            for (int j = children.size() - 1; j > i; j--) {
+                if (children.get(j) instanceof QueryNode.Range && ((QueryNode.Range) children.get(j)).field.equals(range.field)) {
+                    QueryNode.Range other = (QueryNode.Range) children.remove(j);
+                    range = new QueryNode.Range(range.field, Math.max(range.min, other.min), Math.min(range.max, other.max));
+                }
+            }
+            children.set(i, range);
+        }
+    }
+
+    private QueryNode parseUnary() throws ParseException
+    {
+        String token = tokens.get(position++);
+        if (token.equals("(")) {
+            QueryNode node = parseOr();
+            if (position >= tokens.size() || !tokens.get(position).equals(")"))
+                throw new ParseException("Parenthesis is not closed", position);
+            position++;
+            return node;
+        }
+        return parseTerm(token);
+    }
+
+    private QueryNode parseTerm(String token) throws ParseException
+    {
+        String lower = token.toLowerCase(Locale.ROOT);
+
+        if (lower.startsWith("size") || lower.startsWith("version")) {
+            String field = lower.startsWith("size") ? QueryNode.Range.SIZE : QueryNode.Range.VERSION;
+            String rest = token.substring(field.length());
+            if (!rest.isEmpty() && "<>=:".indexOf(rest.charAt(0)) >= 0)
+                return parseComparison(field, rest);
+        }
+
+        int colon = token.indexOf(':');
+        if (colon > 0) {
+            String key = lower.substring(0, colon);
+            String value = token.substring(colon + 1);
+            if (value.isEmpty())
+                throw new ParseException("Missing value of " + key, position - 1);
+
+            switch (key) {
+                case "file":
+                    return new QueryNode.Field(TransactionIndex.FILE_PREFIX, value);
+                case "user":
+                    return new QueryNode.Field(TransactionIndex.USER_PREFIX, value);
+                case "after":
+                    return new QueryNode.Range(QueryNode.Range.TIME, parseTime(value), Long.MAX_VALUE);
+                case "before":
+                    return new QueryNode.Range(QueryNode.Range.TIME, Long.MIN_VALUE, parseTime(value) - 1);
+            }
+        }
+
+        List<String> words = TransactionIndex.tokenize(token);
+        if (words.isEmpty())
+            throw new ParseException("Term has no words: " + token, position - 1);
+        if (words.size() == 1)
+            return new QueryNode.Word(words.get(0));
+
+        List<QueryNode> children = new ArrayList<>();
+        for (String word : words)
+            children.add(new QueryNode.Word(word));
+        return new QueryNode.And(children);
+    }
+
+    private QueryNode parseComparison(String field, String rest) throws ParseException
+    {
+        String op = rest.startsWith(">=") || rest.startsWith("<=") ? rest.substring(0, 2) : rest.substring(0, 1);
+        long value = parseNumber(rest.substring(op.length()), field.equals(QueryNode.Range.SIZE));
+
+        switch (op) {
+            case ">":
+                return new QueryNode.Range(field, value + 1, Long.MAX_VALUE);
+            case ">=":
+                return new QueryNode.Range(field, value, Long.MAX_VALUE);
+            case "<":
+                return new QueryNode.Range(field, Long.MIN_VALUE, value - 1);
+            case "<=":
+                return new QueryNode.Range(field, Long.MIN_VALUE, value);
+            default:
+                return new QueryNode.Range(field, value, value);
+        }
+    }
+
+    private long parseNumber(String value, boolean units) throws ParseException
+    {
+        String number = value.toUpperCase(Locale.ROOT);
+        long multiplier = 1;
+        if (units) {
+            if (number.endsWith("B"))
+                number = number.substring(0, number.length() - 1);
+            if (number.endsWith("K"))
+                multiplier = 1L << 10;
+            else if (number.endsWith("M"))
+                multiplier = 1L << 20;
+            else if (number.endsWith("G"))
+                multiplier = 1L << 30;
+            if (multiplier > 1)
+                number = number.substring(0, number.length() - 1);
+        }
+        try {
+            return Long.parseLong(number) * multiplier;
+        } catch (NumberFormatException e) {
+            throw new ParseException("Not a number: " + value, position - 1);
+        }
+    }
+
+    private long parseTime(String value) throws ParseException
+    {
+        try {
+            if (value.matches("\\d{9,}"))
+                return Long.parseLong(value);
+            if (value.contains("T"))
+                return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            return LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException | NumberFormatException e) {
+            throw new ParseException("Not a date: " + value, position - 1);
+        }
+    }
+}
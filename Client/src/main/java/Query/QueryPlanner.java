@@ -0,0 +1,155 @@
+package Query;
+
+import Blockchain.Block;
+import Blockchain.Transaction;
+import Blockchain.TransactionIndex;
+import org.apache.log4j.Logger;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Executes the queries over the indexes of the blockchain. An AND starts from its
+ * most selective indexed child, the children with a similar number of matches are
+ * intersected as posting lists and the rest only filter the candidates. An OR of
+ * indexed children is the union of their posting lists. Only a query without any
+ * indexed term is checked against the transactions, skipping the blocks whose
+ * filters rule the query out.
+ */
+public class QueryPlanner
+{
+    private static Logger log = Logger.getLogger("Query");
+
+    // A child is intersected when its posting list is at most this times the candidates
+    private static final int INTERSECT_RATIO = 8;
+
+    // Only parses the query, it runs when the cursor is read
+    public static QueryCursor open(String text, TransactionIndex index) throws ParseException
+    {
+        return open(QueryParser.parse(text), index);
+    }
+
+    public static QueryCursor open(QueryNode node, TransactionIndex index)
+    {
+        return new QueryCursor(node, index);
+    }
+
+    public static int[] execute(String text, TransactionIndex index) throws ParseException
+    {
+        return execute(QueryParser.parse(text), index);
+    }
+
+    public static int[] execute(QueryNode node, TransactionIndex index)
+    {
+        long start = System.nanoTime();
+        int[] ids = node.isIndexed(index) ? node.ids(index) : scan(node, index);
+        log.debug("Query " + node + " found " + ids.length + " transactions in "
+                + (System.nanoTime() - start) / 1000 + " us" + (node.isIndexed(index) ? "" : " by a scan"));
+        return ids;
+    }
+
+    static int[] executeAnd(QueryNode.And and, TransactionIndex index)
+    {
+        List<QueryNode> indexed = new ArrayList<>();
+        List<QueryNode> filters = new ArrayList<>();
+        for (QueryNode child : and.children) {
+            if (child.isIndexed(index))
+                indexed.add(child);
+            else
+                filters.add(child);
+        }
+        indexed.sort(Comparator.comparingLong(child -> child.estimate(index)));
+
+        int[] candidates = indexed.get(0).ids(index);
+        for (int i = 1; i < indexed.size() && candidates.length > 0; i++) {
+            QueryNode child = indexed.get(i);
+            if (child.estimate(index) <= (long) candidates.length * INTERSECT_RATIO)
+                candidates = TransactionIndex.intersect(candidates, child.ids(index));
+            else
+                filters.add(child);
+        }
+        return filter(candidates, filters, index);
+    }
+
+    static int[] executeOr(QueryNode.Or or, TransactionIndex index)
+    {
+        int[] result = new int[0];
+        for (QueryNode child : or.children)
+            result = union(result, child.ids(index));
+        return result;
+    }
+
+    // Checks the transactions one by one, used when there is no index for the query
+    static int[] scan(QueryNode node, TransactionIndex index)
+    {
+        return scan(node, index, 0, index.size());
+    }
+
+    // Ids from the first one up to the last one, exclusive
+    static int[] scan(QueryNode node, TransactionIndex index, int first, int last)
+    {
+        int[] ids = new int[Math.max(0, last - first)];
+        int k = 0;
+        Block block = null;
+        boolean skip = false;
+        for (int id = first; id < last; id++) {
+            Block next = index.getBlock(id);
+            if (next != block) {
+                block = next;
+                skip = block != null && !node.mightMatch(block.getFilter());
+            }
+            if (skip)
+                continue;
+            Transaction t = index.getTransaction(id);
+            if (t != null && node.matches(t, index))
+                ids[k++] = id;
+        }
+        return Arrays.copyOf(ids, k);
+    }
+
+    private static int[] filter(int[] candidates, List<QueryNode> filters, TransactionIndex index)
+    {
+        if (filters.isEmpty())
+            return candidates;
+        QueryNode conjunction = new QueryNode.And(filters);
+        int k = 0;
+        Block block = null;
+        boolean skip = false;
+        for (int id : candidates) {
+            Block next = index.getBlock(id);
+            if (next != block) {
+                block = next;
+                skip = block != null && !conjunction.mightMatch(block.getFilter());
+            }
+            if (skip)
+                continue;
+            Transaction t = index.getTransaction(id);
+            boolean matches = t != null;
+            for (int i = 0; matches && i < filters.size(); i++)
+                matches = filters.get(i).matches(t, index);
+            if (matches)
+                candidates[k++] = id;
+        }
+        return Arrays.copyOf(candidates, k);
+    }
+
+    static int[] union(int[] a, int[] b)
+    {
+        int[] result = new int[a.length + b.length];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length || j < b.length) {
+            if (j >= b.length || (i < a.length && a[i] < b[j]))
+                result[k++] = a[i++];
+            else if (i >= a.length || b[j] < a[i])
+                result[k++] = b[j++];
+            else {
+                result[k++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, k);
+    }
+}
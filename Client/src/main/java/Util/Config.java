@@ -14,6 +14,10 @@ public class Config {
     public static int MESSAGE_ACK = 900;
     public static int MESSAGE_REQUEST_KEYSET = 301;
     public static int MESSAGE_REQUEST_BLOCK = 302;
+    public static int MESSAGE_REQUEST_FILE_VERSIONS = 303;
+    public static int MESSAGE_SESSION_HANDSHAKE = 304;
+    public static int MESSAGE_GOSSIP = 310;
+    public static int MESSAGE_GOSSIP_DIGEST = 311;
     public static int MESSAGE_TIMEOUT = 2500;
 
     public static int MESSAGE_RESPONSE_INVALIDKEY = 401;
@@ -32,6 +36,66 @@ public class Config {
 
     public static String DB_TABLE_NAME="blockchain";
 
+    public static String WAL_FILE_PATH = "transactions.wal";
+    public static int WAL_COMPACTION_THRESHOLD = 1000;
+    public static boolean WAL_SYNC = true;
+    // Transactions which are not in a block after this long are dropped from the log
+    public static long WAL_ENTRY_LIFETIME = 7 * 24 * 60 * 60 * 1000L;
+
+    public static String SNAPSHOT_FILE_PATH = "blockchain.snapshot";
+    public static int SNAPSHOT_INTERVAL = 50;
+    // Blocks under the last one which stay in the snapshot, the older main chain blocks are archived
+    public static int SNAPSHOT_RECENT_BLOCKS = 64;
+    public static boolean BLOCK_COMPRESSION = true;
+    public static int COMPRESSION_TRAINING_BLOCKS = 256;
+
+    public static int QUERY_PAGE_SIZE = 200;
+    // Pages of query results whose transactions are kept by the table
+    public static int QUERY_WINDOW_PAGES = 5;
+    public static int QUERY_CACHE_SIZE = 32;
+    public static int SCAN_BLOCKS_PER_TASK = 64;
+    public static long STATISTICS_BUCKET = 24 * 60 * 60 * 1000L;
+    public static int UPLOADER_CACHE_SIZE = 100000;
+    public static int DECRYPTION_CACHE_SIZE = 4096;
+    public static long SESSION_LIFETIME = 60 * 60 * 1000L;
+    public static long SESSION_RETRY_PERIOD = 10 * 60 * 1000L;
+    public static int PEER_POOL_SIZE = 4;
+    public static long CONNECTION_CHECK_PERIOD = 15 * 1000L;
+    public static long CONNECTION_IDLE_TIMEOUT = 60 * 1000L;
+    public static long CONNECTION_RETRY_PERIOD = 10 * 60 * 1000L;
+    public static int SERVER_WORKER_THREADS = 8;
+    public static int SERVER_QUEUE_SIZE = 1024;
+    public static int SERVER_BACKLOG = 1024;
+    public static int FRAME_COMPRESSION_THRESHOLD = 1024;
+    public static int FRAME_MAX_SIZE = 64 * 1024 * 1024;
+    public static int MAX_IN_FLIGHT = 64;
+    public static int BLOCK_BATCH_SIZE = 256;
+    public static int SYNC_BATCH_SIZE = 64;
+    public static int SYNC_WINDOW = 1024;
+    public static int SYNC_MAX_TRIALS = 8;
+    public static long REQUEST_TIMEOUT_MIN = 200;
+    public static long HEDGE_DELAY_MIN = 50;
+    public static int HEDGED_REQUESTS = 2;
+
+    public static boolean VIRTUAL_THREADS = false;
+    public static int NETWORK_THREADS = 32;
+    public static int NETWORK_QUEUE_SIZE = 4096;
+    public static int SESSION_THREADS = 8;
+    public static int HEARTBEAT_THREADS = 16;
+    public static int GUI_THREADS = 8;
+    public static int SYNC_THREADS = Runtime.getRuntime().availableProcessors();
+    public static int BACKGROUND_QUEUE_SIZE = 256;
+    public static long EXECUTOR_SHUTDOWN_TIMEOUT = 5 * 1000L;
+
+    // Sends the broadcasts of the node by gossip. Enable it only when every peer runs a version which
+    // knows gossip, an older node fails on a MESSAGE_GOSSIP message since it has no lastHash
+    public static boolean GOSSIP = false;
+    public static int GOSSIP_FANOUT = 4;
+    public static int GOSSIP_MAX_HOPS = 6;
+    public static int GOSSIP_SEEN_CACHE_SIZE = 100000;
+    public static long GOSSIP_RETENTION = 60 * 1000L;
+    public static long GOSSIP_ANTI_ENTROPY_PERIOD = 10 * 1000L;
+
     public static String SERVER_ADDRESS = "46.101.245.232";
     public static int SERVER_PORT = 4141;
     public static int SERVER_TIMEOUT = 5000;
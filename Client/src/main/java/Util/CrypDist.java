@@ -3,6 +3,7 @@ package Util;
 import Blockchain.BlockchainManager;
 import GUI.ScreenManager;
 import P2P.Client;
+import P2P.Peer;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -11,9 +12,9 @@ import org.apache.log4j.Logger;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Base64;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class CrypDist {
 
@@ -38,6 +39,7 @@ public class CrypDist {
         client = new Client(this);
         blockchainManager = new BlockchainManager(this, sessionKey);
         updateBlockchain();
+        blockchainManager.resumePendingTransactions();
         Thread t = new Thread(client);
         t.start();
     }
@@ -49,6 +51,7 @@ public class CrypDist {
         client = new Client(this);
         blockchainManager = new BlockchainManager(this, sessionKey);
         updateBlockchain();
+        blockchainManager.resumePendingTransactions();
         Thread t = new Thread(client);
 
         if(isAuthenticated() && isActive())
@@ -108,11 +111,37 @@ public class CrypDist {
             }
 
         }
+
+        if(flagValue == Config.MESSAGE_REQUEST_FILE_VERSIONS) {
+            log.debug("FILE VERSIONS REQUESTED.");
+            return blockchainManager.getFileVersions(obj2.get("data").getAsString());
+        }
+
+        if(flagValue == Config.MESSAGE_SESSION_HANDSHAKE) {
+            return client.getSessions().accept(ip, obj2);
+        }
+
+        // Gossip messages carry the token of their origin, they are checked when they are delivered
+        if(flagValue == Config.MESSAGE_GOSSIP) {
+            return client.getGossip().receive(ip, obj2);
+        }
+
+        if(flagValue == Config.MESSAGE_GOSSIP_DIGEST) {
+            return client.getGossip().digest(obj2);
+        }
         byte[] dummy = new byte[1];
 
         String hashValue = obj2.get("lastHash").getAsString();
-        byte[] key = Base64.getDecoder().decode( gson.fromJson(obj2.get("key").getAsString(),dummy.getClass()));
-        String[] credentials = Decryption.decryptGet(key);
+        // Signed messages are checked with the session of the peer, the others with their token
+        String[] credentials;
+        boolean signed = obj2.has("mac");
+        if(signed) {
+            credentials = client.getSessions().verify(ip, obj2);
+        }
+        else {
+            byte[] key = Base64.getDecoder().decode( gson.fromJson(obj2.get("key").getAsString(),dummy.getClass()));
+            credentials = Decryption.decryptGet(key);
+        }
         String messageIp;
         if(credentials == null){
             log.warn("The incoming message includes false key");
@@ -125,7 +154,6 @@ public class CrypDist {
 
 
         JsonObject toReturn = new JsonObject();
-        toReturn.addProperty("key", Base64.getEncoder().encodeToString(sessionKey));
 
         if(ip.equals(messageIp)) {
             if (blockchainManager.validateHash(hashValue)) {
@@ -158,6 +186,9 @@ public class CrypDist {
         else  {
             toReturn.addProperty("response", Config.MESSAGE_RESPONSE_INVALIDKEY);
         }
+
+        if(!signed || credentials == null || !client.getSessions().seal(ip, obj2.get("session").getAsString(), toReturn))
+            toReturn.addProperty("key", Base64.getEncoder().encodeToString(sessionKey));
         return gson.toJson(toReturn);
     }
 
@@ -176,54 +207,20 @@ public class CrypDist {
         if(flag == Config.FLAG_BROADCAST_TRANSACTION) {
 
             log.debug("TRANSACTION IS BEING SENT");
-            HashMap<String,String> results = client.broadCastMessageResponseWithIp(obj.toString());
-
-            log.debug("RESULT SIZE IS " + results);
-            int totalValidResponses = 0;
-            int totalValidations = 0;
-            int totalInvalidKeysResponses = 0;
-            int totalInvalidHashResponses = 0;
-            String transaction = null;
-
-            for(Map.Entry<String,String> entry : results.entrySet()) {
-
-                JsonObject result = gson.fromJson(entry.getValue(), JsonObject.class);
-                byte[] key = Base64.getDecoder().decode(result.get("key").getAsString());
-                String[] credentials = Decryption.decryptGet(key);
-                if (credentials == null) {
-                    continue;
-                }
-                String messageIp = credentials[0];
-                String username = credentials[1];
-
-
-                if (messageIp.equals(entry.getKey()) && username.length() > 2) {
-                    int response = result.get("response").getAsInt();
-
-                    if (response == Config.MESSAGE_RESPONSE_INVALIDKEY) {
-                        totalInvalidKeysResponses++;
-                    }
-                    if (response == Config.MESSAGE_RESPONSE_VALID) {
-
-                        if(transaction != null && !transaction.equals(result.get("transaction").getAsString()))
-                            log.warn("WRONG RESPONSE");
-
-                        transaction = result.get("transaction").getAsString();
-                        totalValidations++;
-                    }
-                    if (response == Config.MESSAGE_RESPONSE_INVALIDHASH)
-                        totalInvalidHashResponses++;
-
-                    totalValidResponses++;
-                }
+            Map<Peer, CompletableFuture<String>> replies = client.broadCastMessageAsync(obj.toString(), true);
+            ValidationRound round = new ValidationRound(client.getSessions(), replies.size());
+            for(Map.Entry<Peer, CompletableFuture<String>> entry : replies.entrySet()) {
+                String ip = entry.getKey().getAddress().toString();
+                entry.getValue().whenComplete((response, e) -> round.count(ip, e == null ? response : null));
             }
 
-            log.debug(totalValidations + " vs  " + totalValidResponses);
-            log.debug("Invalid:" + totalInvalidHashResponses + " vs  " + totalValidResponses);
+            // The round ends when the majority is known, the slower peers are counted later
+            ValidationRound.Outcome outcome = round.getOutcome().join();
+            log.debug("VALIDATION OUTCOME IS " + outcome);
 
-            if(totalValidations >= totalValidResponses/2+1)
-                blockchainManager.markValid(transaction);
-            else if(totalInvalidHashResponses >= totalValidResponses/2 +1)
+            if(outcome == ValidationRound.Outcome.VALID)
+                blockchainManager.markValid(round.getTransaction());
+            else if(outcome == ValidationRound.Outcome.INVALID_HASH)
             {
                 updateBlockchain();
                 blockchainManager.addTransaction(obj.get("data").getAsString());
@@ -244,6 +241,12 @@ public class CrypDist {
         return "";
     }
 
+    // Versions of a file which this node does not know yet, as the peers have them
+    public ArrayList<String> requestFileVersions(String fileName)
+    {
+        return client.receiveFileVersions(fileName);
+    }
+
     public void updateBlockchain()
     {
         synchronized (this) {
@@ -280,13 +283,10 @@ public class CrypDist {
                 return;
             }
 
-            HashMap<String, String> blocks = client.receiveBlocks(neededBlocks);
-
-            for (String str : blocks.values())
-                log.debug("BLOCK " + str);
-
+            int added = client.syncBlocks(neededBlocks, blockchainManager);
+            log.debug(added + " OF " + neededBlocks.size() + " BLOCKS ARE ADDED");
 
-            blockchainManager.addNewBlocks(blocks);
+            blockchainManager.finishReceivingBlocks();
             blockchainManager.setUpdating(false);
         }
     }
@@ -3,6 +3,7 @@ package Util;
 import org.apache.log4j.Logger;
 
 import javax.crypto.Cipher;
+import java.nio.ByteBuffer;
 import java.security.KeyFactory;
 import java.security.PrivateKey;
 import java.security.spec.PKCS8EncodedKeySpec;
@@ -10,12 +11,17 @@ import java.util.Base64;
 
 /**
  * Created by od on 1.05.2017.
+ *
+ * Every thread decrypts with its own cipher, so the decryptions do not wait for
+ * each other. Session keys are sent with every message, the recently decrypted
+ * ones are cached and not decrypted again.
  */
 public class Decryption {
     private static transient Logger log = Logger.getLogger("Decryption");
     public static Decryption instance;
-    public static Cipher cipher;
-    public static final Object lock = new Object();
+    private static volatile PrivateKey privateKey;
+    private static final ThreadLocal<ThreadCipher> ciphers = new ThreadLocal<>();
+    private static final LruCache<ByteBuffer, String[]> verified = new LruCache<>(Config.DECRYPTION_CACHE_SIZE);
 
     public Decryption() throws Exception{
 
@@ -26,8 +32,11 @@ public class Decryption {
         PKCS8EncodedKeySpec keySpecPKCS8 = new PKCS8EncodedKeySpec(Base64.getDecoder().decode(privateKeyContent));
         PrivateKey privKey = kf.generatePrivate(keySpecPKCS8);
 
-        cipher = Cipher.getInstance("RSA");
+        // Checks the key once, the ciphers of the threads are created with it later
+        Cipher cipher = Cipher.getInstance("RSA");
         cipher.init(Cipher.DECRYPT_MODE, privKey);
+        privateKey = privKey;
+        verified.clear();
     }
 
     public static boolean initialization(){
@@ -40,23 +49,51 @@ public class Decryption {
         }
     }
 
+    // Cipher of the current thread, it is created again if the key is changed
+    private static Cipher cipher() throws Exception {
+        PrivateKey key = privateKey;
+        ThreadCipher cipher = ciphers.get();
+        if (cipher == null || cipher.key != key) {
+            cipher = new ThreadCipher(key);
+            ciphers.set(cipher);
+        }
+        return cipher.cipher;
+    }
+
+    private static class ThreadCipher {
+        final PrivateKey key;
+        final Cipher cipher;
+
+        ThreadCipher(PrivateKey key) throws Exception {
+            this.key = key;
+            cipher = Cipher.getInstance("RSA");
+            cipher.init(Cipher.DECRYPT_MODE, key);
+        }
+    }
+
     public static String[] decryptGet(byte[] secret) {
-        synchronized (lock) {
-            try {
-                String result = new String(cipher.doFinal(secret), "UTF8");
-                log.debug(result);
-                String[] splitted = result.split(Config.KEY_SPLITTER);
-                if (splitted.length < 2 || splitted.length > 2) {
-                    log.warn("SPLITTED SIZE=\t" + splitted.length);
-                    for (String str : splitted)
-                        log.warn("SPLITTED\t" + str);
-                    return null;
-                }
-                return splitted;
-            } catch (Exception e) {
-                log.debug(e);
+        if (secret == null)
+            return null;
+        ByteBuffer key = ByteBuffer.wrap(secret.clone());
+        String[] cached = verified.get(key);
+        if (cached != null)
+            return cached.clone();
+
+        try {
+            String result = new String(cipher().doFinal(secret), "UTF8");
+            log.debug(result);
+            String[] splitted = result.split(Config.KEY_SPLITTER);
+            if (splitted.length < 2 || splitted.length > 2) {
+                log.warn("SPLITTED SIZE=\t" + splitted.length);
+                for (String str : splitted)
+                    log.warn("SPLITTED\t" + str);
                 return null;
             }
+            verified.put(key, splitted.clone());
+            return splitted;
+        } catch (Exception e) {
+            log.debug(e);
+            return null;
         }
     }
 
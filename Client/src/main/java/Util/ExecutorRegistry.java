@@ -0,0 +1,268 @@
+package Util;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared executors of the client by their names. Every executor has a bounded number of
+ * threads and a bounded queue sized in Config, so the thread count does not grow with
+ * the number of peers or requests. With Config.VIRTUAL_THREADS the executors run their
+ * tasks on virtual threads when the JDK has them, the bounds stay the same.
+ *
+ * A task must not wait for a task of its own executor, the executor may be full of tasks
+ * which wait the same way. The executors are layered instead: SESSIONS waits for NETWORK,
+ * the server workers and the GUI wait for either, NETWORK waits only for the peers.
+ */
+public final class ExecutorRegistry
+{
+    private static Logger log = Logger.getLogger("ExecutorRegistry");
+
+    // Channel openings and object stream exchanges with the peers
+    public static final String NETWORK = "network";
+    // Signing of the outgoing messages, which may make a session handshake first
+    public static final String SESSIONS = "sessions";
+    // Handlers of the messages which the peers send
+    public static final String SERVER = "server";
+    public static final String HEARTBEAT = "heartbeat";
+    public static final String MINING = "mining";
+    // Checks of the received blocks while the others are downloaded
+    public static final String SYNC = "sync";
+    public static final String QUERY = "query";
+    // Snapshots of the blockchain, one at a time so that they are written in order
+    public static final String STORAGE = "storage";
+    // Downloads, uploads and dialogs which must not run on the event dispatch thread
+    public static final String GUI = "gui";
+
+    private static final ConcurrentHashMap<String, NamedExecutor> executors = new ConcurrentHashMap<>();
+    private static ScheduledThreadPoolExecutor scheduler;
+    private static boolean hookAdded;
+    private static final boolean VIRTUAL = Config.VIRTUAL_THREADS && virtualFactory("probe") != null;
+
+    private ExecutorRegistry()
+    {
+    }
+
+    // Executor of the name, it is created on first use and again after it is shut down
+    public static NamedExecutor executor(String name)
+    {
+        NamedExecutor executor = executors.compute(name,
+                (k, v) -> v == null || v.isShutdown() ? create(name) : v);
+        addShutdownHook();
+        return executor;
+    }
+
+    // Timer of the timeouts and the periodic work, its tasks must be short
+    public static synchronized ScheduledThreadPoolExecutor scheduler()
+    {
+        if (scheduler == null || scheduler.isShutdown()) {
+            scheduler = new ScheduledThreadPoolExecutor(1, threadFactory("timer"));
+            // Timeouts are cancelled when the requests complete, they do not wait in the queue until they expire
+            scheduler.setRemoveOnCancelPolicy(true);
+        }
+        addShutdownHook();
+        return scheduler;
+    }
+
+    // Thread which lives as long as a connection, virtual if the executors are
+    public static Thread newThread(String name, Runnable task)
+    {
+        ThreadFactory factory = VIRTUAL ? virtualFactory(name) : null;
+        if (factory != null)
+            return factory.newThread(task);
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static NamedExecutor create(String name)
+    {
+        switch (name) {
+            case NETWORK:
+                return new NamedExecutor(name, Config.NETWORK_THREADS, Config.NETWORK_QUEUE_SIZE, false);
+            case SESSIONS:
+                return new NamedExecutor(name, Config.SESSION_THREADS, Config.NETWORK_QUEUE_SIZE, false);
+            case SERVER:
+                return new NamedExecutor(name, Config.SERVER_WORKER_THREADS, Config.SERVER_QUEUE_SIZE, false);
+            case HEARTBEAT:
+                return new NamedExecutor(name, Config.HEARTBEAT_THREADS, Config.NETWORK_QUEUE_SIZE, true);
+            case SYNC:
+                return new NamedExecutor(name, Config.SYNC_THREADS, Config.BACKGROUND_QUEUE_SIZE, true);
+            case MINING:
+                return new NamedExecutor(name, 1, Config.BACKGROUND_QUEUE_SIZE, true);
+            case QUERY:
+                return new NamedExecutor(name, 1, Config.BACKGROUND_QUEUE_SIZE, false);
+            case STORAGE:
+                return new NamedExecutor(name, 1, Config.BACKGROUND_QUEUE_SIZE, false);
+            case GUI:
+                return new NamedExecutor(name, Config.GUI_THREADS, Config.BACKGROUND_QUEUE_SIZE, false);
+            default:
+                throw new IllegalArgumentException("Unknown executor " + name);
+        }
+    }
+
+    // Load of every executor, one line each
+    public static List<String> metrics()
+    {
+        List<String> lines = new ArrayList<>();
+        for (NamedExecutor executor : executors.values())
+            lines.add(executor.toString());
+        return lines;
+    }
+
+    // Stops the executor, the tasks in its queue are still run
+    public static void shutdown(String name)
+    {
+        NamedExecutor executor = executors.remove(name);
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    // Stops every executor, the tasks which do not end in Config.EXECUTOR_SHUTDOWN_TIMEOUT are interrupted
+    public static void shutdownAll()
+    {
+        List<ThreadPoolExecutor> all = new ArrayList<>(executors.values());
+        executors.clear();
+        synchronized (ExecutorRegistry.class) {
+            if (scheduler != null)
+                all.add(scheduler);
+            scheduler = null;
+        }
+
+        for (ThreadPoolExecutor executor : all)
+            executor.shutdown();
+        long deadline = System.currentTimeMillis() + Config.EXECUTOR_SHUTDOWN_TIMEOUT;
+        for (ThreadPoolExecutor executor : all) {
+            try {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0 || !executor.awaitTermination(left, TimeUnit.MILLISECONDS))
+                    executor.shutdownNow();
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static synchronized void addShutdownHook()
+    {
+        if (hookAdded)
+            return;
+        hookAdded = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(ExecutorRegistry::shutdownAll, "ExecutorRegistry shutdown"));
+    }
+
+    private static ThreadFactory threadFactory(String name)
+    {
+        ThreadFactory virtual = VIRTUAL ? virtualFactory(name + "-") : null;
+        if (virtual != null)
+            return virtual;
+
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Factory of the virtual threads of the JDK, null before Java 21. Thread names of a factory get increasing suffixes
+    private static ThreadFactory virtualFactory(String name)
+    {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> type = Class.forName("java.lang.Thread$Builder");
+            if (name.endsWith("-"))
+                builder = type.getMethod("name", String.class, long.class).invoke(builder, name, 1L);
+            else
+                builder = type.getMethod("name", String.class).invoke(builder, name);
+            Method factory = type.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Executor of a fixed number of threads and a bounded queue. A task which does not fit
+     * is run by the caller if the executor is a caller runs one, so the caller is slowed
+     * down, otherwise it is rejected with a RejectedExecutionException.
+     */
+    public static class NamedExecutor extends ThreadPoolExecutor
+    {
+        private final String name;
+        private final AtomicLong rejected;
+        private final AtomicInteger peakQueueDepth;
+
+        NamedExecutor(String name, int threads, int queueSize, boolean callerRuns)
+        {
+            super(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), threadFactory(name));
+            this.name = name;
+            rejected = new AtomicLong();
+            peakQueueDepth = new AtomicInteger();
+            allowCoreThreadTimeOut(true);
+            setRejectedExecutionHandler(rejection(callerRuns));
+        }
+
+        private RejectedExecutionHandler rejection(boolean callerRuns)
+        {
+            return (task, executor) -> {
+                rejected.incrementAndGet();
+                if (callerRuns && !executor.isShutdown()) {
+                    task.run();
+                    return;
+                }
+                log.warn("Executor " + name + " is full, a task is rejected.");
+                throw new RejectedExecutionException("Executor " + name + " is full");
+            };
+        }
+
+        @Override
+        public void execute(Runnable command)
+        {
+            super.execute(command);
+            int depth = getQueue().size();
+            peakQueueDepth.accumulateAndGet(depth, Math::max);
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public int getQueueDepth()
+        {
+            return getQueue().size();
+        }
+
+        public int getPeakQueueDepth()
+        {
+            return peakQueueDepth.get();
+        }
+
+        public long getRejected()
+        {
+            return rejected.get();
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + ": " + getActiveCount() + " active of " + getMaximumPoolSize() + " threads, "
+                    + getQueueDepth() + " queued (peak " + getPeakQueueDepth() + "), "
+                    + getCompletedTaskCount() + " completed, " + getRejected() + " rejected";
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package Util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Map of a bounded number of entries, the least recently used entry is dropped
+ * when it is full.
+ */
+public class LruCache<K, V>
+{
+    private final LinkedHashMap<K, V> map;
+
+    public LruCache(final int capacity)
+    {
+        map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public synchronized V get(K key)
+    {
+        return map.get(key);
+    }
+
+    public synchronized void put(K key, V value)
+    {
+        map.put(key, value);
+    }
+
+    public synchronized void remove(K key)
+    {
+        map.remove(key);
+    }
+
+    public synchronized int size()
+    {
+        return map.size();
+    }
+
+    public synchronized void clear()
+    {
+        map.clear();
+    }
+}
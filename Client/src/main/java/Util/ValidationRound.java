@@ -0,0 +1,152 @@
+package Util;
+
+import P2P.SessionManager;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.apache.log4j.Logger;
+
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Votes of the peers on a broadcast transaction. A transaction is valid if more than half
+ * of the trusted responses say so, and the chain of this node is out of date if more than
+ * half of them report an invalid hash.
+ *
+ * The outcome is known as soon as no reply which has not arrived yet can change it, so
+ * a slow peer does not hold the round until its timeout. The replies which arrive later
+ * are still counted, and a different final outcome is logged.
+ */
+class ValidationRound {
+
+    private static transient Logger log = Logger.getLogger("CrypDist");
+
+    enum Outcome { VALID, INVALID_HASH, UNDECIDED }
+
+    private final SessionManager sessions;
+    private final CompletableFuture<Outcome> outcome;
+    private int pending;
+    private int totalValidResponses;
+    private int totalValidations;
+    private int totalInvalidKeysResponses;
+    private int totalInvalidHashResponses;
+    private String transaction;
+
+    ValidationRound(SessionManager sessions, int peers) {
+        this.sessions = sessions;
+        outcome = new CompletableFuture<>();
+        pending = peers;
+        decide();
+    }
+
+    // Counts the response of a peer, null if the peer did not answer
+    synchronized void count(String ip, String response) {
+        pending--;
+        try {
+            if (response != null && !response.equals(""))
+                vote(ip, new Gson().fromJson(response, JsonObject.class));
+        } catch (Exception e) {
+            log.warn("Invalid response from " + ip);
+            log.debug(e);
+        }
+        settle();
+    }
+
+    // Counts a response whose sender is verified already
+    synchronized void countTrusted(int response, String transaction) {
+        pending--;
+        tally(response, transaction);
+        settle();
+    }
+
+    private void settle() {
+        if (!outcome.isDone()) {
+            decide();
+        } else if (pending == 0) {
+            log.debug("Late replies: " + totalValidations + " valid, " + totalInvalidHashResponses
+                    + " invalid hash of " + totalValidResponses);
+            if (outcome.getNow(null) != finalOutcome())
+                log.warn("Late replies of the validation round change its outcome to " + finalOutcome());
+        }
+    }
+
+    private void vote(String ip, JsonObject result) {
+        String[] credentials;
+        if (result.has("mac")) {
+            credentials = sessions.verify(ip, result);
+        }
+        else {
+            byte[] key = Base64.getDecoder().decode(result.get("key").getAsString());
+            credentials = Decryption.decryptGet(key);
+            // The peer does not know our session, it may have been restarted
+            if (credentials != null && result.get("response").getAsInt() == Config.MESSAGE_RESPONSE_INVALIDKEY)
+                sessions.invalidate(ip);
+        }
+        if (credentials == null)
+            return;
+        String messageIp = credentials[0];
+        String username = credentials[1];
+
+        if (messageIp.equals(ip) && username.length() > 2) {
+            int response = result.get("response").getAsInt();
+            tally(response, response == Config.MESSAGE_RESPONSE_VALID ? result.get("transaction").getAsString() : null);
+        }
+    }
+
+    private void tally(int response, String transaction) {
+        if (response == Config.MESSAGE_RESPONSE_INVALIDKEY) {
+            totalInvalidKeysResponses++;
+        }
+        if (response == Config.MESSAGE_RESPONSE_VALID) {
+
+            if(this.transaction != null && !this.transaction.equals(transaction))
+                log.warn("WRONG RESPONSE");
+
+            this.transaction = transaction;
+            totalValidations++;
+        }
+        if (response == Config.MESSAGE_RESPONSE_INVALIDHASH)
+            totalInvalidHashResponses++;
+
+        totalValidResponses++;
+    }
+
+    // Completes the round if every reply which has not arrived yet leads to the same outcome
+    private void decide() {
+        // A pending vote may be a trusted response against, which raises the majority, or no response
+        int largestMajority = (totalValidResponses + pending) / 2 + 1;
+        boolean validPossible = totalValidations + pending >= largestMajority;
+        boolean invalidHashPossible = totalInvalidHashResponses + pending >= largestMajority;
+
+        if (totalValidations >= largestMajority)
+            complete(Outcome.VALID);
+        else if (totalInvalidHashResponses >= largestMajority)
+            complete(Outcome.INVALID_HASH);
+        else if (!validPossible && !invalidHashPossible)
+            complete(Outcome.UNDECIDED);
+    }
+
+    private Outcome finalOutcome() {
+        if (totalValidations >= totalValidResponses / 2 + 1)
+            return Outcome.VALID;
+        if (totalInvalidHashResponses >= totalValidResponses / 2 + 1)
+            return Outcome.INVALID_HASH;
+        return Outcome.UNDECIDED;
+    }
+
+    private void complete(Outcome result) {
+        log.debug(totalValidations + " vs  " + totalValidResponses);
+        log.debug("Invalid:" + totalInvalidHashResponses + " vs  " + totalValidResponses);
+        if (pending > 0)
+            log.debug("Validation round is decided with " + pending + " replies pending.");
+        outcome.complete(result);
+    }
+
+    CompletableFuture<Outcome> getOutcome() {
+        return outcome;
+    }
+
+    synchronized String getTransaction() {
+        return transaction;
+    }
+}
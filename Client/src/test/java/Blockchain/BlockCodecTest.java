@@ -0,0 +1,84 @@
+package Blockchain;
+
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlockCodecTest {
+
+    static Transaction transaction(int i) throws Exception {
+        return new Transaction("/home/user/file" + i + ".txt", "file" + i + ".txt", "summary of file " + i, 100 + i,
+                new URL("https://s3.eu-central-1.amazonaws.com/bucket/file" + i + ".txt"), null, 1, 1000L + i);
+    }
+
+    static Block block(String prevHash, String hash, int length, int transactions) throws Exception {
+        ArrayList<Transaction> list = new ArrayList<>();
+        for (int i = 0; i < transactions; i++)
+            list.add(transaction(length * 10 + i));
+        return new Block(prevHash, 1000L * length, hash, "root" + length, length, 0, BlockFilter.of(list), list);
+    }
+
+    static void assertSameBlock(Block expected, Block actual) {
+        assertEquals(expected.getHash(), actual.getHash());
+        assertEquals(expected.getPreviousHash(), actual.getPreviousHash());
+        assertEquals(expected.getMerkleRoot(), actual.getMerkleRoot());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getLength(), actual.getLength());
+        assertEquals(expected.getTransactions().size(), actual.getTransactions().size());
+        for (int i = 0; i < expected.getTransactions().size(); i++)
+            assertEquals(expected.getTransactions().get(i).getId(), actual.getTransactions().get(i).getId());
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Block block = block("prev", "hash", 3, 5);
+        Block decoded = BlockCodec.decode(BlockCodec.encode(block));
+
+        assertSameBlock(block, decoded);
+        assertArrayEquals(block.getFilter().getBits(), decoded.getFilter().getBits());
+        Transaction t = decoded.getTransactions().get(2);
+        assertEquals("file32.txt", t.getFileName());
+        assertEquals("summary of file 32", t.getDataSummary());
+        assertEquals(132, t.getDataSize());
+        assertEquals(Long.valueOf(1032), t.getTimeStamp());
+        assertEquals(new URL("https://s3.eu-central-1.amazonaws.com/bucket/file32.txt"), t.getUrl());
+    }
+
+    @Test
+    public void roundTripOfNullFields() throws Exception {
+        ArrayList<Transaction> list = new ArrayList<>();
+        list.add(new Transaction(null, "name", null, 0, null, new byte[]{1, 2, 3}, 2, null));
+        Block block = new Block("", 0, "0x0", null, 0, 0, BlockFilter.of(new ArrayList<>()), list);
+
+        Block decoded = BlockCodec.decode(BlockCodec.encode(block));
+        Transaction t = decoded.getTransactions().get(0);
+        assertNull(t.getFilePath());
+        assertNull(t.getDataSummary());
+        assertNull(t.getUrl());
+        assertNull(t.getTimeStamp());
+        assertNull(decoded.getMerkleRoot());
+        assertArrayEquals(new byte[]{1, 2, 3}, t.getSignatureBytes());
+        assertEquals(2, t.getVersion());
+        assertTrue(decoded.isGenesis());
+    }
+
+    @Test
+    public void roundTripThroughCompressor() throws Exception {
+        ArrayList<byte[]> samples = new ArrayList<>();
+        for (int i = 1; i <= 20; i++)
+            samples.add(BlockCodec.encode(block("prev" + i, "hash" + i, i, 4)));
+        BlockCompressor compressor = BlockCompressor.train(samples);
+
+        Block block = block("prev", "hash", 30, 4);
+        byte[] encoded = BlockCodec.encode(block);
+        byte[] compressed = compressor.compress(encoded);
+        assertTrue(compressed.length < encoded.length);
+        assertSameBlock(block, BlockCodec.decode(compressor.decompress(compressed)));
+    }
+}
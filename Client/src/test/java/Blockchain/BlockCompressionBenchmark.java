@@ -0,0 +1,122 @@
+package Blockchain;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the compression ratio and the throughput of BlockCompressor. It is not a
+ * unit test, it is run by hand on the test classpath after mvn test-compile:
+ * BlockCompressionBenchmark [snapshot file] [number of blocks]
+ * Blocks of the given snapshot are used if it exists, otherwise blocks are generated
+ * in the shape of our uploads. Half of the blocks are used for training and the
+ * other half is measured, so the dictionary is not measured on its own samples.
+ */
+public class BlockCompressionBenchmark
+{
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception
+    {
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        List<byte[]> blocks = new ArrayList<>();
+
+        Blockchain blockchain = args.length > 0 ? new BlockchainSnapshot(args[0]).load() : null;
+        if (blockchain != null) {
+            for (Block block : blockchain.getBlocks())
+                if (!block.isGenesis())
+                    blocks.add(BlockCodec.encode(block));
+        }
+        else {
+            for (Block block : generateBlocks(count))
+                blocks.add(BlockCodec.encode(block));
+        }
+
+        List<byte[]> training = new ArrayList<>();
+        List<byte[]> measured = new ArrayList<>();
+        for (int i = 0; i < blocks.size(); i++)
+            (i % 2 == 0 ? training : measured).add(blocks.get(i));
+
+        long start = System.nanoTime();
+        BlockCompressor trained = BlockCompressor.train(training);
+        long trainingTime = System.nanoTime() - start;
+
+        System.out.println("Blocks measured:      " + measured.size());
+        System.out.println("Dictionary size:      " + trained.getDictionary().length + " bytes, trained in "
+                + trainingTime / 1000000 + " ms");
+        run("Deflate", new BlockCompressor(null), measured);
+        run("Deflate + dictionary", trained, measured);
+    }
+
+    private static void run(String name, BlockCompressor compressor, List<byte[]> blocks) throws IOException
+    {
+        long raw = 0;
+        for (byte[] block : blocks)
+            raw += block.length;
+
+        List<byte[]> compressed = new ArrayList<>(blocks.size());
+        long compressedSize = 0;
+        long encodeTime = Long.MAX_VALUE;
+        long decodeTime = Long.MAX_VALUE;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            compressed.clear();
+            compressedSize = 0;
+            long start = System.nanoTime();
+            for (byte[] block : blocks) {
+                byte[] c = compressor.compress(block);
+                compressed.add(c);
+                compressedSize += c.length;
+            }
+            encodeTime = Math.min(encodeTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (byte[] c : compressed)
+                compressor.decompress(c);
+            decodeTime = Math.min(decodeTime, System.nanoTime() - start);
+        }
+
+        System.out.println(name + ":");
+        System.out.println(String.format("  size   %d -> %d bytes, ratio %.2f", raw, compressedSize,
+                (double) raw / compressedSize));
+        System.out.println(String.format("  encode %.1f MB/s", raw / 1e6 / (encodeTime / 1e9)));
+        System.out.println(String.format("  decode %.1f MB/s", raw / 1e6 / (decodeTime / 1e9)));
+    }
+
+    private static List<Block> generateBlocks(int count) throws IOException
+    {
+        Random random = new Random(42);
+        String[] users = {"alice", "bob", "carol", "dave"};
+        String[] words = {"weather", "traffic", "survey", "sensor", "daily", "report", "raw", "cleaned"};
+
+        List<Block> blocks = new ArrayList<>(count);
+        String prevHash = "0x0";
+        long time = 1493000000000L;
+        for (int i = 0; i < count; i++) {
+            ArrayList<Transaction> transactions = new ArrayList<>();
+            int size = 1 + random.nextInt(4);
+            for (int j = 0; j < size; j++) {
+                String user = users[random.nextInt(users.length)];
+                String fileName = words[random.nextInt(words.length)] + "_" + random.nextInt(100000) + ".csv";
+                URL url = new URL("https://crypdist-trial-bucket-mfs.s3.eu-central-1.amazonaws.com/" + fileName
+                        + "?X-Amz-Algorithm=AWS4-HMAC-SHA256&X-Amz-Date=20170501T" + (100000 + random.nextInt(100000))
+                        + "Z&X-Amz-SignedHeaders=host&X-Amz-Expires=99&X-Amz-Credential=AKIAJ2EXAMPLE%2F20170501%2F"
+                        + "eu-central-1%2Fs3%2Faws4_request&X-Amz-Signature=" + Long.toHexString(random.nextLong())
+                        + Long.toHexString(random.nextLong()));
+                byte[] signature = new byte[256];
+                new Random(user.hashCode()).nextBytes(signature);
+                String summary = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)]
+                        + " data of " + user;
+                time += random.nextInt(60000);
+                transactions.add(new Transaction("/home/" + user + "/data/" + fileName, fileName, summary,
+                        random.nextInt(1 << 24), url, signature, 1 + random.nextInt(3), time));
+            }
+            String hash = Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+            blocks.add(new Block(prevHash, time, hash, Long.toHexString(random.nextLong()), i + 1, 0, null, transactions));
+            prevHash = hash;
+        }
+        return blocks;
+    }
+}
@@ -0,0 +1,64 @@
+package Blockchain;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockFilterTest {
+
+    private static BlockFilter filter(String... summaries) {
+        ArrayList<Transaction> list = new ArrayList<>();
+        for (int i = 0; i < summaries.length; i++)
+            list.add(new Transaction("/data/Report" + i + ".csv", "Report" + i + ".csv", summaries[i], 10, null, null, 1, 1000L));
+        return BlockFilter.of(list);
+    }
+
+    @Test
+    public void containsTheWordsAndTheirPrefixes() {
+        BlockFilter filter = filter("Weather observations of Ankara");
+        assertTrue(filter.mightContain("weather"));
+        assertTrue(filter.mightContain("Observations"));
+        assertTrue(filter.mightContainPrefix("", "ank"));
+        assertTrue(filter.mightContainPrefix("", "report0"));
+        assertTrue(filter.mightContain("file:report0.csv"));
+        assertTrue(filter.mightContainPrefix(TransactionIndex.FILE_PREFIX, "rep"));
+        assertTrue(filter.mightContainPrefix("", ""));
+    }
+
+    @Test
+    public void longPrefixIsCheckedByItsBeginning() {
+        BlockFilter filter = filter("internationalization");
+        assertTrue(filter.mightContainPrefix("", "internationaliz"));
+        assertTrue(filter.mightContainPrefix("", "internationalization"));
+        // The first MAX_PREFIX characters are the same, so this one cannot be ruled out
+        assertTrue(filter.mightContainPrefix("", "internationaq"));
+    }
+
+    @Test
+    public void rulesOutMostAbsentWords() {
+        String[] summaries = new String[50];
+        for (int i = 0; i < summaries.length; i++)
+            summaries[i] = "station" + i + " reading" + i + " sensor" + i;
+        BlockFilter filter = filter(summaries);
+        for (int i = 0; i < summaries.length; i++)
+            assertTrue(filter.mightContain("reading" + i));
+
+        int positives = 0;
+        for (int i = 0; i < 1000; i++)
+            if (filter.mightContain("absent" + i))
+                positives++;
+        // About 1% is expected
+        assertTrue("False positives: " + positives, positives < 50);
+    }
+
+    @Test
+    public void emptyBlockContainsNothing() {
+        BlockFilter filter = BlockFilter.of(new ArrayList<>());
+        assertFalse(filter.mightContain("weather"));
+        assertFalse(filter.mightContainPrefix("", "w"));
+        assertFalse(BlockFilter.of(null).mightContain("file:report0.csv"));
+    }
+}
@@ -0,0 +1,48 @@
+package Blockchain;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class BlockchainIndexTest {
+
+    private static void assertSameIndex(Blockchain expected, Blockchain actual) {
+        TransactionIndex e = expected.getTransactionIndex();
+        TransactionIndex a = actual.getTransactionIndex();
+        assertEquals(e.size(), a.size());
+        for (int id = 0; id < e.size(); id++)
+            assertEquals(e.getTransaction(id).getId(), a.getTransaction(id).getId());
+        for (String token : new String[]{"summary", "file2", "file:file21.txt", "file:file30.txt", "of"})
+            assertArrayEquals(token, e.prefix(token), a.prefix(token));
+        assertArrayEquals(e.getTimeIndex().getTransactions(0, Long.MAX_VALUE),
+                a.getTimeIndex().getTransactions(0, Long.MAX_VALUE));
+        assertEquals(e.getTimeIndex().getBlocks(0, Long.MAX_VALUE), a.getTimeIndex().getBlocks(0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void switchToAnotherBranchMatchesARebuild() throws Exception {
+        Blockchain blockchain = new Blockchain(new Block());
+        TransactionIndex index = blockchain.getTransactionIndex();
+        blockchain.addBlock(BlockCodecTest.block("0x0", "a1", 1, 2));
+        blockchain.addBlock(BlockCodecTest.block("a1", "a2", 2, 2));
+        blockchain.addBlock(BlockCodecTest.block("a2", "a3", 3, 2));
+        blockchain.addBlock(BlockCodecTest.block("a1", "b2", 2, 3));
+        int epoch = index.getEpoch();
+
+        blockchain.addBlock(BlockCodecTest.block("b2", "b3", 3, 1));
+        blockchain.addBlock(BlockCodecTest.block("b3", "b4", 4, 1));
+        assertEquals("b4", blockchain.getLastBlock());
+        // Ids of the old branch now belong to other transactions
+        assertNotEquals(epoch, index.getEpoch());
+
+        Blockchain rebuilt = new Blockchain(new Block());
+        List<Block> main = blockchain.getMainChain();
+        for (Block block : main.subList(1, main.size()))
+            rebuilt.addBlock(block);
+        assertSameIndex(rebuilt, blockchain);
+    }
+}
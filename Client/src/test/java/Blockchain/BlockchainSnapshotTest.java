@@ -0,0 +1,243 @@
+package Blockchain;
+
+import Util.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BlockchainSnapshotTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path;
+    private int recentBlocks;
+    private boolean compression;
+
+    @Before
+    public void setUp() throws Exception {
+        path = new File(folder.getRoot(), "blockchain.snapshot").getPath();
+        recentBlocks = Config.SNAPSHOT_RECENT_BLOCKS;
+        compression = Config.BLOCK_COMPRESSION;
+        Config.SNAPSHOT_RECENT_BLOCKS = 16;
+    }
+
+    @After
+    public void tearDown() {
+        Config.SNAPSHOT_RECENT_BLOCKS = recentBlocks;
+        Config.BLOCK_COMPRESSION = compression;
+    }
+
+    // Adds the blocks after the last one, hashes are the prefix and the length
+    private static void grow(Blockchain blockchain, String prefix, int blocks) throws Exception {
+        for (int i = 0; i < blocks; i++) {
+            Block last = blockchain.getBlock(blockchain.getLastBlock());
+            int length = last.getLength() + 1;
+            assertTrue(blockchain.addBlock(BlockCodecTest.block(last.getHash(), prefix + length, length, 2)));
+        }
+    }
+
+    private static List<String> hashes(List<Block> blocks) {
+        List<String> hashes = new ArrayList<>();
+        for (Block block : blocks)
+            hashes.add(block.getHash());
+        return hashes;
+    }
+
+    private static void assertSameChain(Blockchain expected, Blockchain actual) {
+        assertEquals(expected.getLastBlock(), actual.getLastBlock());
+        assertEquals(expected.getLength(), actual.getLength());
+        assertEquals(hashes(expected.getMainChain()), hashes(actual.getMainChain()));
+        assertEquals(expected.getKeySet(), actual.getKeySet());
+    }
+
+    @Test
+    public void restoresRecentBlocksAndArchive() throws Exception {
+        Blockchain blockchain = new Blockchain(new Block());
+        grow(blockchain, "h", 200);
+
+        BlockchainSnapshot snapshot = new BlockchainSnapshot(path);
+        BlockchainSnapshot.Checkpoint checkpoint = snapshot.capture(blockchain);
+        assertEquals(200 - 16 + 1, checkpoint.getArchivedBlocks());
+        assertEquals(16, checkpoint.getRecentBlocks());
+        snapshot.save(checkpoint);
+
+        Blockchain restored = new BlockchainSnapshot(path).load();
+        assertNotNull(restored);
+        assertSameChain(blockchain, restored);
+        BlockCodecTest.assertSameBlock(blockchain.getBlock("h50"), restored.getBlock("h50"));
+        assertTrue(restored.getNeededBlocks(blockchain.getKeySet()).isEmpty());
+        assertEquals(2 * 200, restored.getTransactionIndex().size());
+    }
+
+    @Test
+    public void restoredBlockchainGrows() throws Exception {
+        Config.BLOCK_COMPRESSION = false;
+        Blockchain blockchain = new Blockchain(new Block());
+        grow(blockchain, "h", 100);
+        new BlockchainSnapshot(path).save(blockchain);
+
+        BlockchainSnapshot snapshot = new BlockchainSnapshot(path);
+        Blockchain restored = snapshot.load();
+        grow(restored, "h", 60);
+        grow(blockchain, "h", 60);
+        long archiveSize = new File(path + ".blocks").length();
+
+        // Only the blocks which became old are appended
+        BlockchainSnapshot.Checkpoint checkpoint = snapshot.capture(restored);
+        assertEquals(60, checkpoint.getArchivedBlocks());
+        snapshot.save(checkpoint);
+        assertTrue(new File(path + ".blocks").length() > archiveSize);
+
+        assertSameChain(blockchain, new BlockchainSnapshot(path).load());
+    }
+
+    @Test
+    public void dropsArchiveRecordsAfterTheSnapshot() throws Exception {
+        Blockchain blockchain = new Blockchain(new Block());
+        grow(blockchain, "h", 100);
+        new BlockchainSnapshot(path).save(blockchain);
+
+        // A record whose snapshot was not written before a crash
+        File archive = new File(path + ".blocks");
+        long size = archive.length();
+        try (FileOutputStream out = new FileOutputStream(archive, true)) {
+            out.write(new byte[]{1, 2, 3, 4, 5});
+        }
+
+        Blockchain restored = new BlockchainSnapshot(path).load();
+        assertSameChain(blockchain, restored);
+        assertEquals(size, archive.length());
+    }
+
+    @Test
+    public void failedAppendKeepsTheArchive() throws Exception {
+        Blockchain blockchain = new Blockchain(new Block());
+        grow(blockchain, "h", 100);
+        new BlockchainSnapshot(path).save(blockchain);
+
+        BlockchainSnapshot snapshot = new BlockchainSnapshot(path);
+        Blockchain restored = snapshot.load();
+        grow(restored, "h", 60);
+        grow(blockchain, "h", 60);
+
+        // The archive cannot be written while a directory is in its place
+        BlockchainSnapshot.Checkpoint failed = snapshot.capture(restored);
+        File archive = new File(path + ".blocks");
+        File moved = new File(path + ".moved");
+        assertTrue(archive.renameTo(moved));
+        assertTrue(archive.mkdir());
+        try {
+            snapshot.save(failed);
+            fail("Archive is written.");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(archive.delete());
+        assertTrue(moved.renameTo(archive));
+
+        assertSameChain(blockchain, restored);
+        BlockchainSnapshot.Checkpoint checkpoint = snapshot.capture(restored);
+        assertEquals(60, checkpoint.getArchivedBlocks());
+        snapshot.save(checkpoint);
+        assertSameChain(blockchain, new BlockchainSnapshot(path).load());
+    }
+
+    @Test
+    public void copyWithArchivedBlocksLeavesTheArchive() throws Exception {
+        Blockchain blockchain = new Blockchain(new Block());
+        grow(blockchain, "h", 100);
+        new BlockchainSnapshot(path).save(blockchain);
+
+        Blockchain restored = new BlockchainSnapshot(path).load();
+        Blockchain whole = restored.withArchivedBlocks();
+        assertNotSame(restored, whole);
+        assertEquals(101, whole.getBlocks().size());
+        assertSameChain(blockchain, whole);
+        assertSameChain(blockchain, restored);
+    }
+
+    @Test
+    public void rewritesArchiveOfAnotherChain() throws Exception {
+        Blockchain blockchain = new Blockchain(new Block());
+        grow(blockchain, "a", 100);
+        BlockchainSnapshot snapshot = new BlockchainSnapshot(path);
+        snapshot.save(blockchain);
+
+        // Blockchain of the db which does not go through the archived blocks
+        Blockchain fetched = new Blockchain(new Block());
+        grow(fetched, "b", 80);
+        BlockchainSnapshot.Checkpoint checkpoint = snapshot.capture(fetched);
+        assertEquals(80 - 16 + 1, checkpoint.getArchivedBlocks());
+        snapshot.save(checkpoint);
+
+        Blockchain restored = new BlockchainSnapshot(path).load();
+        assertSameChain(fetched, restored);
+        assertNull(restored.getBlock("a50"));
+    }
+
+    @Test
+    public void keepsBranchesAfterTheCheckpoint() throws Exception {
+        Blockchain blockchain = new Blockchain(new Block());
+        grow(blockchain, "h", 100);
+        assertTrue(blockchain.addBlock(BlockCodecTest.block("h95", "f96", 96, 1)));
+        assertTrue(blockchain.addBlock(BlockCodecTest.block("f96", "f97", 97, 1)));
+        assertTrue(blockchain.addBlock(BlockCodecTest.block("h60", "g61", 61, 1)));
+        assertEquals("h100", blockchain.getLastBlock());
+
+        new BlockchainSnapshot(path).save(blockchain);
+        Blockchain restored = new BlockchainSnapshot(path).load();
+        assertEquals(hashes(blockchain.getMainChain()), hashes(restored.getMainChain()));
+        assertNotNull(restored.getBlock("f97"));
+        assertTrue(restored.getSinkBlocks().contains("f97"));
+        // The branch from the block 60 is under the checkpoint at 84
+        assertNull(restored.getBlock("g61"));
+        assertFalse(restored.getSinkBlocks().contains("g61"));
+    }
+
+    @Test
+    public void shortChainIsNotArchived() throws Exception {
+        Blockchain blockchain = new Blockchain(new Block());
+        grow(blockchain, "h", 10);
+        BlockchainSnapshot snapshot = new BlockchainSnapshot(path);
+        BlockchainSnapshot.Checkpoint checkpoint = snapshot.capture(blockchain);
+        assertEquals(0, checkpoint.getArchivedBlocks());
+        assertEquals(11, checkpoint.getRecentBlocks());
+        snapshot.save(checkpoint);
+
+        assertSameChain(blockchain, new BlockchainSnapshot(path).load());
+        assertFalse(new File(path + ".blocks").exists());
+    }
+
+    @Test
+    public void corruptSnapshotIsNotLoaded() throws Exception {
+        Blockchain blockchain = new Blockchain(new Block());
+        grow(blockchain, "h", 40);
+        new BlockchainSnapshot(path).save(blockchain);
+
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+            long middle = raf.length() / 2;
+            raf.seek(middle);
+            int value = raf.readByte();
+            raf.seek(middle);
+            raf.writeByte(value ^ 1);
+        }
+        assertNull(new BlockchainSnapshot(path).load());
+    }
+}
@@ -0,0 +1,67 @@
+package Blockchain;
+
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class FileVersionIndexTest {
+
+    private static Block block(String prevHash, String hash, int length, String fileName, int version) throws Exception {
+        ArrayList<Transaction> list = new ArrayList<>();
+        list.add(new Transaction("/tmp/" + fileName, fileName, "summary", 10 * version, new URL("https://example.com/" + fileName),
+                null, version, 1000L * length));
+        return new Block(prevHash, 1000L * length, hash, "root", length, 0, BlockFilter.of(list), list);
+    }
+
+    private static List<Integer> versions(FileVersionIndex index, String fileName) {
+        List<Integer> versions = new ArrayList<>();
+        for (FileVersionIndex.FileVersion version : index.getHistory(fileName))
+            versions.add(version.getVersion());
+        return versions;
+    }
+
+    @Test
+    public void followsTheMainChain() throws Exception {
+        Blockchain blockchain = new Blockchain(new Block());
+        FileVersionIndex index = blockchain.getFileVersionIndex();
+        blockchain.addBlock(block("0x0", "a1", 1, "report", 1));
+        blockchain.addBlock(block("a1", "a2", 2, "report", 2));
+        blockchain.addBlock(block("a2", "a3", 3, "other", 1));
+        assertEquals(2, index.getLatest("report").getVersion());
+
+        // A shorter branch does not change the versions
+        blockchain.addBlock(block("a1", "b2", 2, "report", 3));
+        assertEquals("a3", blockchain.getLastBlock());
+        assertEquals(2, index.getLatest("report").getVersion());
+        assertNull(index.getVersion("report", 3));
+
+        // The branch becomes the main chain, the versions of the old branch are gone
+        blockchain.addBlock(block("b2", "b3", 3, "report", 4));
+        blockchain.addBlock(block("b3", "b4", 4, "draft", 1));
+        assertEquals("b4", blockchain.getLastBlock());
+        assertEquals(4, index.getLatest("report").getVersion());
+        assertEquals("b3", index.getLatest("report").getBlockHash());
+        assertEquals(Arrays.asList(1, 3, 4), versions(index, "report"));
+        assertNull(index.getVersion("report", 2));
+        assertFalse(index.contains("other"));
+    }
+
+    @Test
+    public void builtLazilyFromTheMainChain() throws Exception {
+        Blockchain blockchain = new Blockchain(new Block());
+        blockchain.addBlock(block("0x0", "a1", 1, "report", 1));
+        blockchain.addBlock(block("a1", "a2", 2, "report", 2));
+        blockchain.addBlock(block("a1", "b2", 2, "report", 3));
+
+        FileVersionIndex index = blockchain.getFileVersionIndex();
+        assertEquals(Arrays.asList(1, 2), versions(index, "report"));
+        assertEquals(2, blockchain.getTransactionIndex().size());
+    }
+}
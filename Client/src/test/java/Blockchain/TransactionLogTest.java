@@ -0,0 +1,189 @@
+package Blockchain;
+
+import Util.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private int threshold;
+    private boolean sync;
+    private long lifetime;
+
+    @Before
+    public void setUp() throws Exception {
+        file = folder.newFile("transactions.wal");
+        threshold = Config.WAL_COMPACTION_THRESHOLD;
+        sync = Config.WAL_SYNC;
+        lifetime = Config.WAL_ENTRY_LIFETIME;
+        Config.WAL_SYNC = false;
+    }
+
+    @After
+    public void tearDown() {
+        Config.WAL_COMPACTION_THRESHOLD = threshold;
+        Config.WAL_SYNC = sync;
+        Config.WAL_ENTRY_LIFETIME = lifetime;
+    }
+
+    static Transaction transaction(int i) throws Exception {
+        return new Transaction("/tmp/file" + i, "file" + i, "summary" + i, 10 + i,
+                new URL("https://example.com/file" + i), new byte[]{(byte) i}, 1, 1000L + i);
+    }
+
+    @Test
+    public void idDependsOnFieldsOnly() throws Exception {
+        assertEquals(transaction(1).getId(), transaction(1).getId());
+        assertNotEquals(transaction(1).getId(), transaction(2).getId());
+        assertEquals(64, transaction(1).getId().length());
+    }
+
+    @Test
+    public void replaysLiveTransactions() throws Exception {
+        TransactionLog log = new TransactionLog(file.getPath());
+        log.logPending("a", "{\"a\":1}");
+        log.logPending("b", "{\"b\":1}");
+        log.logQueued("a", "{\"a\":1}");
+        log.logCommitted("b");
+        log.close();
+
+        Map<String, TransactionLog.Entry> live = new TransactionLog(file.getPath()).getLiveTransactions();
+        assertEquals(1, live.size());
+        assertEquals(TransactionLog.QUEUED, live.get("a").getState());
+        assertEquals("{\"a\":1}", live.get("a").getTransaction());
+    }
+
+    @Test
+    public void dropsTornTail() throws Exception {
+        TransactionLog log = new TransactionLog(file.getPath());
+        log.logPending("a", "{\"a\":1}");
+        log.logPending("b", "{\"b\":1}");
+        log.close();
+
+        // The last record loses a part of its checksum as if the process died while writing it
+        long torn = file.length() - 2;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(torn);
+        }
+
+        log = new TransactionLog(file.getPath());
+        Map<String, TransactionLog.Entry> live = log.getLiveTransactions();
+        assertEquals(1, live.size());
+        assertTrue(live.containsKey("a"));
+        assertTrue(file.length() < torn);
+
+        // New records follow the valid ones
+        log.logQueued("c", "{\"c\":1}");
+        log.close();
+        live = new TransactionLog(file.getPath()).getLiveTransactions();
+        assertEquals(2, live.size());
+        assertTrue(live.containsKey("c"));
+    }
+
+    @Test
+    public void dropsCorruptRecord() throws Exception {
+        TransactionLog log = new TransactionLog(file.getPath());
+        log.logPending("a", "{\"a\":1}");
+        log.logPending("b", "{\"b\":1}");
+        log.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(file.length() - 6);
+            raf.writeByte('x');
+        }
+
+        Map<String, TransactionLog.Entry> live = new TransactionLog(file.getPath()).getLiveTransactions();
+        assertEquals(1, live.size());
+        assertFalse(live.containsKey("b"));
+    }
+
+    @Test
+    public void compactsCommittedRecords() throws Exception {
+        Config.WAL_COMPACTION_THRESHOLD = 10;
+        TransactionLog log = new TransactionLog(file.getPath());
+        long full = 0;
+        for (int i = 0; i < 100; i++) {
+            String id = "t" + i;
+            String json = "{\"t\":" + i + "}";
+            log.logPending(id, json);
+            full += 1 + 4 + (id + "\n" + json).length() + 4;
+            if (i % 10 != 0) {
+                log.logCommitted(id);
+                full += 1 + 4 + id.length() + 4;
+            }
+        }
+        log.close();
+
+        // Most of the committed records are gone
+        assertTrue(file.length() < full / 2);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        Map<String, TransactionLog.Entry> live = new TransactionLog(file.getPath()).getLiveTransactions();
+        assertEquals(10, live.size());
+        for (int i = 0; i < 100; i += 10)
+            assertEquals("{\"t\":" + i + "}", live.get("t" + i).getTransaction());
+    }
+
+    @Test
+    public void unknownTransactionIsNotCommitted() throws Exception {
+        TransactionLog log = new TransactionLog(file.getPath());
+        log.logCommitted("a");
+        log.close();
+        assertEquals(0, file.length());
+    }
+
+    @Test
+    public void dropsExpiredTransactions() throws Exception {
+        TransactionLog log = new TransactionLog(file.getPath());
+        log.logPending("a", "{\"a\":1}");
+        log.close();
+
+        assertEquals(1, new TransactionLog(file.getPath()).size());
+        Config.WAL_ENTRY_LIFETIME = -1;
+        log = new TransactionLog(file.getPath());
+        log.close();
+        assertEquals(0, log.size());
+        assertEquals(0, new TransactionLog(file.getPath()).size());
+    }
+
+    @Test
+    public void replaysRecordsWithoutTime() throws Exception {
+        // A record of an older log is the id and the json
+        byte[] data = "a\n{\"a\":1}".getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(TransactionLog.QUEUED);
+        crc.update(data);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeByte(TransactionLog.QUEUED);
+            out.writeInt(data.length);
+            out.write(data);
+            out.writeInt((int) crc.getValue());
+        }
+
+        TransactionLog log = new TransactionLog(file.getPath());
+        log.close();
+        Map<String, TransactionLog.Entry> live = new TransactionLog(file.getPath()).getLiveTransactions();
+        assertEquals(1, live.size());
+        assertEquals("{\"a\":1}", live.get("a").getTransaction());
+    }
+}
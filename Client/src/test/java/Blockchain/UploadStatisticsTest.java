@@ -0,0 +1,67 @@
+package Blockchain;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UploadStatisticsTest {
+
+    private static UploadStatistics.Bucket total(UploadStatistics statistics) {
+        List<UploadStatistics.Bucket> buckets = statistics.getBuckets("", Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(1, buckets.size());
+        return buckets.get(0);
+    }
+
+    @Test
+    public void followsTheMainChain() throws Exception {
+        Blockchain blockchain = new Blockchain(new Block());
+        UploadStatistics statistics = blockchain.getUploadStatistics();
+        blockchain.addBlock(BlockCodecTest.block("0x0", "a1", 1, 2));
+        blockchain.addBlock(BlockCodecTest.block("a1", "a2", 2, 2));
+        blockchain.addBlock(BlockCodecTest.block("a2", "a3", 3, 2));
+        assertEquals(6, total(statistics).getCount());
+
+        // A shorter branch is not counted
+        blockchain.addBlock(BlockCodecTest.block("a1", "b2", 2, 3));
+        assertEquals(6, total(statistics).getCount());
+        assertEquals(6, total(statistics).getDistinctFiles());
+
+        // The branch becomes the main chain, the uploads of the old one are taken out
+        blockchain.addBlock(BlockCodecTest.block("b2", "b3", 3, 3));
+        blockchain.addBlock(BlockCodecTest.block("b3", "b4", 4, 3));
+        assertEquals("b4", blockchain.getLastBlock());
+        UploadStatistics.Bucket bucket = total(statistics);
+        assertEquals(11, bucket.getCount());
+        assertEquals(11, bucket.getDistinctFiles());
+        assertEquals(110 + 111 + 120 + 121 + 122 + 130 + 131 + 132 + 140 + 141 + 142, bucket.getDataSize());
+    }
+
+    @Test
+    public void removedUploadLeavesTheOthersOfItsFile() throws Exception {
+        UploadStatistics statistics = new UploadStatistics(t -> "alice");
+        Block first = block("h1", 1, "report", "draft");
+        Block second = block("h2", 2, "report");
+        statistics.add(first, 0);
+        statistics.add(second, 2);
+        assertEquals(2, statistics.getBuckets("alice", 0, 0).get(0).getDistinctFiles());
+
+        statistics.remove(second, 2);
+        UploadStatistics.Bucket bucket = statistics.getBuckets("alice", 0, 0).get(0);
+        assertEquals(2, bucket.getCount());
+        assertEquals(2, bucket.getDistinctFiles());
+
+        statistics.remove(first, 0);
+        assertTrue(statistics.getUploaders().isEmpty());
+    }
+
+    private static Block block(String hash, int length, String... fileNames) throws Exception {
+        ArrayList<Transaction> list = new ArrayList<>();
+        for (String fileName : fileNames)
+            list.add(new Transaction("/tmp/" + fileName, fileName, "summary", 10, null, null, 1, 1000L * length));
+        return new Block("h" + (length - 1), 1000L * length, hash, "root", length, 0, BlockFilter.of(list), list);
+    }
+}
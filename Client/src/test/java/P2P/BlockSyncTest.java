@@ -0,0 +1,175 @@
+package P2P;
+
+import Blockchain.Block;
+import Blockchain.Blockchain;
+import Util.Config;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlockSyncTest {
+
+    private int batchSize;
+    private int window;
+    private int maxTrials;
+
+    @Before
+    public void setUp() {
+        batchSize = Config.SYNC_BATCH_SIZE;
+        window = Config.SYNC_WINDOW;
+        maxTrials = Config.SYNC_MAX_TRIALS;
+        Config.SYNC_BATCH_SIZE = 4;
+        Config.SYNC_WINDOW = 16;
+    }
+
+    @After
+    public void tearDown() {
+        Config.SYNC_BATCH_SIZE = batchSize;
+        Config.SYNC_WINDOW = window;
+        Config.SYNC_MAX_TRIALS = maxTrials;
+    }
+
+    private static Block block(String prevHash, String hash, int length) {
+        JsonObject block = new JsonObject();
+        block.addProperty("hash", hash);
+        block.addProperty("prevHash", prevHash);
+        block.addProperty("length", length);
+        block.addProperty("timestamp", 1000L * length);
+        block.add("transactions", new JsonArray());
+        return new Gson().fromJson(block, Block.class);
+    }
+
+    // Blocks h1 to hn after the genesis
+    private static Map<String, Block> chain(int length) {
+        Map<String, Block> blocks = new HashMap<>();
+        String previous = "0x0";
+        for (int i = 1; i <= length; i++) {
+            blocks.put("h" + i, block(previous, "h" + i, i));
+            previous = "h" + i;
+        }
+        return blocks;
+    }
+
+    /**
+     * Peers which have the blocks, a request gets the blocks which the filter lets through.
+     * Responses land in a random order.
+     */
+    private static class Network extends ConnectionPool {
+        private final Map<String, Block> blocks;
+        private final Predicate<String> available;
+        private final Random random = new Random(7);
+        private final List<Runnable> inFlight = new ArrayList<>();
+        private int requests;
+
+        Network(Map<String, Block> blocks, Predicate<String> available) {
+            this.blocks = blocks;
+            this.available = available;
+        }
+
+        public synchronized CompletableFuture<Map<String, Block>> requestBlocksAsync(List<Peer> peers, List<String> hashes) {
+            requests++;
+            Map<String, Block> response = new HashMap<>();
+            for (String hash : hashes)
+                if (blocks.containsKey(hash) && available.test(hash))
+                    response.put(hash, blocks.get(hash));
+            CompletableFuture<Map<String, Block>> future = new CompletableFuture<>();
+            inFlight.add(() -> future.complete(response));
+            // Completes an earlier request of the window now and then, so they land out of order
+            if (inFlight.size() > 2 || random.nextBoolean())
+                inFlight.remove(random.nextInt(inFlight.size())).run();
+            if (hashes.size() < Config.SYNC_BATCH_SIZE || requests % 3 == 0)
+                flush();
+            return future;
+        }
+
+        synchronized void flush() {
+            List<Runnable> all = new ArrayList<>(inFlight);
+            inFlight.clear();
+            Collections.shuffle(all, random);
+            all.forEach(Runnable::run);
+        }
+    }
+
+    private static class Run {
+        final Blockchain blockchain = new Blockchain(new Block());
+        final List<Integer> lengths = new ArrayList<>();
+        int added;
+
+        Run(Network network, Set<String> needed) throws Exception {
+            List<Peer> peers = Collections.singletonList(new Peer(InetAddress.getLoopbackAddress(), 0, 0));
+            // A request of a full window waits for the ones before it
+            Thread flusher = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(5);
+                        network.flush();
+                    }
+                } catch (InterruptedException e) {
+                    // done
+                }
+            });
+            flusher.setDaemon(true);
+            flusher.start();
+            try {
+                added = new BlockSync(network, peers, () -> blockchain, block -> {
+                    lengths.add(block.getLength());
+                    blockchain.addBlock(block);
+                }).run(needed);
+            } finally {
+                flusher.interrupt();
+            }
+        }
+    }
+
+    private static void assertInOrder(List<Integer> lengths, int count) {
+        assertEquals(count, lengths.size());
+        for (int i = 0; i < count; i++)
+            assertEquals(i + 1, (int) lengths.get(i));
+    }
+
+    @Test
+    public void blocksAreAddedInChainOrder() throws Exception {
+        Map<String, Block> blocks = chain(100);
+        Run run = new Run(new Network(blocks, hash -> true), blocks.keySet());
+        assertEquals(100, run.added);
+        assertInOrder(run.lengths, 100);
+        assertEquals("h100", run.blockchain.getLastBlock());
+    }
+
+    @Test
+    public void fullWindowIsEvictedUntilTheGapIsFilled() throws Exception {
+        Config.SYNC_MAX_TRIALS = 20;
+        Map<String, Block> blocks = chain(60);
+        // The first block comes only after the window is full of the blocks which follow it
+        int[] trials = {0};
+        Run run = new Run(new Network(blocks, hash -> !hash.equals("h1") || ++trials[0] > 3), blocks.keySet());
+        assertEquals(60, run.added);
+        assertInOrder(run.lengths, 60);
+    }
+
+    @Test
+    public void missingBlockEndsTheDownload() throws Exception {
+        Config.SYNC_MAX_TRIALS = 3;
+        Map<String, Block> blocks = chain(40);
+        Run run = new Run(new Network(blocks, hash -> !hash.equals("h5")), blocks.keySet());
+        assertEquals(4, run.added);
+        assertInOrder(run.lengths, 4);
+        assertEquals("h4", run.blockchain.getLastBlock());
+    }
+}
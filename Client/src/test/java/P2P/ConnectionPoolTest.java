@@ -0,0 +1,69 @@
+package P2P;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionPoolTest {
+
+    private ServerSocket server;
+    private ConnectionPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        pool = new ConnectionPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+        server.close();
+    }
+
+    @Test
+    public void errorFrameIsNotRetried() throws Exception {
+        AtomicInteger batches = new AtomicInteger();
+        AtomicInteger singles = new AtomicInteger();
+        // A peer which does not know the batch request, it has none of the blocks
+        Thread thread = new Thread(() -> {
+            try (Socket socket = server.accept()) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                Frame.read(in);
+                Frame.of(Frame.HELLO, 0, new byte[]{Frame.VERSION}).write(out);
+                while (true) {
+                    Frame frame = Frame.read(in);
+                    if (frame.getType() == Frame.BLOCKS_REQUEST) {
+                        batches.incrementAndGet();
+                        Frame.of(Frame.ERROR, frame.getCorrelation()).write(out);
+                    } else {
+                        singles.incrementAndGet();
+                        Frame.of(Frame.RESPONSE, frame.getCorrelation()).write(out);
+                    }
+                }
+            } catch (Exception e) {
+                // the channel is closed
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        Peer peer = new Peer(InetAddress.getLoopbackAddress(), 0, server.getLocalPort());
+        assertTrue(pool.requestBlocksAsync(peer, Arrays.asList("h1", "h2"), 5000).get(5, TimeUnit.SECONDS).isEmpty());
+        assertEquals(1, batches.get());
+        assertEquals(2, singles.get());
+    }
+}
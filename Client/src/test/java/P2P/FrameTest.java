@@ -0,0 +1,131 @@
+package P2P;
+
+import Util.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameTest {
+
+    private int maxSize;
+
+    @Before
+    public void setUp() {
+        maxSize = Config.FRAME_MAX_SIZE;
+    }
+
+    @After
+    public void tearDown() {
+        Config.FRAME_MAX_SIZE = maxSize;
+    }
+
+    private static byte[] bytes(Frame frame) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame.write(out);
+        return out.toByteArray();
+    }
+
+    private static Frame read(byte[] data) throws IOException {
+        return Frame.read(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    // Frame of the payload as it is, with the deflate flag
+    private static byte[] deflated(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(Frame.HEADER_SIZE + payload.length);
+        buffer.putShort(Frame.MAGIC).put(Frame.VERSION).put(Frame.RESPONSE).put(Frame.FLAG_DEFLATE);
+        buffer.putInt(7).putInt(payload.length).put(payload);
+        return buffer.array();
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[data.length + 64];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private static void assertRejected(byte[] data) {
+        try {
+            read(data).getContent();
+            fail("Frame is accepted");
+        } catch (ProtocolException e) {
+            // expected
+        } catch (IOException e) {
+            fail("Not a protocol error: " + e);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] data = bytes(Frame.of(Frame.REQUEST, 42, "ping"));
+        assertEquals(Frame.HEADER_SIZE + 4, data.length);
+        Frame frame = read(data);
+        assertEquals(Frame.REQUEST, frame.getType());
+        assertEquals(42, frame.getCorrelation());
+        assertEquals("ping", frame.getText());
+    }
+
+    @Test
+    public void largePayloadIsDeflated() throws Exception {
+        byte[] content = new byte[Config.FRAME_COMPRESSION_THRESHOLD * 4];
+        Arrays.fill(content, (byte) 'a');
+        byte[] data = bytes(Frame.of(Frame.RESPONSE, 1, content));
+        assertTrue(data.length < content.length);
+        assertEquals(Frame.FLAG_DEFLATE, data[4]);
+        assertArrayEquals(content, read(data).getContent());
+    }
+
+    @Test
+    public void invalidHeadersAreRejected() throws Exception {
+        byte[] data = bytes(Frame.of(Frame.MESSAGE, 1, "x"));
+
+        byte[] magic = data.clone();
+        magic[0] = (byte) 0xAC;
+        assertRejected(magic);
+
+        byte[] version = data.clone();
+        version[2] = Frame.VERSION + 1;
+        assertRejected(version);
+
+        byte[] negative = data.clone();
+        ByteBuffer.wrap(negative).putInt(9, -1);
+        assertRejected(negative);
+
+        Config.FRAME_MAX_SIZE = 1024;
+        byte[] large = data.clone();
+        ByteBuffer.wrap(large).putInt(9, 1025);
+        assertRejected(large);
+    }
+
+    @Test
+    public void inflatedPayloadIsLimited() throws Exception {
+        Config.FRAME_MAX_SIZE = 64 * 1024;
+        byte[] bomb = deflate(new byte[1024 * 1024]);
+        assertTrue(bomb.length < Config.FRAME_MAX_SIZE);
+        assertRejected(deflated(bomb));
+    }
+
+    @Test
+    public void brokenDeflatedPayloadsAreRejected() throws Exception {
+        byte[] payload = deflate("some text which is deflated".getBytes("UTF-8"));
+        assertRejected(deflated(Arrays.copyOf(payload, payload.length / 2)));
+        assertRejected(deflated(new byte[]{1, 2, 3, 4, 5, 6}));
+    }
+}
@@ -0,0 +1,147 @@
+package P2P;
+
+import Util.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PeerChannelTest {
+
+    private ServerSocket server;
+    private int timeout;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        timeout = Config.MESSAGE_TIMEOUT;
+        Config.MESSAGE_TIMEOUT = 300;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        Config.MESSAGE_TIMEOUT = timeout;
+    }
+
+    private interface Handler {
+        void handle(Socket socket) throws Exception;
+    }
+
+    // Accepts one connection on another thread
+    private void serve(Handler handler) {
+        Thread thread = new Thread(() -> {
+            try (Socket socket = server.accept()) {
+                handler.handle(socket);
+            } catch (Exception e) {
+                // the test sees it on its side
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private IOException open() {
+        try {
+            new PeerChannel(new Peer(InetAddress.getLoopbackAddress(), 0, server.getLocalPort())).close();
+            fail("Channel is opened");
+            return null;
+        } catch (IOException e) {
+            return e;
+        }
+    }
+
+    @Test
+    public void olderPeerIsNotTalkedToInFrames() {
+        // An older peer reads an object stream, the hello frame is not one, so it closes the connection
+        serve(socket -> new ObjectInputStream(socket.getInputStream()));
+        assertTrue(open() instanceof ProtocolException);
+    }
+
+    @Test
+    public void answerWhichIsNotAFrame() {
+        serve(socket -> {
+            new DataInputStream(socket.getInputStream()).readFully(new byte[Frame.HEADER_SIZE + 1]);
+            OutputStream out = socket.getOutputStream();
+            out.write(new byte[]{(byte) 0xAC, (byte) 0xED, 0, 5, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+            out.flush();
+            Thread.sleep(1000);
+        });
+        assertTrue(open() instanceof ProtocolException);
+    }
+
+    @Test
+    public void timeoutIsRetried() {
+        serve(socket -> Thread.sleep(1000));
+        IOException e = open();
+        assertTrue(e instanceof SocketTimeoutException);
+    }
+
+    // Answers hello and the REQUEST frames, other frames are read and never answered
+    private PeerChannel openAnswering() throws Exception {
+        serve(socket -> {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            Frame.read(in);
+            Frame.of(Frame.HELLO, 0, new byte[]{Frame.VERSION}).write(socket.getOutputStream());
+            while (true) {
+                Frame frame = Frame.read(in);
+                if (frame.getType() == Frame.REQUEST)
+                    Frame.of(Frame.RESPONSE, frame.getCorrelation(), frame.getContent()).write(socket.getOutputStream());
+            }
+        });
+        return new PeerChannel(new Peer(InetAddress.getLoopbackAddress(), 0, server.getLocalPort()));
+    }
+
+    @Test
+    public void cancelledRequestIsDropped() throws Exception {
+        PeerChannel channel = openAnswering();
+        CompletableFuture<Frame> request = channel.request(Frame.MESSAGE, new byte[]{1});
+        assertEquals(1, channel.getPending());
+        request.cancel(false);
+        assertEquals(0, channel.getPending());
+        assertEquals("echo", channel.request(Frame.REQUEST, "echo".getBytes("UTF-8")).get(2, TimeUnit.SECONDS).getText());
+        channel.close();
+    }
+
+    @Test
+    public void channelWithoutAnswersIsStalled() throws Exception {
+        PeerChannel channel = openAnswering();
+        assertFalse(channel.isStalled(100));
+        channel.request(Frame.MESSAGE, new byte[]{1}).cancel(false);
+        Thread.sleep(200);
+        assertTrue(channel.isStalled(100));
+
+        // Anything which is read shows that the peer is there
+        channel.request(Frame.REQUEST, new byte[]{2}).get(2, TimeUnit.SECONDS);
+        assertFalse(channel.isStalled(100));
+        channel.close();
+    }
+
+    @Test
+    public void helloIsAnswered() throws Exception {
+        serve(socket -> {
+            Frame.read(new DataInputStream(socket.getInputStream()));
+            Frame.of(Frame.HELLO, 0, new byte[]{Frame.VERSION}).write(socket.getOutputStream());
+            Thread.sleep(1000);
+        });
+        PeerChannel channel = new PeerChannel(new Peer(InetAddress.getLoopbackAddress(), 0, server.getLocalPort()));
+        assertTrue(channel.isOpen());
+        channel.close();
+    }
+}
@@ -0,0 +1,47 @@
+package P2P;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReplayWindowTest {
+
+    @Test
+    public void takesEveryNumberOnce() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(window.accept(1));
+        assertTrue(window.accept(2));
+        assertFalse(window.accept(2));
+        assertFalse(window.accept(1));
+        assertFalse(window.accept(0));
+        assertFalse(window.accept(-5));
+    }
+
+    @Test
+    public void takesNumbersOutOfOrderInTheWindow() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(window.accept(10));
+        assertTrue(window.accept(7));
+        assertTrue(window.accept(9));
+        assertFalse(window.accept(7));
+        assertTrue(window.accept(11));
+        assertFalse(window.accept(10));
+        assertTrue(window.accept(8));
+    }
+
+    @Test
+    public void rejectsNumbersUnderTheWindow() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(window.accept(1));
+        assertTrue(window.accept(1 + ReplayWindow.WIDTH));
+        assertFalse(window.accept(1));
+        assertTrue(window.accept(2));
+
+        // A jump past the window forgets the numbers under it
+        assertTrue(window.accept(1000));
+        assertFalse(window.accept(1000 - ReplayWindow.WIDTH));
+        assertTrue(window.accept(1000 - ReplayWindow.WIDTH + 1));
+        assertFalse(window.accept(1000));
+    }
+}
@@ -0,0 +1,105 @@
+package Query;
+
+import Blockchain.TransactionIndex;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class QueryCacheTest {
+
+    private static TransactionIndex sample() {
+        return QueryPlannerTest.index(QueryPlannerTest.block("h1", 1, "weather.csv weather report", "rain.csv rain report"),
+                QueryPlannerTest.block("h2", 2, "weather.csv weather forecast", "traffic.csv traffic counts"));
+    }
+
+    private static void readAll(QueryCursor cursor) {
+        while (cursor.hasNext())
+            cursor.next(1);
+    }
+
+    @Test
+    public void repeatedQueryIsAHit() throws Exception {
+        QueryCache cache = new QueryCache(4);
+        TransactionIndex index = sample();
+        int[] first = cache.execute("weather", index, "h2");
+        assertArrayEquals(new int[]{0, 2}, first);
+        assertSame(first, cache.execute("weather", index, "h2"));
+    }
+
+    @Test
+    public void newBlocksAreAppended() throws Exception {
+        QueryCache cache = new QueryCache(4);
+        TransactionIndex index = sample();
+        QueryNode node = QueryParser.parse("weather");
+        cache.execute(node, index, "h2");
+
+        QueryPlannerTest.add(index, QueryPlannerTest.block("h3", 3, "snow.csv snow", "weather.csv weather archive"));
+        assertArrayEquals(new int[]{0, 2, 5}, cache.cached(node.toString(), node, index, "h3"));
+        assertArrayEquals(new int[]{0, 2, 5}, cache.execute(node, index, "h3"));
+    }
+
+    @Test
+    public void clearedIndexIsAMiss() throws Exception {
+        QueryCache cache = new QueryCache(4);
+        TransactionIndex index = sample();
+        QueryNode node = QueryParser.parse("weather");
+        cache.execute(node, index, "h2");
+
+        index.clear();
+        QueryPlannerTest.add(index, QueryPlannerTest.block("g1", 1, "weather.csv weather", "weather.csv weather again"));
+        assertNull(cache.cached(node.toString(), node, index, "g1"));
+        assertArrayEquals(new int[]{0, 1}, cache.execute(node, index, "g1"));
+    }
+
+    @Test
+    public void scanningCursorFillsTheCache() throws Exception {
+        QueryCache cache = new QueryCache(4);
+        TransactionIndex index = sample();
+        QueryNode node = QueryParser.parse("size>=10K");
+        String key = node.toString();
+
+        // A cursor which is not read to its end leaves nothing
+        QueryCursor cursor = cache.open("size>=10K", index, "h2");
+        cursor.next(1);
+        cursor.cancel();
+        assertNull(cache.cached(key, node, index, "h2"));
+
+        readAll(cache.open("size>=10K", index, "h2"));
+        assertArrayEquals(new int[]{0, 1, 2, 3}, cache.cached(key, node, index, "h2"));
+
+        // The next cursor reads the cached ids, brought up to date with the new block
+        QueryPlannerTest.add(index, QueryPlannerTest.block("h3", 3, "snow.csv snow"));
+        cursor = cache.open("size>=10K", index, "h3");
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4}, cursor.next(10));
+        assertFalse(cursor.hasNext());
+    }
+
+    @Test
+    public void indexedCursorFillsTheCache() throws Exception {
+        QueryCache cache = new QueryCache(4);
+        TransactionIndex index = sample();
+        QueryNode node = QueryParser.parse("report");
+
+        QueryCursor cursor = cache.open("report", index, "h2");
+        assertArrayEquals(new int[]{0}, cursor.next(1));
+        assertArrayEquals(new int[]{0, 1}, cache.cached(node.toString(), node, index, "h2"));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsDropped() throws Exception {
+        QueryCache cache = new QueryCache(2);
+        TransactionIndex index = sample();
+        cache.execute("weather", index, "h2");
+        cache.execute("rain", index, "h2");
+        cache.execute("weather", index, "h2");
+        cache.execute("traffic", index, "h2");
+
+        QueryNode rain = QueryParser.parse("rain");
+        QueryNode weather = QueryParser.parse("weather");
+        assertNull(cache.cached(rain.toString(), rain, index, "h2"));
+        assertArrayEquals(new int[]{0, 2}, cache.cached(weather.toString(), weather, index, "h2"));
+    }
+}
@@ -0,0 +1,68 @@
+package Query;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class QueryParserTest {
+
+    private static String parse(String text) throws ParseException {
+        return QueryParser.parse(text).toString();
+    }
+
+    private static void assertInvalid(String text) {
+        try {
+            QueryParser.parse(text);
+            fail("Parsed " + text);
+        } catch (ParseException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void termsAndFields() throws Exception {
+        assertEquals("weather", parse("Weather"));
+        assertEquals("(weather AND report)", parse("weather report"));
+        assertEquals("(weather AND report)", parse("weather AND report"));
+        assertEquals("file:my data.csv", parse("file:\"My Data.csv\""));
+        assertEquals("file:data*", parse("file:data*"));
+        assertEquals("user:alice", parse("user:Alice"));
+    }
+
+    @Test
+    public void precedenceAndParentheses() throws Exception {
+        assertEquals("((a AND b) OR c)", parse("a b OR c"));
+        assertEquals("(a AND (b OR c))", parse("a (b OR c)"));
+        assertEquals("(a OR b)", parse("a or b"));
+    }
+
+    @Test
+    public void comparisons() throws Exception {
+        assertEquals("size[" + (10L << 20) + "," + Long.MAX_VALUE + "]", parse("size>=10M"));
+        assertEquals("size[" + Long.MIN_VALUE + ",2047]", parse("size<2K"));
+        assertEquals("version[2,2]", parse("version:2"));
+        assertEquals("version[2," + Long.MAX_VALUE + "]", parse("version>1"));
+    }
+
+    @Test
+    public void timeRangesAreMerged() throws Exception {
+        assertEquals("(time[1000000000,1999999999] AND weather)", parse("after:1000000000 weather before:2000000000"));
+        assertEquals("time[1000000000," + Long.MAX_VALUE + "]", parse("after:1000000000"));
+    }
+
+    @Test
+    public void invalidQueries() {
+        assertInvalid("");
+        assertInvalid("   ");
+        assertInvalid("(weather");
+        assertInvalid("weather)");
+        assertInvalid("file:");
+        assertInvalid("size>lots");
+        assertInvalid("after:yesterday");
+        assertInvalid("file:\"open");
+        assertInvalid("weather OR");
+    }
+}
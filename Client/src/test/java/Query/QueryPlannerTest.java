@@ -0,0 +1,121 @@
+package Query;
+
+import Blockchain.Block;
+import Blockchain.TimeIndex;
+import Blockchain.TransactionIndex;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueryPlannerTest {
+
+    static final long TIME = 1500000000000L;
+
+    // Block of one transaction per summary, the summaries are "<file name> <words>"
+    static Block block(String hash, int length, String... summaries) {
+        JsonArray transactions = new JsonArray();
+        for (int i = 0; i < summaries.length; i++) {
+            JsonObject t = new JsonObject();
+            String fileName = summaries[i].split(" ")[0];
+            t.addProperty("fileName", fileName);
+            t.addProperty("filePath", "/data/" + fileName);
+            t.addProperty("dataSummary", summaries[i]);
+            t.addProperty("dataSize", (length * 10 + i) << 10);
+            t.addProperty("timeStamp", TIME + 1000L * (length * 10 + i));
+            t.addProperty("version", 1);
+            transactions.add(t);
+        }
+        JsonObject block = new JsonObject();
+        block.addProperty("hash", hash);
+        block.addProperty("prevHash", "h" + (length - 1));
+        block.addProperty("length", length);
+        block.addProperty("timestamp", 1000L * length);
+        block.add("transactions", transactions);
+        return new Gson().fromJson(block, Block.class);
+    }
+
+    static TransactionIndex index(Block... blocks) {
+        TransactionIndex index = new TransactionIndex(new TimeIndex());
+        for (Block block : blocks)
+            add(index, block);
+        return index;
+    }
+
+    static void add(TransactionIndex index, Block block) {
+        int firstDocId = index.size();
+        index.add(block, firstDocId);
+        index.getTimeIndex().add(block, firstDocId);
+    }
+
+    private static TransactionIndex sample() {
+        return index(block("h1", 1, "weather.csv weather report", "rain.csv rain report"),
+                block("h2", 2, "weather.csv weather forecast", "traffic.csv traffic counts"),
+                block("h3", 3, "rain.csv rain forecast", "weather.csv weather archive"));
+    }
+
+    private static int[] all(QueryCursor cursor) {
+        List<Integer> ids = new ArrayList<>();
+        while (cursor.hasNext())
+            for (int id : cursor.next(2))
+                ids.add(id);
+        int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = ids.get(i);
+        return result;
+    }
+
+    @Test
+    public void indexedQueries() throws Exception {
+        TransactionIndex index = sample();
+        assertArrayEquals(new int[]{0, 2, 5}, QueryPlanner.execute("weather", index));
+        assertArrayEquals(new int[]{2, 5}, QueryPlanner.execute("file:weather.csv after:" + (TIME + 20000), index));
+        assertArrayEquals(new int[]{2, 4}, QueryPlanner.execute("forecast", index));
+        assertArrayEquals(new int[]{0, 1, 2, 4}, QueryPlanner.execute("report OR forecast", index));
+        assertArrayEquals(new int[]{0, 1},
+                QueryPlanner.execute("(rain OR weather) (report OR forecast) before:" + (TIME + 20000), index));
+        assertArrayEquals(new int[0], QueryPlanner.execute("snow", index));
+    }
+
+    @Test
+    public void scanWithoutIndex() throws Exception {
+        TransactionIndex index = sample();
+        QueryNode node = QueryParser.parse("size>=20K");
+        assertFalse(node.isIndexed(index));
+        assertArrayEquals(new int[]{2, 3, 4, 5}, QueryPlanner.execute(node, index));
+        assertArrayEquals(new int[]{3, 4}, QueryPlanner.scan(node, index, 3, 5));
+        // Unindexed terms of an AND only filter the indexed candidates
+        assertArrayEquals(new int[]{2, 5}, QueryPlanner.execute("weather size>=20K", index));
+    }
+
+    @Test
+    public void cursorPagesAreTheResult() throws Exception {
+        TransactionIndex index = sample();
+        assertArrayEquals(QueryPlanner.execute("weather", index), all(QueryPlanner.open("weather", index)));
+        assertArrayEquals(QueryPlanner.execute("size<30K report OR counts", index),
+                all(QueryPlanner.open("size<30K report OR counts", index)));
+    }
+
+    @Test
+    public void cancelledCursorStops() throws Exception {
+        QueryCursor cursor = QueryPlanner.open("size>0", sample());
+        assertArrayEquals(new int[]{0, 1}, cursor.next(2));
+        cursor.cancel();
+        assertFalse(cursor.hasNext());
+        assertArrayEquals(new int[0], cursor.next(2));
+        assertTrue(cursor.isCancelled());
+    }
+
+    @Test
+    public void unions() {
+        assertArrayEquals(new int[]{1, 2, 3, 5, 8}, QueryPlanner.union(new int[]{1, 3, 5}, new int[]{2, 3, 8}));
+        assertArrayEquals(new int[]{4}, QueryPlanner.union(new int[0], new int[]{4}));
+    }
+}
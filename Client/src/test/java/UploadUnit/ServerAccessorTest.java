@@ -1,4 +1,4 @@
-package java.UploadUnit;
+package UploadUnit;
 
 import UploadUnit.ServerAccessor;
 import org.junit.Before;
@@ -0,0 +1,73 @@
+package Util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ValidationRoundTest {
+
+    private static final int VALID = Config.MESSAGE_RESPONSE_VALID;
+    private static final int INVALID_HASH = Config.MESSAGE_RESPONSE_INVALIDHASH;
+    private static final int INVALID_KEY = Config.MESSAGE_RESPONSE_INVALIDKEY;
+
+    private static ValidationRound.Outcome outcome(ValidationRound round) {
+        assertTrue(round.getOutcome().isDone());
+        return round.getOutcome().getNow(null);
+    }
+
+    @Test
+    public void majorityIsKnownBeforeEveryReply() {
+        ValidationRound round = new ValidationRound(null, 5);
+        round.countTrusted(VALID, "t");
+        round.countTrusted(VALID, "t");
+        assertFalse(round.getOutcome().isDone());
+        round.countTrusted(VALID, "t");
+        assertEquals(ValidationRound.Outcome.VALID, outcome(round));
+        assertEquals("t", round.getTransaction());
+    }
+
+    @Test
+    public void missingRepliesLowerTheMajority() {
+        ValidationRound round = new ValidationRound(null, 5);
+        round.countTrusted(VALID, "t");
+        round.countTrusted(VALID, "t");
+        round.countTrusted(INVALID_HASH, null);
+        round.count("10.0.0.4", null);
+        assertFalse(round.getOutcome().isDone());
+        // Two of the three responses are valid
+        round.count("10.0.0.5", null);
+        assertEquals(ValidationRound.Outcome.VALID, outcome(round));
+    }
+
+    @Test
+    public void invalidHashMajority() {
+        ValidationRound round = new ValidationRound(null, 3);
+        round.countTrusted(INVALID_HASH, null);
+        round.countTrusted(INVALID_HASH, null);
+        assertEquals(ValidationRound.Outcome.INVALID_HASH, outcome(round));
+    }
+
+    @Test
+    public void undecidedOnceNoMajorityIsPossible() {
+        ValidationRound round = new ValidationRound(null, 4);
+        round.countTrusted(VALID, "t");
+        round.countTrusted(INVALID_HASH, null);
+        assertFalse(round.getOutcome().isDone());
+        round.countTrusted(INVALID_KEY, null);
+        assertEquals(ValidationRound.Outcome.UNDECIDED, outcome(round));
+    }
+
+    @Test
+    public void roundWithoutPeersIsUndecided() {
+        assertEquals(ValidationRound.Outcome.UNDECIDED, outcome(new ValidationRound(null, 0)));
+    }
+
+    @Test
+    public void invalidResponseIsNoReply() {
+        ValidationRound round = new ValidationRound(null, 1);
+        round.count("10.0.0.1", "not a response");
+        assertEquals(ValidationRound.Outcome.UNDECIDED, outcome(round));
+    }
+}